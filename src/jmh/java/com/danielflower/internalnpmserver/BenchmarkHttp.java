@@ -0,0 +1,119 @@
+package com.danielflower.internalnpmserver;
+
+import org.apache.commons.io.output.NullOutputStream;
+import org.simpleframework.http.Path;
+import org.simpleframework.http.Request;
+import org.simpleframework.http.Response;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Requests and responses for benchmarks. They are dynamic proxies, because the web server's interfaces have
+ * far more methods than the code being measured uses. Responses throw away whatever is written to them.
+ */
+public class BenchmarkHttp {
+
+    private BenchmarkHttp() {
+    }
+
+    public static Request request(final String target) {
+        final Path path = proxy(Path.class, new InvocationHandler() {
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                return "getPath".equals(method.getName()) ? target : defaultValue(method);
+            }
+        });
+        return proxy(Request.class, new InvocationHandler() {
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                String name = method.getName();
+                if ("getPath".equals(name)) {
+                    return path;
+                } else if ("getTarget".equals(name)) {
+                    return target;
+                } else if ("getMethod".equals(name)) {
+                    return "GET";
+                }
+                return defaultValue(method);
+            }
+        });
+    }
+
+    public static Response response() {
+        return proxy(Response.class, new InvocationHandler() {
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                String name = method.getName();
+                if ("getOutputStream".equals(name)) {
+                    return new NullOutputStream();
+                } else if ("getPrintStream".equals(name)) {
+                    return new PrintStream(new NullOutputStream());
+                } else if ("getByteChannel".equals(name)) {
+                    return new NullChannel();
+                } else if ("getCode".equals(name)) {
+                    return 200;
+                }
+                return defaultValue(method);
+            }
+        });
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T proxy(Class<T> type, InvocationHandler handler) {
+        return (T) Proxy.newProxyInstance(BenchmarkHttp.class.getClassLoader(), new Class[]{type}, handler);
+    }
+
+    private static Object defaultValue(Method method) {
+        Class<?> type = method.getReturnType();
+        if (type == boolean.class) {
+            return false;
+        } else if (type == int.class) {
+            return 0;
+        } else if (type == long.class) {
+            return 0L;
+        }
+        return null;
+    }
+
+    private static class NullChannel implements WritableByteChannel {
+        public int write(ByteBuffer src) {
+            int remaining = src.remaining();
+            src.position(src.limit());
+            return remaining;
+        }
+
+        public boolean isOpen() {
+            return true;
+        }
+
+        public void close() {
+        }
+    }
+
+    /**
+     * @return A packument-like JSON document of roughly the given size, with a registry URL for every version
+     */
+    public static byte[] packument(String registryURL, int size) {
+        StringBuilder json = new StringBuilder(size + 512);
+        json.append("{\"name\":\"benchmark\",\"versions\":{");
+        int version = 0;
+        while (json.length() < size) {
+            if (version > 0) {
+                json.append(',');
+            }
+            json.append("\"1.0.").append(version).append("\":{\"name\":\"benchmark\",\"version\":\"1.0.").append(version)
+                    .append("\",\"description\":\"A package that exists to be benchmarked\",\"dist\":{\"shasum\":\"0123456789abcdef0123456789abcdef01234567\",")
+                    .append("\"tarball\":\"").append(registryURL).append("benchmark/-/benchmark-1.0.").append(version).append(".tgz\"}}");
+            version++;
+        }
+        json.append("}}");
+        try {
+            return json.toString().getBytes("UTF-8");
+        } catch (java.io.UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
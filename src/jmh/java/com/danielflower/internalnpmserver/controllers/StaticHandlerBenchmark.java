@@ -0,0 +1,79 @@
+package com.danielflower.internalnpmserver.controllers;
+
+import com.danielflower.internalnpmserver.BenchmarkHttp;
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sends cached files to a response that throws the bytes away, so what is measured is the work the server
+ * does per request: looking the file up, setting headers and copying the bytes. Packuments are sent as they
+ * are, with the registry URLs rewritten for offline mode, and from the in-memory cache of popular packuments.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class StaticHandlerBenchmark {
+    private static final String REGISTRY = "http://registry.npmjs.org/";
+    private static final String TARBALL = "/benchmark/-/benchmark-1.0.0.tgz";
+    private static final String PACKUMENT = "/benchmark.json";
+
+    @Param({"102400"})
+    public int fileBytes;
+
+    private final File folder = new File(System.getProperty("java.io.tmpdir"), "staticbenchmark-" + UUID.randomUUID());
+    private StaticHandlerImpl online;
+    private StaticHandlerImpl offline;
+    private CachingStaticHandler inMemory;
+
+    @Setup
+    public void createCache() throws IOException {
+        byte[] tarball = new byte[fileBytes];
+        new Random(1).nextBytes(tarball);
+        FileUtils.writeByteArrayToFile(new File(folder, TARBALL), tarball);
+        FileUtils.writeByteArrayToFile(new File(folder, PACKUMENT), BenchmarkHttp.packument(REGISTRY, fileBytes));
+
+        online = new StaticHandlerImpl(folder, 9999, "localhost", false, REGISTRY);
+        offline = new StaticHandlerImpl(folder, 9999, "localhost", true, REGISTRY);
+        inMemory = new CachingStaticHandler(online, 64L * 1024 * 1024);
+    }
+
+    @TearDown
+    public void deleteCache() throws IOException {
+        FileUtils.deleteDirectory(folder);
+    }
+
+    @Benchmark
+    public boolean cachedTarball() throws IOException {
+        return online.streamFileIfExists(TARBALL, null, true, BenchmarkHttp.response());
+    }
+
+    @Benchmark
+    public boolean packument() throws IOException {
+        return online.streamFileIfExists(PACKUMENT, null, true, BenchmarkHttp.response());
+    }
+
+    @Benchmark
+    public boolean offlinePackument() throws IOException {
+        return offline.streamFileIfExists(PACKUMENT, null, true, BenchmarkHttp.response());
+    }
+
+    @Benchmark
+    public boolean packumentFromMemory() throws IOException {
+        return inMemory.streamFileIfExists(PACKUMENT, null, true, BenchmarkHttp.response());
+    }
+
+    @Benchmark
+    public boolean notModified() throws IOException {
+        String etag = String.valueOf(new File(folder, TARBALL).lastModified());
+        return online.streamFileIfExists(TARBALL, etag, true, BenchmarkHttp.response());
+    }
+}
@@ -0,0 +1,86 @@
+package com.danielflower.internalnpmserver.services;
+
+import org.openjdk.jmh.annotations.*;
+
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares locking a key with {@link KeyedLock} against a map guarded by one monitor, which is how the
+ * download locks used to work. Run with different thread counts to see how each scales, e.g.
+ * <pre>
+ * mvn -P benchmarks test-compile exec:exec -Djmh.benchmarks=KeyedLockBenchmark -Djmh.args="-t 1"
+ * mvn -P benchmarks test-compile exec:exec -Djmh.benchmarks=KeyedLockBenchmark -Djmh.args="-t max"
+ * </pre>
+ * With one key every thread wants the same lock, which is the worst case for both.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class KeyedLockBenchmark {
+
+    @Param({"1", "10000"})
+    public int keyCount;
+
+    private String[] keys;
+    private final KeyedLock<String> keyedLock = new KeyedLock<String>();
+    private final Map<String, Object> globalMap = new HashMap<String, Object>();
+
+    @Setup
+    public void createKeys() {
+        keys = new String[keyCount];
+        for (int i = 0; i < keyCount; i++) {
+            keys[i] = "/package-" + i + ".json";
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Keys {
+        private final Random random = new Random();
+
+        String next(KeyedLockBenchmark benchmark) {
+            return benchmark.keys[random.nextInt(benchmark.keys.length)];
+        }
+    }
+
+    @Benchmark
+    public void keyedLock(Keys keys) {
+        String key = keys.next(this);
+        keyedLock.lock(key);
+        try {
+            work();
+        } finally {
+            keyedLock.unlock(key);
+        }
+    }
+
+    @Benchmark
+    public void globalMonitor(Keys keys) {
+        String key = keys.next(this);
+        Object lock;
+        synchronized (globalMap) {
+            lock = globalMap.get(key);
+            if (lock == null) {
+                lock = new Object();
+                globalMap.put(key, lock);
+            }
+        }
+        synchronized (lock) {
+            work();
+        }
+    }
+
+    /**
+     * About as long as the download decision made while the lock is held.
+     */
+    private static void work() {
+        Blackhole.consumeCPU(100);
+    }
+}
@@ -0,0 +1,46 @@
+package com.danielflower.internalnpmserver.services;
+
+import com.danielflower.internalnpmserver.BenchmarkHttp;
+import org.apache.commons.io.output.NullOutputStream;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Rewrites the registry URLs in packuments from a small package up to one the size of the biggest on the
+ * public registry. The packument is written in chunks the size of a network read, as downloads are.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class PackageReWriterBenchmark {
+    private static final String REGISTRY = "http://registry.npmjs.org/";
+    private static final int CHUNK_BYTES = 8192;
+
+    @Param({"1024", "102400", "1048576", "31457280"})
+    public int packumentBytes;
+
+    private final PackageReWriter rewriter = new PackageReWriter(REGISTRY, "http://localhost:9999/npm/");
+    private final File destination = new File("benchmark.json");
+    private byte[] packument;
+
+    @Setup
+    public void createPackument() {
+        packument = BenchmarkHttp.packument(REGISTRY, packumentBytes);
+    }
+
+    @Benchmark
+    public void rewrite() throws IOException {
+        OutputStream out = rewriter.rewrite(destination, new NullOutputStream());
+        for (int offset = 0; offset < packument.length; offset += CHUNK_BYTES) {
+            out.write(packument, offset, Math.min(CHUNK_BYTES, packument.length - offset));
+        }
+        out.close();
+    }
+}
@@ -0,0 +1,27 @@
+package com.danielflower.internalnpmserver.webserver;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Guesses the content type of the paths the server sends most often.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ContentTypeGuesserBenchmark {
+
+    @Param({"/commander/-/commander-2.20.0.tgz", "/commander.json", "/@types/node.json", "/favicon.ico"})
+    public String path;
+
+    private final ContentTypeGuesser guesser = new ContentTypeGuesser();
+
+    @Benchmark
+    public String fromName() {
+        return guesser.fromName(path);
+    }
+}
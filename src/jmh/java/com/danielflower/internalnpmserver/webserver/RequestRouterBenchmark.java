@@ -0,0 +1,68 @@
+package com.danielflower.internalnpmserver.webserver;
+
+import com.danielflower.internalnpmserver.BenchmarkHttp;
+import com.danielflower.internalnpmserver.metrics.Metrics;
+import org.openjdk.jmh.annotations.*;
+import org.simpleframework.http.Request;
+import org.simpleframework.http.Response;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Dispatches requests to handlers that do nothing, which are matched in the same order and by the same rules
+ * as the server's own, so what is measured is choosing the handler and recording the request's metrics.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class RequestRouterBenchmark {
+
+    private final RequestRouter router = new RequestRouter(new RequestHandler[]{
+            new Homepage(), new Npm(), new MetricsPage(), new Static()
+    }, new Metrics());
+    private final Request packument = BenchmarkHttp.request("/npm/commander");
+    private final Request staticFile = BenchmarkHttp.request("/favicon.ico");
+    private final Response response = BenchmarkHttp.response();
+
+    @Benchmark
+    public void firstRoutes() {
+        router.handle(packument, response);
+    }
+
+    @Benchmark
+    public void lastRoute() {
+        router.handle(staticFile, response);
+    }
+
+    private static class Homepage extends NoOpHandler {
+        public boolean canHandle(String path) {
+            return "/".equals(path);
+        }
+    }
+
+    private static class Npm extends NoOpHandler {
+        public boolean canHandle(String path) {
+            return path.startsWith("/npm/");
+        }
+    }
+
+    private static class MetricsPage extends NoOpHandler {
+        public boolean canHandle(String path) {
+            return "/metrics".equals(path);
+        }
+    }
+
+    private static class Static extends NoOpHandler {
+        public boolean canHandle(String path) {
+            return true;
+        }
+    }
+
+    private abstract static class NoOpHandler implements RequestHandler {
+        public void handle(Request request, Response response) {
+        }
+    }
+}
@@ -9,10 +9,15 @@ import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
 import java.net.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.TreeMap;
 
 public class Config {
     private static final Logger log = LoggerFactory.getLogger(Config.class);
+    private static final String SCOPE_REGISTRY_PREFIX = "scopeRegistry.";
 
     private final int port;
     private final File npmCacheFolder;
@@ -20,8 +25,17 @@ public class Config {
     private final String webServerHostName;
     private final Proxy proxy;
     private final boolean offline;
+    private final Properties settings;
 
     public Config(int port, File npmCacheFolder, String npmRepositoryURL, String webServerHostName, Proxy proxy, boolean offline) {
+        this(port, npmCacheFolder, npmRepositoryURL, webServerHostName, proxy, offline, new Properties());
+    }
+
+    /**
+     * @param settings Optional tuning settings; any that are missing use their default values.
+     */
+    public Config(int port, File npmCacheFolder, String npmRepositoryURL, String webServerHostName, Proxy proxy, boolean offline, Properties settings) {
+        this.settings = settings;
         this.webServerHostName = webServerHostName;
         this.proxy = proxy;
         if (!npmRepositoryURL.startsWith("http://")) {
@@ -80,7 +94,7 @@ public class Config {
 
         boolean offline = Boolean.parseBoolean(props.getProperty("offline"));
 
-        return new Config(port, cacheFolder, npmURL, webServerHostName, proxy, offline);
+        return new Config(port, cacheFolder, npmURL, webServerHostName, proxy, offline, props);
     }
 
     private static Proxy getProxy(Properties props) {
@@ -130,4 +144,278 @@ public class Config {
     public boolean isOffline() {
         return offline;
     }
+
+    /**
+     * If true, out of date packuments are served from the cache while they are re-downloaded in the background.
+     */
+    public boolean isStaleWhileRevalidate() {
+        return Boolean.parseBoolean(settings.getProperty("staleWhileRevalidate"));
+    }
+
+    /**
+     * How old a cached packument can be before a request waits for it to be re-downloaded, even in
+     * stale-while-revalidate mode.
+     */
+    public long getHardStaleMillis() {
+        return intSetting("hardStaleHours", 168) * 60L * 60L * 1000L;
+    }
+
+    public int getBackgroundRefreshThreads() {
+        return intSetting("backgroundRefreshThreads", 4);
+    }
+
+    public int getUpstreamConnectTimeoutMillis() {
+        return intSetting("upstreamConnectTimeoutSeconds", 10) * 1000;
+    }
+
+    public int getUpstreamReadTimeoutMillis() {
+        return intSetting("upstreamReadTimeoutSeconds", 30) * 1000;
+    }
+
+    /**
+     * How long a single download from the NPM registry may take, including reading the whole body.
+     */
+    public long getUpstreamTotalTimeoutMillis() {
+        return intSetting("upstreamTotalTimeoutSeconds", 600) * 1000L;
+    }
+
+    /**
+     * How much memory can be used to keep popular packuments in memory. 0 turns this off.
+     */
+    public long getHotCacheBytes() {
+        return intSetting("hotCacheMegabytes", 64) * 1024L * 1024L;
+    }
+
+    /**
+     * If true, packuments are stored gzipped in the cache folder and sent gzipped to clients that accept it.
+     */
+    public boolean isCompressPackuments() {
+        return Boolean.parseBoolean(settings.getProperty("compressPackuments"));
+    }
+
+    /**
+     * If true, clients that ask for abbreviated packuments are sent them, rather than the full packuments.
+     */
+    public boolean isAbbreviatedMetadata() {
+        return Boolean.parseBoolean(settings.getProperty("abbreviatedMetadata", "true"));
+    }
+
+    /**
+     * If true, the size and last modified time of every cached file is kept in memory.
+     */
+    public boolean isCacheIndex() {
+        return Boolean.parseBoolean(settings.getProperty("cacheIndex", "true"));
+    }
+
+    /**
+     * The most disk space the cache folder should use. 0 means there is no limit.
+     */
+    public long getMaxCacheBytes() {
+        return intSetting("maxCacheMegabytes", 0) * 1024L * 1024L;
+    }
+
+    /**
+     * Files are removed from the cache once it is bigger than this much of the maximum size...
+     */
+    public long getCacheHighWatermarkBytes() {
+        return getMaxCacheBytes() / 100 * intSetting("cacheHighWatermarkPercent", 100);
+    }
+
+    /**
+     * ...until it is no bigger than this much of the maximum size.
+     */
+    public long getCacheLowWatermarkBytes() {
+        return getMaxCacheBytes() / 100 * intSetting("cacheLowWatermarkPercent", 90);
+    }
+
+    /**
+     * How often the size of the cache folder is checked.
+     */
+    public long getCacheSweepIntervalMillis() {
+        return intSetting("cacheSweepIntervalSeconds", 60) * 1000L;
+    }
+
+    /**
+     * The file that a line is written to for each request, or null (the default) to log each request at INFO instead.
+     */
+    public File getAccessLogFile() {
+        String file = settings.getProperty("accessLogFile", "").trim();
+        return file.isEmpty() ? null : new File(file);
+    }
+
+    /**
+     * How many access log entries can be waiting to be written.
+     */
+    public int getAccessLogBufferSize() {
+        return intSetting("accessLogBufferSize", 8192);
+    }
+
+    /**
+     * If true, requests wait when the access log cannot keep up. Otherwise, their entries are dropped.
+     */
+    public boolean isAccessLogBlockingWhenFull() {
+        return "block".equalsIgnoreCase(settings.getProperty("accessLogWhenFull", "drop").trim());
+    }
+
+    /**
+     * Other registries that have the same packages as the NPM registry, in the order they should be tried.
+     */
+    public List<String> getNpmMirrorURLs() {
+        return listSetting("npmMirrorURLs");
+    }
+
+    /**
+     * The registries of scoped packages by scope, e.g. "@ourco", which are set with settings such as
+     * scopeRegistry.@ourco=http://npm.ourco.com/
+     */
+    public Map<String, String> getScopeRegistryURLs() {
+        Map<String, String> urls = new TreeMap<String, String>();
+        for (String name : settings.stringPropertyNames()) {
+            if (name.startsWith(SCOPE_REGISTRY_PREFIX) && StringUtils.isNotBlank(settings.getProperty(name))) {
+                urls.put(name.substring(SCOPE_REGISTRY_PREFIX.length()), settings.getProperty(name).trim());
+            }
+        }
+        return urls;
+    }
+
+    /**
+     * How slow the first mirror must be, as a percentile of its recent requests, before the same request is sent
+     * to the next mirror too. 0 means the next mirror is only asked if the first fails.
+     */
+    public int getHedgePercentile() {
+        return intSetting("hedgePercentile", 95);
+    }
+
+    /**
+     * The least time to wait for the first mirror before asking the next one too.
+     */
+    public long getHedgeMinDelayMillis() {
+        return intSetting("hedgeMinDelayMillis", 100);
+    }
+
+    /**
+     * The percentage of recent requests to the NPM registry that must fail for requests to stop being sent to
+     * it for a while. 0 means requests are always sent.
+     */
+    public int getCircuitFailureRatePercent() {
+        return intSetting("circuitFailureRatePercent", 50);
+    }
+
+    /**
+     * How many of the most recent requests to the NPM registry the failure rate is worked out from.
+     */
+    public int getCircuitWindowSize() {
+        return intSetting("circuitWindowSize", 20);
+    }
+
+    /**
+     * How many requests must have been made to the NPM registry before requests can be stopped.
+     */
+    public int getCircuitMinimumCalls() {
+        return intSetting("circuitMinimumCalls", 10);
+    }
+
+    /**
+     * Requests to the NPM registry whose response headers take longer than this count as failures.
+     */
+    public long getCircuitSlowCallMillis() {
+        return intSetting("circuitSlowCallSeconds", 10) * 1000L;
+    }
+
+    /**
+     * How long requests to the NPM registry are stopped for before one is tried again.
+     */
+    public long getCircuitOpenMillis() {
+        return intSetting("circuitOpenSeconds", 30) * 1000L;
+    }
+
+    /**
+     * How long a file that the NPM registry said does not exist is remembered for. 0 turns this off.
+     */
+    public long getNegativeCacheMillis() {
+        return intSetting("negativeCacheSeconds", 60) * 1000L;
+    }
+
+    /**
+     * The most files that the NPM registry said do not exist to remember.
+     */
+    public int getNegativeCacheMaxEntries() {
+        return intSetting("negativeCacheMaxEntries", 10000);
+    }
+
+    /**
+     * How many files are downloaded at once when lockfiles are posted to the prefetch end point.
+     */
+    public int getPrefetchThreads() {
+        return intSetting("prefetchThreads", 16);
+    }
+
+    /**
+     * How many of the files being prefetched are downloaded at once from any one registry or server.
+     */
+    public int getPrefetchConnectionsPerHost() {
+        return intSetting("prefetchConnectionsPerHost", 8);
+    }
+
+    /**
+     * Lockfiles posted to the prefetch end point that are bigger than this are rejected.
+     */
+    public long getPrefetchMaxLockfileBytes() {
+        return intSetting("prefetchMaxLockfileMegabytes", 32) * 1024L * 1024L;
+    }
+
+    /**
+     * If true, other servers use the same cache folder, e.g. on a network drive, and lock files are used so that
+     * only one server downloads any given file at a time.
+     */
+    public boolean isSharedCacheFolder() {
+        return Boolean.parseBoolean(settings.getProperty("sharedCacheFolder"));
+    }
+
+    /**
+     * How long a lock file in a shared cache folder lasts without being touched by the server downloading the
+     * file, before it is taken to be left by a server that stopped.
+     */
+    public long getSharedLockLeaseMillis() {
+        return intSetting("sharedLockLeaseSeconds", 60) * 1000L;
+    }
+
+    /**
+     * The URLs of every server in the cluster, e.g. http://npm1.ourco.com:9100, including this one. Each package
+     * is owned by one of them, and the others download it from the owner rather than from the NPM registry.
+     * Empty if this server is not in a cluster.
+     */
+    public List<String> getClusterNodes() {
+        return listSetting("clusterNodes");
+    }
+
+    /**
+     * The URL of this server in the list of cluster nodes.
+     */
+    public String getClusterSelf() {
+        String self = settings.getProperty("clusterSelf");
+        return StringUtils.isBlank(self) ? "http://" + webServerHostName + ":" + port : self.trim();
+    }
+
+    /**
+     * How many idle keep-alive connections to the NPM registry are kept open for reuse.
+     */
+    public int getUpstreamMaxIdleConnections() {
+        return intSetting("upstreamMaxIdleConnections", 20);
+    }
+
+    private List<String> listSetting(String name) {
+        List<String> values = new ArrayList<String>();
+        for (String value : StringUtils.split(settings.getProperty(name, ""), ',')) {
+            if (StringUtils.isNotBlank(value)) {
+                values.add(value.trim());
+            }
+        }
+        return values;
+    }
+
+    private int intSetting(String name, int defaultValue) {
+        String value = settings.getProperty(name);
+        return StringUtils.isBlank(value) ? defaultValue : Integer.parseInt(value.trim());
+    }
 }
@@ -0,0 +1,53 @@
+package com.danielflower.internalnpmserver.controllers;
+
+import com.danielflower.internalnpmserver.services.CacheIndex;
+import org.simpleframework.http.Response;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Date;
+
+/**
+ * Records in the cache index each time a cached file is sent, so that the files that are used the least can
+ * be removed when the cache gets too big. This wraps any in-memory cache, so that files sent from memory
+ * are counted too.
+ */
+public class AccessRecordingStaticHandler implements StaticHandler {
+
+    private final StaticHandler delegate;
+    private final CacheIndex index;
+
+    public AccessRecordingStaticHandler(StaticHandler delegate, CacheIndex index) {
+        this.delegate = delegate;
+        this.index = index;
+    }
+
+    @Override
+    public boolean canHandle(String path) {
+        return delegate.canHandle(path);
+    }
+
+    @Override
+    public void streamFileToResponse(String path, String etagFromClient, boolean acceptsGzip, Response resp) throws IOException {
+        index.recordAccess(path);
+        delegate.streamFileToResponse(path, etagFromClient, acceptsGzip, resp);
+    }
+
+    @Override
+    public boolean streamFileIfExists(String path, String etagFromClient, boolean acceptsGzip, Response resp) throws IOException {
+        // recorded before sending, so that the file counts as recently used while it is being read
+        index.recordAccess(path);
+        return delegate.streamFileIfExists(path, etagFromClient, acceptsGzip, resp);
+    }
+
+    @Override
+    public void streamToResponse(String path, InputStream contents, boolean acceptsGzip, Response resp) throws IOException {
+        // the file is still being downloaded, and the download is recorded as a use when it finishes
+        delegate.streamToResponse(path, contents, acceptsGzip, resp);
+    }
+
+    @Override
+    public Date dateCreated(String path) {
+        return delegate.dateCreated(path);
+    }
+}
@@ -0,0 +1,154 @@
+package com.danielflower.internalnpmserver.controllers;
+
+import com.danielflower.internalnpmserver.services.ByteBoundedCache;
+import com.danielflower.internalnpmserver.services.DownloadListener;
+import org.apache.commons.io.IOUtils;
+import org.simpleframework.http.Response;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Date;
+
+/**
+ * Keeps the bytes of popular packuments in memory so that serving them does not touch the file system.
+ * Everything else is passed through to the wrapped handler.
+ * <p>
+ * This relies on every change to a cached file going through the downloader or the cache sweeper, which
+ * tell this handler to forget the old version once the new one has been published or the file removed.
+ */
+public class CachingStaticHandler implements StaticHandler, DownloadListener {
+
+    private static final int TYPICAL_PACKUMENT_BYTES = 32 * 1024;
+
+    private final StaticHandlerImpl delegate;
+    private final ByteBoundedCache<File, CachedFile> cache;
+    private final long maxBytes;
+
+    public CachingStaticHandler(StaticHandlerImpl delegate, long maxBytes) {
+        this.delegate = delegate;
+        this.maxBytes = maxBytes;
+        int expectedKeys = (int) Math.min(1 << 20, Math.max(1024, maxBytes / TYPICAL_PACKUMENT_BYTES));
+        this.cache = new ByteBoundedCache<File, CachedFile>(maxBytes, expectedKeys);
+    }
+
+    @Override
+    public boolean canHandle(String path) {
+        return (isCacheable(path) && cache.peek(delegate.fileFor(path)) != null) || delegate.canHandle(path);
+    }
+
+    @Override
+    public void streamFileToResponse(String path, String etagFromClient, boolean acceptsGzip, Response resp) throws IOException {
+        if (!isCacheable(path)) {
+            delegate.streamFileToResponse(path, etagFromClient, acceptsGzip, resp);
+            return;
+        }
+
+        File localFile = delegate.fileFor(path);
+        CachedFile cached = cache.get(localFile);
+        if (cached == null) {
+            cached = load(path, localFile);
+            if (cached == null) {
+                delegate.streamFileToResponse(path, etagFromClient, acceptsGzip, resp);
+                return;
+            }
+        }
+        sendCached(path, cached, etagFromClient, acceptsGzip, resp);
+    }
+
+    @Override
+    public boolean streamFileIfExists(String path, String etagFromClient, boolean acceptsGzip, Response resp) throws IOException {
+        if (!isCacheable(path)) {
+            return delegate.streamFileIfExists(path, etagFromClient, acceptsGzip, resp);
+        }
+
+        File localFile = delegate.fileFor(path);
+        CachedFile cached = cache.get(localFile);
+        if (cached == null) {
+            cached = delegate.canHandle(path) ? load(path, localFile) : null;
+            if (cached == null) {
+                // the delegate also finds out if the file was deleted since it was looked up
+                return delegate.streamFileIfExists(path, etagFromClient, acceptsGzip, resp);
+            }
+        }
+        sendCached(path, cached, etagFromClient, acceptsGzip, resp);
+        return true;
+    }
+
+    private void sendCached(String path, CachedFile cached, String etagFromClient, boolean acceptsGzip, Response resp) throws IOException {
+        if (StaticHandlerImpl.isNotModified(cached.lastModified, etagFromClient)) {
+            StaticHandlerImpl.setNotModified(resp);
+            IOUtils.closeQuietly(resp.getOutputStream());
+        } else {
+            delegate.setFileHeaders(path, cached.lastModified, resp);
+            delegate.sendBytes(path, cached.contents, acceptsGzip, resp);
+        }
+    }
+
+    private CachedFile load(String path, File localFile) throws IOException {
+        long invalidationCount = cache.getInvalidationCount();
+        // looked up from the same stats as the files on disk, so a cache index saves asking the file system
+        long lastModified = delegate.lastModified(path);
+        if (lastModified == 0 || delegate.length(path) > maxBytes) {
+            return null;
+        }
+        InputStream in;
+        try {
+            in = delegate.openContents(path, localFile, lastModified);
+        } catch (FileNotFoundException e) {
+            // deleted since it was looked up, which the delegate finds out about when it tries to send it
+            return null;
+        }
+        byte[] contents;
+        try {
+            contents = IOUtils.toByteArray(in);
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+        CachedFile cached = new CachedFile(contents, lastModified);
+        // if it changed while being read then the contents might be from a different version than lastModified
+        if (delegate.lastModified(path) == lastModified) {
+            cache.put(localFile, cached, contents.length, invalidationCount);
+        }
+        return cached;
+    }
+
+    @Override
+    public void streamToResponse(String path, InputStream contents, boolean acceptsGzip, Response resp) throws IOException {
+        delegate.streamToResponse(path, contents, acceptsGzip, resp);
+    }
+
+    @Override
+    public Date dateCreated(String path) {
+        CachedFile cached = isCacheable(path) ? cache.peek(delegate.fileFor(path)) : null;
+        return cached == null ? delegate.dateCreated(path) : new Date(cached.lastModified);
+    }
+
+    @Override
+    public void downloaded(File destination) {
+        cache.invalidate(destination);
+    }
+
+    public long getCachedBytes() {
+        return cache.getSizeInBytes();
+    }
+
+    public int getCachedFileCount() {
+        return cache.getEntryCount();
+    }
+
+    private static boolean isCacheable(String path) {
+        return path.endsWith(".json");
+    }
+
+    private static class CachedFile {
+        final byte[] contents;
+        final long lastModified;
+
+        CachedFile(byte[] contents, long lastModified) {
+            this.contents = contents;
+            this.lastModified = lastModified;
+        }
+    }
+}
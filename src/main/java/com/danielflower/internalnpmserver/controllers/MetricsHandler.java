@@ -0,0 +1,38 @@
+package com.danielflower.internalnpmserver.controllers;
+
+import com.danielflower.internalnpmserver.metrics.Metrics;
+import com.danielflower.internalnpmserver.webserver.RequestHandler;
+import org.simpleframework.http.Request;
+import org.simpleframework.http.Response;
+
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+/**
+ * Sends the server's metrics in the Prometheus text format.
+ */
+public class MetricsHandler implements RequestHandler {
+
+    private final Metrics metrics;
+
+    public MetricsHandler(Metrics metrics) {
+        this.metrics = metrics;
+    }
+
+    @Override
+    public boolean canHandle(String path) {
+        return "/metrics".equals(path);
+    }
+
+    @Override
+    public void handle(Request request, Response response) throws Exception {
+        response.setValue("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+        response.setValue("Cache-Control", "no-cache");
+        Writer writer = new OutputStreamWriter(response.getOutputStream(), "UTF-8");
+        try {
+            metrics.writeTo(writer);
+        } finally {
+            writer.close();
+        }
+    }
+}
@@ -1,9 +1,19 @@
 package com.danielflower.internalnpmserver.controllers;
 
-import com.danielflower.internalnpmserver.services.FileDownloader;
-import com.danielflower.internalnpmserver.services.LockMap;
+import com.danielflower.internalnpmserver.metrics.Counter;
+import com.danielflower.internalnpmserver.metrics.Gauge;
+import com.danielflower.internalnpmserver.metrics.Metrics;
+import com.danielflower.internalnpmserver.services.CacheFiles;
+import com.danielflower.internalnpmserver.services.Gzip;
+import com.danielflower.internalnpmserver.services.InFlightDownload;
+import com.danielflower.internalnpmserver.services.KeyedLock;
+import com.danielflower.internalnpmserver.services.NegativeCache;
+import com.danielflower.internalnpmserver.services.PeerCluster;
 import com.danielflower.internalnpmserver.services.RemoteDownloadPolicy;
+import com.danielflower.internalnpmserver.services.SingleFlightDownloader;
+import com.danielflower.internalnpmserver.webserver.LoggingWebContainer;
 import com.danielflower.internalnpmserver.webserver.RequestHandler;
+import com.danielflower.internalnpmserver.webserver.ResourceNotFoundException;
 import org.apache.commons.lang.StringUtils;
 import org.simpleframework.http.Request;
 import org.simpleframework.http.Response;
@@ -11,6 +21,9 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.InputStream;
+import java.net.MalformedURLException;
 import java.net.URL;
 
 public class NpmHandler implements RequestHandler {
@@ -18,20 +31,62 @@ public class NpmHandler implements RequestHandler {
 
 
     public static final String PREFIX = "/npm";
-    private static LockMap<String> lockMap = new LockMap<String>();
-    private final FileDownloader proxyService;
+    public static final String ABBREVIATED_METADATA = "application/vnd.npm.install-v1+json";
+    private final KeyedLock<String> downloadLocks = new KeyedLock<String>();
+    private final SingleFlightDownloader downloads;
+    private final SingleFlightDownloader abbreviatedDownloads;
     private final StaticHandler staticHandler;
     private final String npmRepositoryURL;
     private final File cacheFolder;
     private final RemoteDownloadPolicy remoteDownloadPolicy;
+    private final NegativeCache notFound;
+    private final PeerCluster cluster;
+    private final Counter hits;
+    private final Counter misses;
+    private final Counter staleHits;
+    private final Counter refreshes;
+    private final Counter fallbacks;
+    private final Counter notFoundHits;
+    private final Counter peerDownloads;
+    private final Counter peerFailures;
 
-    public NpmHandler(FileDownloader proxyService, StaticHandler staticHandler, String npmRepositoryURL, File cacheFolder, RemoteDownloadPolicy remoteDownloadPolicy) {
-        this.proxyService = proxyService;
-        this.staticHandler = staticHandler;
-        this.remoteDownloadPolicy = remoteDownloadPolicy;
-        this.npmRepositoryURL = StringUtils.stripEnd(npmRepositoryURL, "/");
+    public NpmHandler(SingleFlightDownloader downloads, StaticHandler staticHandler, String npmRepositoryURL, File cacheFolder, RemoteDownloadPolicy remoteDownloadPolicy) {
+        this(new Builder(downloads, staticHandler, npmRepositoryURL, cacheFolder, remoteDownloadPolicy));
+    }
+
+    private NpmHandler(Builder builder) {
+        this.downloads = builder.downloads;
+        this.abbreviatedDownloads = builder.abbreviatedDownloads;
+        this.staticHandler = builder.staticHandler;
+        this.remoteDownloadPolicy = builder.remoteDownloadPolicy;
+        this.notFound = builder.notFound;
+        this.cluster = builder.cluster;
+        this.npmRepositoryURL = StringUtils.stripEnd(builder.npmRepositoryURL, "/");
+
+        this.cacheFolder = builder.cacheFolder;
+        Metrics metrics = builder.metrics;
 
-        this.cacheFolder = cacheFolder;
+        String help = "Requests for cached files by whether they were a hit, a miss, a stale hit that was refreshed in the background, "
+                + "a refresh that was waited for, a fallback to the cached copy after a failed download, "
+                + "or for a file the registry recently said does not exist";
+        this.hits = metrics.counter("npm_cache_requests_total", help, "result", "hit");
+        this.misses = metrics.counter("npm_cache_requests_total", help, "result", "miss");
+        this.staleHits = metrics.counter("npm_cache_requests_total", help, "result", "stale");
+        this.refreshes = metrics.counter("npm_cache_requests_total", help, "result", "refresh");
+        this.fallbacks = metrics.counter("npm_cache_requests_total", help, "result", "fallback");
+        this.notFoundHits = metrics.counter("npm_cache_requests_total", help, "result", "notfound");
+        this.peerDownloads = metrics.counter("npm_peer_downloads_total", "Files downloaded from the server in the cluster that owns them, rather than from the registry");
+        this.peerFailures = metrics.counter("npm_peer_download_failures_total", "Downloads from the server in the cluster that owns the file that failed, so the registry was asked instead");
+        metrics.counterFunction("npm_download_lock_contended_total", "Times a request waited for another to decide whether to download the same file", new Gauge() {
+            public double getValue() {
+                return downloadLocks.getContendedCount();
+            }
+        });
+        metrics.counterFunction("npm_download_lock_wait_seconds_total", "Time requests spent waiting for others to decide whether to download the same file", new Gauge() {
+            public double getValue() {
+                return downloadLocks.getWaitNanos() / 1e9;
+            }
+        });
     }
 
     @Override
@@ -44,32 +99,294 @@ public class NpmHandler implements RequestHandler {
         String remotePath = request.getTarget().substring(PREFIX.length());
 
         String localPath = getLocalPathTreatingAPICallsAsJSONFiles(remotePath);
+        if (CacheFiles.isInternalFile(localPath)) {
+            throw new ResourceNotFoundException(request.getTarget());
+        }
 	    String etag = request.getValue("If-None-Match");
+        boolean acceptsGzip = Gzip.isAccepted(request.getValue("Accept-Encoding"));
+        // a request from another server is never passed on again, so requests cannot go round in circles
+        String peer = (cluster == null || request.getValue(PeerCluster.PEER_HEADER) != null) ? null : cluster.ownerOf(remotePath);
 
-        synchronized (lockMap.get(localPath)) {
-            if (remoteDownloadPolicy.shouldDownload(localPath)) {
-                URL source = new URL(npmRepositoryURL + remotePath);
-                try {
-                    proxyService.fetch(source, new File(cacheFolder, localPath));
-                } catch (Exception e) {
-                    if (staticHandler.canHandle(localPath)) {
-                        log.warn("Failed to download " + source + " but it's not a huge problem as the local cached copy can be used. Error was: " + e.getMessage());
-                        staticHandler.streamFileToResponse(localPath, etag, response);
-                        return;
-                    } else {
-                        throw e;
-                    }
+        if (isImmutable(localPath)) {
+            // set first because the headers are sent with the file
+            response.setValue(LoggingWebContainer.CACHE_RESULT_HEADER, "hit");
+            if (staticHandler.streamFileIfExists(localPath, etag, acceptsGzip, response)) {
+                // a cached tarball is never out of date, so there is nothing to decide and no lock is needed
+                hits.increment();
+                return;
+            }
+            response.setValue(LoggingWebContainer.CACHE_RESULT_HEADER, "miss");
+        }
+        if (abbreviatedDownloads != null && !isImmutable(localPath) && wantsAbbreviatedMetadata(request.getValue("Accept"))) {
+            // the full packument has everything the abbreviated one has, so it can always be sent instead
+            try {
+                if (serve(remotePath, CacheFiles.abbreviatedPath(localPath), abbreviatedDownloads, etag, acceptsGzip, response, peer)) {
+                    return;
+                }
+            } catch (ResourceNotFoundException e) {
+                throw e;
+            } catch (Exception e) {
+                log.info("Could not get the abbreviated packument for " + remotePath + " so the full one will be sent. Error was: " + e.getMessage());
+            }
+        }
+        serve(remotePath, localPath, downloads, etag, acceptsGzip, response, peer);
+    }
+
+    /**
+     * Sends the cached file, downloading it first if it needs to be.
+     *
+     * @param peer The server in the cluster to download the file from, or null to download it from the registry
+     * @return False if the file is not cached and could not be downloaded
+     */
+    private boolean serve(String remotePath, String localPath, SingleFlightDownloader downloads, String etag, boolean acceptsGzip, Response response, String peer) throws Exception {
+        if (notFound.isNotFound(localPath)) {
+            // the same as when a download fails: a cached copy is better than nothing
+            if (staticHandler.canHandle(localPath)) {
+                recordCacheResult(fallbacks, "fallback", response);
+                staticHandler.streamFileToResponse(localPath, etag, acceptsGzip, response);
+                return true;
+            }
+            recordCacheResult(notFoundHits, "notfound", response);
+            throw new ResourceNotFoundException(PREFIX + remotePath);
+        }
+
+        URL source = sourceOf(remotePath, peer);
+        InFlightDownload download = null;
+        boolean refreshingInBackground = false;
+        if (remoteDownloadPolicy.shouldDownload(localPath)) {
+            download = startDownload(source, localPath, downloads);
+        } else if (remoteDownloadPolicy.shouldRefreshInBackground(localPath)) {
+            downloads.refreshInBackground(source, new File(cacheFolder, localPath));
+            refreshingInBackground = true;
+        }
 
+        if (download != null) {
+            boolean cached = !isImmutable(localPath) && staticHandler.canHandle(localPath);
+            InputStream inProgress = null;
+            try {
+                if (shouldStreamWhileDownloading(cached, download)) {
+                    inProgress = download.openStream();
+                } else {
+                    download.awaitCompletion();
                 }
+            } catch (Exception e) {
+                if (e instanceof ResourceNotFoundException) {
+                    notFound.notFound(localPath);
+                }
+                if (staticHandler.canHandle(localPath)) {
+                    log.warn("Failed to download " + source + " but it's not a huge problem as the local cached copy can be used. Error was: " + e.getMessage());
+                    recordCacheResult(fallbacks, "fallback", response);
+                    staticHandler.streamFileToResponse(localPath, etag, acceptsGzip, response);
+                    return true;
+                } else if (peer != null && !(e instanceof ResourceNotFoundException)) {
+                    log.warn("Failed to download " + source + " from the server that owns it, so it will be downloaded from the registry instead. Error was: " + e.getMessage());
+                    peerFailures.increment();
+                    return serve(remotePath, localPath, downloads, etag, acceptsGzip, response, null);
+                } else {
+                    throw e;
+                }
+            }
+            if (peer != null) {
+                peerDownloads.increment();
+            }
+            if (cached) {
+                recordCacheResult(refreshes, "refresh", response);
+            } else {
+                recordCacheResult(misses, "miss", response);
+            }
+            if (inProgress != null) {
+                staticHandler.streamToResponse(localPath, inProgress, acceptsGzip, response);
+                return true;
             }
         }
 
         if (staticHandler.canHandle(localPath)) {
-            staticHandler.streamFileToResponse(localPath, etag, response);
+            Counter counter = null;
+            if (download == null) {
+                counter = refreshingInBackground ? staleHits : hits;
+                response.setValue(LoggingWebContainer.CACHE_RESULT_HEADER, refreshingInBackground ? "stale" : "hit");
+            }
+            try {
+                staticHandler.streamFileToResponse(localPath, etag, acceptsGzip, response);
+            } catch (FileNotFoundException e) {
+                // something other than this server deleted it after it was looked up, so nothing has been sent
+                if (download == null && !staticHandler.canHandle(localPath)) {
+                    return serve(remotePath, localPath, downloads, etag, acceptsGzip, response, peer);
+                }
+                throw e;
+            }
+            if (counter != null) {
+                counter.increment();
+            }
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Downloads a file into the cache, as a request for it would, unless it is already cached and up to date.
+     * Blocks until the download has finished.
+     *
+     * @param remotePath  The path of the file in the registry, e.g. /commander or /commander/-/commander-0.6.1.tgz
+     * @param abbreviated If true, the abbreviated version of a packument is downloaded, which is what installs ask for
+     * @return False if nothing needed to be downloaded
+     */
+    public boolean prefetch(String remotePath, boolean abbreviated) throws Exception {
+        String localPath = getLocalPathTreatingAPICallsAsJSONFiles(remotePath);
+        if (abbreviated && abbreviatedDownloads != null && !isImmutable(localPath)) {
+            return prefetch(remotePath, CacheFiles.abbreviatedPath(localPath), abbreviatedDownloads, ownerOf(remotePath));
+        }
+        return prefetch(remotePath, localPath, downloads, ownerOf(remotePath));
+    }
+
+    private boolean prefetch(String remotePath, String localPath, SingleFlightDownloader downloads, String peer) throws Exception {
+        if (notFound.isNotFound(localPath)) {
+            throw new ResourceNotFoundException(PREFIX + remotePath);
+        }
+        URL source = sourceOf(remotePath, peer);
+        InFlightDownload download = remoteDownloadPolicy.shouldDownload(localPath) ? startDownload(source, localPath, downloads) : null;
+        if (download == null) {
+            return false;
         }
+        try {
+            download.awaitCompletion();
+        } catch (ResourceNotFoundException e) {
+            notFound.notFound(localPath);
+            throw e;
+        } catch (Exception e) {
+            if (peer == null) {
+                throw e;
+            }
+            log.warn("Failed to download " + source + " from the server that owns it, so it will be downloaded from the registry instead. Error was: " + e.getMessage());
+            peerFailures.increment();
+            return prefetch(remotePath, localPath, downloads, null);
+        }
+        if (peer != null) {
+            peerDownloads.increment();
+        }
+        return true;
+    }
+
+    /**
+     * @return Where a file would be downloaded from: the server in the cluster that owns it, or the registry
+     */
+    public URL sourceOf(String remotePath) throws MalformedURLException {
+        return sourceOf(remotePath, ownerOf(remotePath));
+    }
+
+    private URL sourceOf(String remotePath, String peer) throws MalformedURLException {
+        return new URL(((peer == null) ? npmRepositoryURL : peer + PREFIX) + remotePath);
+    }
+
+    private String ownerOf(String remotePath) {
+        return (cluster == null) ? null : cluster.ownerOf(remotePath);
+    }
+
+    /**
+     * Downloads are published with an atomic rename so cached files can be read without locking. The lock
+     * is only taken to decide whether to download, and is not held for the download itself.
+     *
+     * @return The download, or null if another request downloaded the file while this one waited for the lock
+     */
+    private InFlightDownload startDownload(URL source, String localPath, SingleFlightDownloader downloads) {
+        downloadLocks.lock(localPath);
+        try {
+            // another request may have finished downloading it while this one was waiting for the lock
+            if (remoteDownloadPolicy.shouldDownload(localPath)) {
+                return downloads.fetch(source, new File(cacheFolder, localPath));
+            }
+            return null;
+        } finally {
+            downloadLocks.unlock(localPath);
+        }
+    }
+
+    private static void recordCacheResult(Counter counter, String result, Response response) {
+        counter.increment();
+        response.setValue(LoggingWebContainer.CACHE_RESULT_HEADER, result);
+    }
+
+    /**
+     * Clients are sent the bytes of files that are not cached yet as they are downloaded. Files that are
+     * already cached are only being refreshed, so clients wait for the download to finish, which means the
+     * cached copy can still be sent if the download fails. Cached tarballs are sent before anything is
+     * downloaded, so any tarball being downloaded is one that is not cached.
+     */
+    private static boolean shouldStreamWhileDownloading(boolean cached, InFlightDownload download) {
+        return !cached && !download.isComplete();
+    }
+
+    private static boolean wantsAbbreviatedMetadata(String accept) {
+        return accept != null && accept.toLowerCase().contains(ABBREVIATED_METADATA);
+    }
+
+    private static boolean isImmutable(String localPath) {
+        return localPath.contains("/-/");
     }
 
     private String getLocalPathTreatingAPICallsAsJSONFiles(String path) {
         return (path.contains("/-/") ? path : path + ".json");
     }
+    /**
+     * Creates handlers that use any of the optional parts, which the short constructor leaves out.
+     */
+    public static class Builder {
+        private final SingleFlightDownloader downloads;
+        private final StaticHandler staticHandler;
+        private final String npmRepositoryURL;
+        private final File cacheFolder;
+        private final RemoteDownloadPolicy remoteDownloadPolicy;
+        private SingleFlightDownloader abbreviatedDownloads;
+        private Metrics metrics = new Metrics();
+        private NegativeCache notFound = new NegativeCache(0, 0);
+        private PeerCluster cluster;
+
+        public Builder(SingleFlightDownloader downloads, StaticHandler staticHandler, String npmRepositoryURL, File cacheFolder, RemoteDownloadPolicy remoteDownloadPolicy) {
+            this.downloads = downloads;
+            this.staticHandler = staticHandler;
+            this.npmRepositoryURL = npmRepositoryURL;
+            this.cacheFolder = cacheFolder;
+            this.remoteDownloadPolicy = remoteDownloadPolicy;
+        }
+
+        /**
+         * Downloads the abbreviated versions of packuments, which clients ask for with an Accept header. If
+         * not set, clients are always sent full packuments.
+         */
+        public Builder abbreviatedDownloads(SingleFlightDownloader abbreviatedDownloads) {
+            this.abbreviatedDownloads = abbreviatedDownloads;
+            return this;
+        }
+
+        /**
+         * Where the number of cache hits and misses, and the time spent waiting for other requests to decide
+         * whether to download, are recorded
+         */
+        public Builder metrics(Metrics metrics) {
+            this.metrics = metrics;
+            return this;
+        }
+
+        /**
+         * Where files that the registry said do not exist are remembered, so they are not asked for again until
+         * the entry expires. If not set, nothing is remembered.
+         */
+        public Builder notFound(NegativeCache notFound) {
+            this.notFound = notFound;
+            return this;
+        }
+
+        /**
+         * The servers that share out the packages between them, so that files owned by another server are
+         * downloaded from it rather than from the registry. If not set, everything is downloaded from the registry.
+         */
+        public Builder cluster(PeerCluster cluster) {
+            this.cluster = cluster;
+            return this;
+        }
+
+        public NpmHandler build() {
+            return new NpmHandler(this);
+        }
+    }
 }
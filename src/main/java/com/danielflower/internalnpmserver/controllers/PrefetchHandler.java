@@ -0,0 +1,290 @@
+package com.danielflower.internalnpmserver.controllers;
+
+import com.danielflower.internalnpmserver.metrics.Counter;
+import com.danielflower.internalnpmserver.metrics.Metrics;
+import com.danielflower.internalnpmserver.services.RoutingUpstreamClient;
+import com.danielflower.internalnpmserver.webserver.RequestHandler;
+import com.danielflower.internalnpmserver.webserver.ResourceNotFoundException;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.BoundedInputStream;
+import org.simpleframework.http.Request;
+import org.simpleframework.http.Response;
+
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Warms the cache with every package in a <code>package-lock.json</code> or <code>npm-shrinkwrap.json</code>,
+ * which is posted as the body of the request, e.g.
+ * <pre>
+ * curl --data-binary @package-lock.json http://localhost:9100/prefetch
+ * </pre>
+ * The abbreviated packument and tarball of each package that is not already cached are downloaded in the same
+ * way as when they are requested by an install, several at a time. A line is sent for each file as soon as it
+ * has finished, followed by a summary.
+ * <p>
+ * Each registry or server has its own queue of files, and a file is only given to a thread once fewer than the
+ * maximum number of files are being downloaded from its host, so a slow registry does not hold up the others.
+ */
+public class PrefetchHandler implements RequestHandler {
+
+    public static final String PATH = "/prefetch";
+    public static final long DEFAULT_MAX_LOCKFILE_BYTES = 32 * 1024 * 1024L;
+
+    // every version of the lockfile format has the URL of each package's tarball in a "resolved" field
+    private static final Pattern RESOLVED = Pattern.compile("\"resolved\"\\s*:\\s*\"([^\"]+)\"");
+    private static final Pattern TARBALL = Pattern.compile("/((?:@[^/]+/)?[^/@]+)/-/([^/?#]+\\.tgz)(?:[?#].*)?$");
+
+    private final NpmHandler npmHandler;
+    private final RoutingUpstreamClient routing;
+    private final Executor executor;
+    private final int connectionsPerHost;
+    private final long maxLockfileBytes;
+    private final ConcurrentMap<String, HostQueue> hosts = new ConcurrentHashMap<String, HostQueue>();
+    private final Counter fetched;
+    private final Counter cached;
+    private final Counter failed;
+
+    public PrefetchHandler(NpmHandler npmHandler, Executor executor, int connectionsPerHost, Metrics metrics) {
+        this(npmHandler, null, executor, connectionsPerHost, DEFAULT_MAX_LOCKFILE_BYTES, metrics);
+    }
+
+    /**
+     * @param routing            Decides which registry each file is downloaded from when there are mirrors or
+     *                           scoped registries, or null if every file is downloaded from the registry URL
+     * @param executor           Downloads the files. Its number of threads limits how many files are downloaded
+     *                           at once, across all prefetches.
+     * @param connectionsPerHost The most files downloaded at once from any one registry or server in the cluster
+     * @param maxLockfileBytes   Lockfiles bigger than this are rejected rather than read into memory
+     */
+    public PrefetchHandler(NpmHandler npmHandler, RoutingUpstreamClient routing, Executor executor, int connectionsPerHost, long maxLockfileBytes, Metrics metrics) {
+        this.npmHandler = npmHandler;
+        this.routing = routing;
+        this.executor = executor;
+        this.connectionsPerHost = connectionsPerHost;
+        this.maxLockfileBytes = maxLockfileBytes;
+        String help = "Files in prefetched lockfiles, by whether they were downloaded, were already cached, or failed";
+        this.fetched = metrics.counter("npm_prefetched_files_total", help, "result", "fetched");
+        this.cached = metrics.counter("npm_prefetched_files_total", help, "result", "cached");
+        this.failed = metrics.counter("npm_prefetched_files_total", help, "result", "failed");
+    }
+
+    @Override
+    public boolean canHandle(String path) {
+        return PATH.equals(path);
+    }
+
+    @Override
+    public void handle(Request request, Response response) throws Exception {
+        if (!"POST".equalsIgnoreCase(request.getMethod())) {
+            response.setCode(405);
+            response.setDescription("Method Not Allowed");
+            response.setValue("Allow", "POST");
+            IOUtils.closeQuietly(response.getOutputStream());
+            return;
+        }
+        byte[] lockfile = IOUtils.toByteArray(new BoundedInputStream(request.getInputStream(), maxLockfileBytes + 1));
+        if (lockfile.length > maxLockfileBytes) {
+            response.setCode(413);
+            response.setDescription("Request Entity Too Large");
+            response.setValue("Content-Type", "text/plain; charset=utf-8");
+            PrintWriter writer = new PrintWriter(new OutputStreamWriter(response.getOutputStream(), "UTF-8"));
+            writer.println("Lockfiles bigger than " + maxLockfileBytes + " bytes cannot be prefetched");
+            writer.close();
+            return;
+        }
+        List<String> paths = new ArrayList<String>(filesIn(new String(lockfile, "UTF-8")));
+
+        long start = System.nanoTime();
+        BlockingQueue<Result> results = new LinkedBlockingQueue<Result>();
+        for (String path : paths) {
+            Prefetch prefetch = new Prefetch(path, results);
+            try {
+                queueFor(hostFor(path)).add(prefetch);
+            } catch (MalformedURLException e) {
+                prefetch.finish(Result.Outcome.FAILED, e.getMessage());
+            }
+        }
+
+        response.setValue("Content-Type", "text/plain; charset=utf-8");
+        response.setValue("Cache-Control", "no-cache");
+        PrintWriter writer = new PrintWriter(new OutputStreamWriter(response.getOutputStream(), "UTF-8"));
+        try {
+            writer.println("Prefetching " + paths.size() + " files");
+            writer.flush();
+            int[] counts = new int[Result.Outcome.values().length];
+            for (int i = 0; i < paths.size(); i++) {
+                Result result = results.take();
+                counts[result.outcome.ordinal()]++;
+                writer.println(result);
+                writer.flush();
+            }
+            writer.println("Finished in " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + "ms: "
+                    + counts[Result.Outcome.FETCHED.ordinal()] + " fetched, " + counts[Result.Outcome.CACHED.ordinal()]
+                    + " already cached, " + counts[Result.Outcome.FAILED.ordinal()] + " failed");
+        } finally {
+            writer.close();
+        }
+    }
+
+    /**
+     * @return The registry paths of the packuments and tarballs of the packages in a lockfile, e.g. /commander and
+     * /commander/-/commander-0.6.1.tgz. Packages that are not from a registry, such as git dependencies, are skipped.
+     */
+    static Set<String> filesIn(String lockfile) {
+        Set<String> paths = new LinkedHashSet<String>();
+        Matcher resolved = RESOLVED.matcher(lockfile);
+        while (resolved.find()) {
+            Matcher tarball = TARBALL.matcher(resolved.group(1).replace("%2f", "/").replace("%2F", "/"));
+            if (tarball.find()) {
+                String name = tarball.group(1);
+                // clients ask for the packuments of scoped packages with the slash encoded
+                paths.add("/" + name.replace("/", "%2f"));
+                paths.add("/" + name + "/-/" + tarball.group(2));
+            }
+        }
+        return paths;
+    }
+
+    /**
+     * @return The host and port that the file is downloaded from, which is the server in the cluster that owns
+     * it, or the registry it is routed to
+     */
+    String hostFor(String path) throws MalformedURLException {
+        URL source = npmHandler.sourceOf(path);
+        return (routing == null) ? source.getAuthority() : routing.hostFor(source);
+    }
+
+    private HostQueue queueFor(String host) {
+        HostQueue queue = hosts.get(host);
+        if (queue == null) {
+            HostQueue created = new HostQueue();
+            queue = hosts.putIfAbsent(host, created);
+            if (queue == null) {
+                queue = created;
+            }
+        }
+        return queue;
+    }
+
+    /**
+     * The files waiting to be downloaded from one host. Files are passed to the executor as earlier ones from
+     * the same host finish, so no thread is ever left waiting for the host to be free.
+     */
+    private class HostQueue {
+        private final Queue<Prefetch> waiting = new LinkedList<Prefetch>();
+        private int running;
+
+        void add(Prefetch prefetch) {
+            synchronized (this) {
+                waiting.add(prefetch);
+            }
+            startWaiting();
+        }
+
+        void finished() {
+            synchronized (this) {
+                running--;
+            }
+            startWaiting();
+        }
+
+        private void startWaiting() {
+            while (true) {
+                final Prefetch next;
+                synchronized (this) {
+                    if (running >= connectionsPerHost || waiting.isEmpty()) {
+                        return;
+                    }
+                    next = waiting.remove();
+                    running++;
+                }
+                try {
+                    executor.execute(new Runnable() {
+                        public void run() {
+                            try {
+                                next.run();
+                            } finally {
+                                finished();
+                            }
+                        }
+                    });
+                } catch (RejectedExecutionException e) {
+                    synchronized (this) {
+                        running--;
+                    }
+                    next.finish(Result.Outcome.FAILED, "the server is stopping");
+                }
+            }
+        }
+    }
+
+    private class Prefetch implements Runnable {
+        private final String path;
+        private final BlockingQueue<Result> results;
+        private final long queued = System.nanoTime();
+
+        Prefetch(String path, BlockingQueue<Result> results) {
+            this.path = path;
+            this.results = results;
+        }
+
+        public void run() {
+            Result.Outcome outcome = Result.Outcome.FAILED;
+            String error = null;
+            try {
+                outcome = npmHandler.prefetch(path, true) ? Result.Outcome.FETCHED : Result.Outcome.CACHED;
+            } catch (ResourceNotFoundException e) {
+                error = "not found";
+            } catch (Throwable e) {
+                // anything that is not reported would leave the request waiting forever
+                error = e.getMessage();
+            }
+            finish(outcome, error);
+        }
+
+        void finish(Result.Outcome outcome, String error) {
+            (outcome == Result.Outcome.FETCHED ? fetched : outcome == Result.Outcome.CACHED ? cached : failed).increment();
+            results.add(new Result(path, outcome, error, System.nanoTime() - queued));
+        }
+    }
+
+    private static class Result {
+        enum Outcome {FETCHED, CACHED, FAILED}
+
+        private final String path;
+        private final Outcome outcome;
+        private final String error;
+        private final long nanos;
+
+        Result(String path, Outcome outcome, String error, long nanos) {
+            this.path = path;
+            this.outcome = outcome;
+            this.error = error;
+            this.nanos = nanos;
+        }
+
+        @Override
+        public String toString() {
+            return outcome.name().toLowerCase() + " " + path + " " + TimeUnit.NANOSECONDS.toMillis(nanos) + "ms"
+                    + (error == null ? "" : " " + error);
+        }
+    }
+}
@@ -3,12 +3,33 @@ package com.danielflower.internalnpmserver.controllers;
 import org.simpleframework.http.Response;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.Date;
 
 public interface StaticHandler {
     boolean canHandle(String path);
 
-    void streamFileToResponse(String path, String etagFromClient, Response resp) throws IOException;
+    /**
+     * @param acceptsGzip If true, files that are stored gzipped are sent as they are with a Content-Encoding
+     *                    of gzip. Otherwise they are decompressed as they are sent.
+     * @throws java.io.FileNotFoundException If the file has been deleted since it was looked up, in which case
+     *                                       nothing has been written to the response
+     */
+    void streamFileToResponse(String path, String etagFromClient, boolean acceptsGzip, Response resp) throws IOException;
+
+    /**
+     * Does the same as {@link #canHandle(String)} followed by {@link #streamFileToResponse(String, String, boolean, Response)}
+     * but only looks the file up once.
+     *
+     * @return False if there is no such file, in which case nothing has been written to the response
+     */
+    boolean streamFileIfExists(String path, String etagFromClient, boolean acceptsGzip, Response resp) throws IOException;
+
+    /**
+     * Streams the contents of a file that is still being downloaded, so it has no ETag or Last-Modified yet.
+     * The contents stream is closed once it has been written.
+     */
+    void streamToResponse(String path, InputStream contents, boolean acceptsGzip, Response resp) throws IOException;
 
 	Date dateCreated(String path);
 }
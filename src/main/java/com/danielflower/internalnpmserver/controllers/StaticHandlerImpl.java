@@ -1,34 +1,80 @@
 package com.danielflower.internalnpmserver.controllers;
 
+import com.danielflower.internalnpmserver.metrics.Counter;
+import com.danielflower.internalnpmserver.services.CacheFiles;
+import com.danielflower.internalnpmserver.services.FileStats;
+import com.danielflower.internalnpmserver.services.FileSystemStats;
+import com.danielflower.internalnpmserver.services.Gzip;
+import com.danielflower.internalnpmserver.services.StreamingReplacer;
 import com.danielflower.internalnpmserver.webserver.ContentTypeGuesser;
 import com.danielflower.internalnpmserver.webserver.RequestHandler;
-import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.IOUtils;
 import org.simpleframework.http.Request;
 import org.simpleframework.http.Response;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Collections;
 import java.util.Date;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
 
 public class StaticHandlerImpl implements StaticHandler, RequestHandler {
+	private static final Logger log = LoggerFactory.getLogger(StaticHandlerImpl.class);
 
 	private final File webroot;
 	private final String webServerEndPoint;
 	private final boolean offline;
 	private final String npmRepositoryURL;
 	private final ContentTypeGuesser contentTypeGuesser = new ContentTypeGuesser();
+	private final StreamingReplacer offlineReplacer;
+	private final FileStats stats;
+	// the last modified time of the version of each packument that its offline copy was made from
+	private final ConcurrentMap<String, Long> offlineCopies = new ConcurrentHashMap<String, Long>();
+	private final Counter bytesSent;
 
 	public StaticHandlerImpl(File folderToServeFrom, int port, String webServerHostName, boolean offline, String npmRepositoryURL) {
+		this(folderToServeFrom, port, webServerHostName, offline, npmRepositoryURL, new FileSystemStats(folderToServeFrom));
+	}
+
+	/**
+	 * @param stats Where the existence and last modified times of files are looked up
+	 */
+	public StaticHandlerImpl(File folderToServeFrom, int port, String webServerHostName, boolean offline, String npmRepositoryURL, FileStats stats) {
+		this(folderToServeFrom, port, webServerHostName, offline, npmRepositoryURL, stats, new Counter());
+	}
+
+	/**
+	 * @param bytesSent Counts the bytes of the bodies of responses, before any compression by the web server
+	 */
+	public StaticHandlerImpl(File folderToServeFrom, int port, String webServerHostName, boolean offline, String npmRepositoryURL, FileStats stats, Counter bytesSent) {
 		this.webroot = folderToServeFrom;
+		this.stats = stats;
+		this.bytesSent = bytesSent;
 		this.webServerEndPoint = "http://" +webServerHostName +":"  +port;
 		this.offline = offline;
 		this.npmRepositoryURL = npmRepositoryURL;
+		this.offlineReplacer = isOffline()
+				? new StreamingReplacer(Collections.singletonMap(npmRepositoryURL, webServerEndPoint))
+				: null;
 	}
 
 	@Override
 	public boolean canHandle(String path) {
+		return lastModified(path) != 0;
+	}
+
+	/**
+	 * @return 0 if there is no such file, or the path is not allowed
+	 */
+	long lastModified(String path) {
 		if (path.contains("..") || path.contains("~")) {
-			return false;
+			return 0;
 		}
 
 		int queryIndex = path.indexOf('?');
@@ -36,52 +82,279 @@ public class StaticHandlerImpl implements StaticHandler, RequestHandler {
 			path = path.substring(0, queryIndex);
 		}
 
-		File localFile = new File(webroot, path);
-		return localFile.isFile();
+		return stats.lastModified(path);
+	}
+
+	/**
+	 * @return The size of the file, which like its last modified time is looked up without asking the file system
+	 * when there is a cache index
+	 */
+	long length(String path) {
+		return stats.length(path);
 	}
 
 	@Override
 	public void handle(Request request, Response resp) throws Exception {
 		String path = request.getPath().getPath();
 		String etag = request.getValue("If-None-Match");
-		streamFileToResponse(path, etag, resp);
+		streamFileToResponse(path, etag, Gzip.isAccepted(request.getValue("Accept-Encoding")), resp);
 	}
 
 
 	@Override
-	public void streamFileToResponse(String path, String etagFromClient, Response resp) throws IOException {
-		final File localFile = new File(webroot, path);
-		String etag = String.valueOf(localFile.lastModified());
-		OutputStream out = resp.getOutputStream();
-		if (etag.equals(etagFromClient)) {
-			resp.setCode(304);
-			resp.setDescription("304 Not Modified");
-		} else {
+	public void streamFileToResponse(String path, String etagFromClient, boolean acceptsGzip, Response resp) throws IOException {
+		if (!sendFile(path, stats.lastModified(path), etagFromClient, acceptsGzip, resp)) {
+			throw new FileNotFoundException(fileFor(path) + " was deleted");
+		}
+	}
 
-			String mimeType = contentTypeGuesser.fromName(localFile.getName());
-			long time = System.currentTimeMillis();
+	@Override
+	public boolean streamFileIfExists(String path, String etagFromClient, boolean acceptsGzip, Response resp) throws IOException {
+		long lastModified = lastModified(path);
+		if (lastModified == 0) {
+			return false;
+		}
+		return sendFile(path, lastModified, etagFromClient, acceptsGzip, resp);
+	}
 
-			resp.setValue("Content-Type", mimeType);
-			resp.setDate("Date", time);
-			resp.setDate("Last-Modified", localFile.lastModified());
-			resp.setValue("ETag", String.valueOf(localFile.lastModified()));
+	/**
+	 * @return False if the file has been deleted since it was looked up, in which case nothing has been written
+	 * to the response
+	 */
+	private boolean sendFile(String path, long lastModified, String etagFromClient, boolean acceptsGzip, Response resp) throws IOException {
+		final File localFile = fileFor(path);
+		if (isNotModified(lastModified, etagFromClient)) {
+			setNotModified(resp);
+			IOUtils.closeQuietly(resp.getOutputStream());
+			return true;
+		}
 
-			if ("/robots.txt".equals(path) || "/favicon.ico".equals(path)) {
-				resp.setValue("Cache-Control", "max-age=604800, public");
-			} else {
-				resp.setValue("Cache-Control", "max-age=29030400, public");
+		InputStream in;
+		try {
+			in = openContents(path, localFile, lastModified);
+		} catch (FileNotFoundException e) {
+			// something other than this server may have deleted it, so the details remembered about it are wrong
+			stats.update(path);
+			if (stats.lastModified(path) != 0) {
+				throw e;
 			}
+			return false;
+		}
+		setFileHeaders(path, lastModified, resp);
+		try {
+			if (in instanceof FileInputStream) {
+				FileChannel channel = ((FileInputStream) in).getChannel();
+				boolean gzipped = Gzip.canBeStoredGzipped(path) && Gzip.isGzipped(channel);
+				if (!gzipped || acceptsGzip) {
+					if (gzipped) {
+						setGzipHeaders(resp);
+					}
+					transferFile(channel, resp);
+					return true;
+				}
+			}
+			sendContents(path, in, acceptsGzip, resp);
+			return true;
+		} finally {
+			IOUtils.closeQuietly(in);
+		}
+	}
+
+	/**
+	 * Sends a whole file with its exact Content-Length, so the response is not chunked. The file channel
+	 * writes straight to the response's channel rather than copying through a buffer on the heap.
+	 */
+	private void transferFile(FileChannel file, Response resp) throws IOException {
+		long size = file.size();
+		resp.setValue("Content-Length", String.valueOf(size));
+		WritableByteChannel out = resp.getByteChannel();
+		try {
+			long position = 0;
+			while (position < size) {
+				long sent = file.transferTo(position, size - position, out);
+				if (sent <= 0) {
+					throw new IOException("Only " + position + " of " + size + " bytes could be read");
+				}
+				position += sent;
+			}
+			bytesSent.add(position);
+		} finally {
+			IOUtils.closeQuietly(out);
+		}
+	}
 
-			if (path.endsWith(".json") && isOffline()) {
-				String contents = FileUtils.readFileToString(localFile, "UTF-8").replace(npmRepositoryURL, webServerEndPoint);
-				IOUtils.write(contents, out, "UTF-8");
+	@Override
+	public void streamToResponse(String path, InputStream contents, boolean acceptsGzip, Response resp) throws IOException {
+		setContentHeaders(path, resp);
+		try {
+			sendContents(path, contents, acceptsGzip, resp);
+		} finally {
+			IOUtils.closeQuietly(contents);
+		}
+	}
+
+	/**
+	 * Sends contents of unknown length, which may be gzipped, in an encoding the client accepts.
+	 */
+	void sendContents(String path, InputStream contents, boolean acceptsGzip, Response resp) throws IOException {
+		InputStream in = new BufferedInputStream(contents);
+		if (Gzip.canBeStoredGzipped(path) && Gzip.isGzipped(in)) {
+			if (acceptsGzip) {
+				setGzipHeaders(resp);
 			} else {
-				InputStream in = new FileInputStream(localFile);
-				IOUtils.copy(in, out);
-				IOUtils.closeQuietly(in);
+				in = new GZIPInputStream(in);
+			}
+		}
+		OutputStream out = resp.getOutputStream();
+		try {
+			bytesSent.add(IOUtils.copyLarge(in, out));
+		} finally {
+			IOUtils.closeQuietly(out);
+		}
+	}
+
+	/**
+	 * Sends contents that are in memory, which may be gzipped, in an encoding the client accepts.
+	 */
+	void sendBytes(String path, byte[] contents, boolean acceptsGzip, Response resp) throws IOException {
+		boolean gzipped = Gzip.canBeStoredGzipped(path) && Gzip.isGzipped(contents);
+		if (gzipped && !acceptsGzip) {
+			sendContents(path, new ByteArrayInputStream(contents), false, resp);
+			return;
+		}
+		if (gzipped) {
+			setGzipHeaders(resp);
+		}
+		resp.setValue("Content-Length", String.valueOf(contents.length));
+		OutputStream out = resp.getOutputStream();
+		try {
+			out.write(contents);
+			bytesSent.add(contents.length);
+		} finally {
+			IOUtils.closeQuietly(out);
+		}
+	}
+
+	private static void setGzipHeaders(Response resp) {
+		resp.setValue("Content-Encoding", "gzip");
+	}
+
+	File fileFor(String path) {
+		return new File(webroot, path);
+	}
+
+	static boolean isNotModified(long lastModified, String etagFromClient) {
+		return String.valueOf(lastModified).equals(etagFromClient);
+	}
+
+	static void setNotModified(Response resp) {
+		resp.setCode(304);
+		resp.setDescription("304 Not Modified");
+	}
+
+	void setFileHeaders(String path, long lastModified, Response resp) {
+		setContentHeaders(path, resp);
+		resp.setDate("Last-Modified", lastModified);
+		resp.setValue("ETag", String.valueOf(lastModified));
+	}
+
+	/**
+	 * Opens the bytes that should be sent for the file, which in offline mode is the rewritten copy of
+	 * packuments. The copy is made first if the file has changed since it was last made. If the copy cannot
+	 * be saved (e.g. the folder is read-only) the file is rewritten in memory instead.
+	 * <p>
+	 * Which version of each file has a current copy is remembered, so the file system is only asked about the
+	 * copy the first time each version is sent.
+	 *
+	 * @param lastModified The last modified time of the file, as looked up from the stats
+	 */
+	InputStream openContents(String path, File localFile, long lastModified) throws IOException {
+		if (!path.endsWith(".json") || !isOffline()) {
+			return new FileInputStream(localFile);
+		}
+		File offlineFile = CacheFiles.offlineFile(localFile);
+		Long copied = offlineCopies.get(path);
+		if (copied == null || copied != lastModified) {
+			if (offlineFile.lastModified() != lastModified) {
+				try {
+					createOfflineFile(localFile, offlineFile);
+				} catch (IOException e) {
+					log.warn("Could not save the offline copy of " + localFile + " so it will be rewritten on every request. Error was: " + e.getMessage());
+					ByteArrayOutputStream rewritten = new ByteArrayOutputStream();
+					rewriteForOffline(localFile, rewritten);
+					return new ByteArrayInputStream(rewritten.toByteArray());
+				}
 			}
+			offlineCopies.put(path, lastModified);
+		}
+		try {
+			return new FileInputStream(offlineFile);
+		} catch (FileNotFoundException e) {
+			if (!localFile.isFile()) {
+				throw e;
+			}
+			// the copy was deleted by something else, so it is made again
+			offlineCopies.remove(path);
+			return openContents(path, localFile, lastModified);
+		}
+	}
+
+	private void createOfflineFile(File localFile, File offlineFile) throws IOException {
+		long sourceLastModified = localFile.lastModified();
+		// each request makes its own temp file so that concurrent requests do not write over each other
+		File temp = File.createTempFile(offlineFile.getName() + ".", ".partial", offlineFile.getParentFile());
+		try {
+			rewriteForOffline(localFile, new BufferedOutputStream(new FileOutputStream(temp)));
+			if (!temp.setLastModified(sourceLastModified)) {
+				throw new IOException("Could not set the last modified time of " + temp);
+			}
+			CacheFiles.publish(temp, offlineFile);
+		} finally {
+			if (temp.exists() && !temp.delete()) {
+				log.warn("Could not delete " + temp);
+			}
+		}
+	}
+
+	/**
+	 * Writes the file with the registry URLs replaced, and closes the output. Gzipped files stay gzipped.
+	 */
+	private void rewriteForOffline(File localFile, OutputStream out) throws IOException {
+		InputStream in = new BufferedInputStream(new FileInputStream(localFile));
+		try {
+			boolean gzipped = Gzip.isGzipped(in);
+			if (gzipped) {
+				in = new GZIPInputStream(in);
+				out = new GZIPOutputStream(out);
+			}
+			OutputStream replacing = offlineReplacer.wrap(out);
+			try {
+				IOUtils.copy(in, replacing);
+			} finally {
+				replacing.close();
+			}
+		} finally {
+			IOUtils.closeQuietly(in);
+			IOUtils.closeQuietly(out);
+		}
+	}
+
+	private void setContentHeaders(String path, Response resp) {
+		String mimeType = contentTypeGuesser.fromName(path);
+		long time = System.currentTimeMillis();
+
+		resp.setValue("Content-Type", mimeType);
+		resp.setDate("Date", time);
+		if (Gzip.canBeStoredGzipped(path)) {
+			// packuments may be sent gzipped, and may be sent abbreviated if the Accept header asks for it
+			resp.setValue("Vary", "Accept, Accept-Encoding");
+		}
+
+		if ("/robots.txt".equals(path) || "/favicon.ico".equals(path)) {
+			resp.setValue("Cache-Control", "max-age=604800, public");
+		} else {
+			resp.setValue("Cache-Control", "max-age=29030400, public");
 		}
-		IOUtils.closeQuietly(out);
 	}
 
 	private boolean isOffline() {
@@ -90,7 +363,6 @@ public class StaticHandlerImpl implements StaticHandler, RequestHandler {
 
 	@Override
 	public Date dateCreated(String path) {
-		final File localFile = new File(webroot, path);
-		return new Date(localFile.lastModified());
+		return new Date(stats.lastModified(path));
 	}
 }
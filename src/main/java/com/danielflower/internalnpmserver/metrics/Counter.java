@@ -0,0 +1,35 @@
+package com.danielflower.internalnpmserver.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A count that only goes up. It is split into stripes that threads add to depending on their ID, so threads
+ * counting the same thing at the same time rarely update the same memory.
+ */
+public class Counter {
+    static final int STRIPES = 16;
+    // each stripe is a cache line apart from the next
+    private static final int PADDING = 8;
+
+    private final AtomicLongArray cells = new AtomicLongArray(STRIPES * PADDING);
+
+    public void increment() {
+        add(1);
+    }
+
+    public void add(long amount) {
+        cells.getAndAdd(stripe() * PADDING, amount);
+    }
+
+    public long get() {
+        long total = 0;
+        for (int i = 0; i < STRIPES; i++) {
+            total += cells.get(i * PADDING);
+        }
+        return total;
+    }
+
+    static int stripe() {
+        return (int) Thread.currentThread().getId() & (STRIPES - 1);
+    }
+}
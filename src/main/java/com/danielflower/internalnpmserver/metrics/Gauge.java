@@ -0,0 +1,8 @@
+package com.danielflower.internalnpmserver.metrics;
+
+/**
+ * A value that is read when the metrics are written, such as the number of downloads in progress.
+ */
+public interface Gauge {
+    double getValue();
+}
@@ -0,0 +1,100 @@
+package com.danielflower.internalnpmserver.metrics;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts how many durations fall into each of a fixed set of buckets. The buckets grow exponentially from
+ * 100 microseconds to a minute, so the error of any estimate is a fixed proportion of the value rather than
+ * a fixed amount. Like {@link Counter}, the counts are striped so that recording is lock-free and threads
+ * rarely contend.
+ */
+public class Histogram {
+
+    static final long[] UPPER_BOUNDS_NANOS = bounds(
+            0.0001, 0.00025, 0.0005, 0.001, 0.0025, 0.005, 0.01, 0.025, 0.05,
+            0.1, 0.25, 0.5, 1, 2.5, 5, 10, 25, 60);
+
+    // each stripe has a count for every bucket, one for durations over the largest bucket, and the sum
+    private static final int ROW = UPPER_BOUNDS_NANOS.length + 2;
+    private static final int SUM = ROW - 1;
+
+    private final AtomicLongArray cells = new AtomicLongArray(Counter.STRIPES * ROW);
+
+    public void record(long duration, TimeUnit unit) {
+        recordNanos(unit.toNanos(duration));
+    }
+
+    public void recordNanos(long nanos) {
+        int bucket = Arrays.binarySearch(UPPER_BOUNDS_NANOS, nanos);
+        if (bucket < 0) {
+            bucket = -bucket - 1;
+        }
+        int row = Counter.stripe() * ROW;
+        cells.getAndIncrement(row + bucket);
+        cells.getAndAdd(row + SUM, nanos);
+    }
+
+    /**
+     * @return The number of durations in each bucket, with the last being the durations over a minute
+     */
+    public long[] getBucketCounts() {
+        long[] counts = new long[UPPER_BOUNDS_NANOS.length + 1];
+        for (int stripe = 0; stripe < Counter.STRIPES; stripe++) {
+            for (int bucket = 0; bucket < counts.length; bucket++) {
+                counts[bucket] += cells.get(stripe * ROW + bucket);
+            }
+        }
+        return counts;
+    }
+
+    public long getCount() {
+        long count = 0;
+        for (long bucket : getBucketCounts()) {
+            count += bucket;
+        }
+        return count;
+    }
+
+    public long getSumNanos() {
+        long sum = 0;
+        for (int stripe = 0; stripe < Counter.STRIPES; stripe++) {
+            sum += cells.get(stripe * ROW + SUM);
+        }
+        return sum;
+    }
+
+    /**
+     * Estimates a percentile, e.g. 99 for the p99, as the upper bound of the bucket it falls in.
+     *
+     * @return The estimate in nanoseconds, 0 if nothing has been recorded, or Long.MAX_VALUE if it is over a minute
+     */
+    public long getPercentileNanos(double percentile) {
+        long[] counts = getBucketCounts();
+        long total = 0;
+        for (long count : counts) {
+            total += count;
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(total * percentile / 100.0);
+        long seen = 0;
+        for (int bucket = 0; bucket < UPPER_BOUNDS_NANOS.length; bucket++) {
+            seen += counts[bucket];
+            if (seen >= rank) {
+                return UPPER_BOUNDS_NANOS[bucket];
+            }
+        }
+        return Long.MAX_VALUE;
+    }
+
+    private static long[] bounds(double... seconds) {
+        long[] nanos = new long[seconds.length];
+        for (int i = 0; i < seconds.length; i++) {
+            nanos[i] = Math.round(seconds[i] * 1e9);
+        }
+        return nanos;
+    }
+}
@@ -0,0 +1,147 @@
+package com.danielflower.internalnpmserver.metrics;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.math.BigDecimal;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * Holds the server's metrics by name and labels, and writes them in the Prometheus text format.
+ * <p>
+ * Looking up a metric builds its label string, so code that records often should look its metrics up once
+ * and keep them. Recording a value never takes a lock.
+ */
+public class Metrics {
+
+    private static final String COUNTER = "counter";
+    private static final String HISTOGRAM = "histogram";
+    private static final String GAUGE = "gauge";
+
+    private final ConcurrentMap<String, Family> families = new ConcurrentSkipListMap<String, Family>();
+
+    /**
+     * @param labels Label names and values, e.g. "route", "NpmHandler", "code", "200"
+     */
+    public Counter counter(String name, String help, String... labels) {
+        return (Counter) family(name, help, COUNTER).get(labels);
+    }
+
+    public Histogram histogram(String name, String help, String... labels) {
+        return (Histogram) family(name, help, HISTOGRAM).get(labels);
+    }
+
+    /**
+     * Registers a counter whose count is kept elsewhere, and read when the metrics are written. The count must
+     * only ever go up. This replaces any such counter that already has the same name and labels.
+     */
+    public void counterFunction(String name, String help, Gauge count, String... labels) {
+        family(name, help, COUNTER).metrics.put(labelText(labels), count);
+    }
+
+    /**
+     * Registers a gauge, replacing any gauge that already has the same name and labels.
+     */
+    public void gauge(String name, String help, Gauge gauge, String... labels) {
+        family(name, help, GAUGE).metrics.put(labelText(labels), gauge);
+    }
+
+    private Family family(String name, String help, String type) {
+        Family family = families.get(name);
+        if (family == null) {
+            Family created = new Family(help, type);
+            family = families.putIfAbsent(name, created);
+            if (family == null) {
+                family = created;
+            }
+        }
+        if (!family.type.equals(type)) {
+            throw new IllegalArgumentException(name + " is a " + family.type + " so it cannot be used as a " + type);
+        }
+        return family;
+    }
+
+    public void writeTo(Writer out) throws IOException {
+        for (Map.Entry<String, Family> entry : families.entrySet()) {
+            String name = entry.getKey();
+            Family family = entry.getValue();
+            out.write("# HELP " + name + " " + family.help + "\n");
+            out.write("# TYPE " + name + " " + family.type + "\n");
+            for (Map.Entry<String, Object> metric : family.metrics.entrySet()) {
+                String labels = metric.getKey();
+                Object value = metric.getValue();
+                if (value instanceof Counter) {
+                    writeSample(out, name, labels, ((Counter) value).get());
+                } else if (value instanceof Gauge) {
+                    writeSample(out, name, labels, ((Gauge) value).getValue());
+                } else {
+                    writeHistogram(out, name, labels, (Histogram) value);
+                }
+            }
+        }
+        out.flush();
+    }
+
+    private static void writeHistogram(Writer out, String name, String labels, Histogram histogram) throws IOException {
+        long[] counts = histogram.getBucketCounts();
+        long cumulative = 0;
+        for (int bucket = 0; bucket < counts.length; bucket++) {
+            cumulative += counts[bucket];
+            String le = (bucket < Histogram.UPPER_BOUNDS_NANOS.length)
+                    ? BigDecimal.valueOf(Histogram.UPPER_BOUNDS_NANOS[bucket], 9).stripTrailingZeros().toPlainString()
+                    : "+Inf";
+            writeSample(out, name + "_bucket", withLabel(labels, "le", le), cumulative);
+        }
+        writeSample(out, name + "_sum", labels, histogram.getSumNanos() / 1e9);
+        writeSample(out, name + "_count", labels, cumulative);
+    }
+
+    private static void writeSample(Writer out, String name, String labels, long value) throws IOException {
+        out.write(name + labels + " " + value + "\n");
+    }
+
+    private static void writeSample(Writer out, String name, String labels, double value) throws IOException {
+        out.write(name + labels + " " + value + "\n");
+    }
+
+    static String labelText(String... labels) {
+        if (labels.length % 2 != 0) {
+            throw new IllegalArgumentException("Labels must be pairs of names and values");
+        }
+        String text = "";
+        for (int i = 0; i < labels.length; i += 2) {
+            text = withLabel(text, labels[i], labels[i + 1]);
+        }
+        return text;
+    }
+
+    private static String withLabel(String labels, String name, String value) {
+        String label = name + "=\"" + value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n") + "\"";
+        return labels.isEmpty() ? "{" + label + "}" : labels.substring(0, labels.length() - 1) + "," + label + "}";
+    }
+
+    private static class Family {
+        final String help;
+        final String type;
+        final ConcurrentMap<String, Object> metrics = new ConcurrentSkipListMap<String, Object>();
+
+        Family(String help, String type) {
+            this.help = help;
+            this.type = type;
+        }
+
+        Object get(String[] labels) {
+            String key = labelText(labels);
+            Object metric = metrics.get(key);
+            if (metric == null) {
+                Object created = type.equals(COUNTER) ? new Counter() : new Histogram();
+                metric = metrics.putIfAbsent(key, created);
+                if (metric == null) {
+                    metric = created;
+                }
+            }
+            return metric;
+        }
+    }
+}
@@ -0,0 +1,160 @@
+package com.danielflower.internalnpmserver.services;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * An in-memory cache that is limited by the total size of its values rather than by how many there are.
+ * <p>
+ * When the cache is full, a new value is only added if it has been asked for more often than the least
+ * recently used values it would push out (the TinyLFU admission policy). This means that a large value
+ * that is asked for once cannot flush out values that are asked for all the time. How often keys are
+ * asked for is tracked for keys that are not in the cache too, so a value that becomes popular gets in.
+ * <p>
+ * This is thread safe. Values are read without taking a lock. Adding and removing values takes a lock, and
+ * a read records the use of its key only if that lock is free, so hits never wait for each other. Under heavy
+ * load some uses are not recorded, which only makes the popularity and recency of keys a little less exact.
+ */
+public class ByteBoundedCache<K, V> {
+
+    private final long maxBytes;
+    private final ConcurrentMap<K, Entry<V>> values = new ConcurrentHashMap<K, Entry<V>>();
+    private final ReentrantLock lock = new ReentrantLock();
+    // the fields below are guarded by the lock
+    private final FrequencySketch sketch;
+    private final LinkedHashMap<K, Entry<V>> recency = new LinkedHashMap<K, Entry<V>>(16, 0.75f, true);
+    private volatile long bytes;
+    private volatile long invalidations;
+
+    /**
+     * @param maxBytes     The most that the sizes of all the values can add up to
+     * @param expectedKeys Roughly how many keys will be used, which sizes the frequency tracking
+     */
+    public ByteBoundedCache(long maxBytes, int expectedKeys) {
+        this.maxBytes = maxBytes;
+        this.sketch = new FrequencySketch(expectedKeys);
+    }
+
+    /**
+     * Returns the value for the key, or null if it is not cached, counting this as a use of the key.
+     */
+    public V get(K key) {
+        Entry<V> entry = values.get(key);
+        if (lock.tryLock()) {
+            try {
+                sketch.increment(key);
+                // moves it to the most recently used end
+                recency.get(key);
+            } finally {
+                lock.unlock();
+            }
+        }
+        return entry == null ? null : entry.value;
+    }
+
+    /**
+     * Returns the value for the key, or null if it is not cached, without counting it as a use of the key.
+     */
+    public V peek(K key) {
+        Entry<V> entry = values.get(key);
+        return entry == null ? null : entry.value;
+    }
+
+    /**
+     * Call this before loading a value, and pass the result to {@link #put(Object, Object, long, long)}.
+     */
+    public long getInvalidationCount() {
+        return invalidations;
+    }
+
+    /**
+     * Adds a value to the cache if there is room for it, or if it is used more often than the values that
+     * would be removed to make room.
+     *
+     * @param invalidationCount The value of {@link #getInvalidationCount()} from before the value was
+     *                          loaded. If anything has been invalidated since then, the value may already be
+     *                          out of date so it is not added.
+     * @return True if the value was added
+     */
+    public boolean put(K key, V value, long size, long invalidationCount) {
+        lock.lock();
+        try {
+            if (invalidationCount != invalidations || size > maxBytes) {
+                return false;
+            }
+            remove(key);
+
+            long needed = bytes + size - maxBytes;
+            if (needed > 0) {
+                int candidateFrequency = sketch.frequency(key);
+                List<K> victims = new ArrayList<K>();
+                long freed = 0;
+                for (Map.Entry<K, Entry<V>> entry : recency.entrySet()) {
+                    if (freed >= needed) {
+                        break;
+                    }
+                    if (sketch.frequency(entry.getKey()) >= candidateFrequency) {
+                        return false;
+                    }
+                    victims.add(entry.getKey());
+                    freed += entry.getValue().size;
+                }
+                for (K victim : victims) {
+                    remove(victim);
+                }
+            }
+
+            Entry<V> entry = new Entry<V>(value, size);
+            recency.put(key, entry);
+            values.put(key, entry);
+            bytes += size;
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Removes the value for the key, and stops any value for it that is currently being loaded from being added.
+     */
+    public void invalidate(K key) {
+        lock.lock();
+        try {
+            invalidations++;
+            remove(key);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getSizeInBytes() {
+        return bytes;
+    }
+
+    public int getEntryCount() {
+        return values.size();
+    }
+
+    private void remove(K key) {
+        Entry<V> removed = recency.remove(key);
+        if (removed != null) {
+            values.remove(key);
+            bytes -= removed.size;
+        }
+    }
+
+    private static class Entry<V> {
+        final V value;
+        final long size;
+
+        Entry(V value, long size) {
+            this.value = value;
+            this.size = size;
+        }
+    }
+}
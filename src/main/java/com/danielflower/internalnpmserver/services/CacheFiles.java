@@ -0,0 +1,111 @@
+package com.danielflower.internalnpmserver.services;
+
+import org.apache.commons.io.FilenameUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.UUID;
+
+/**
+ * Naming rules for the files the server keeps in the cache folder alongside the cached files themselves.
+ */
+public class CacheFiles {
+
+    private static final String VALIDATORS_SUFFIX = ".validators";
+    private static final String PARTIAL_SUFFIX = ".partial";
+    private static final String OFFLINE_SUFFIX = ".offline";
+    private static final String LOCK_SUFFIX = ".lock";
+    private static final String FAILOVER_PREFIX = ".failover-";
+    private static final String ABBREVIATED_FOLDER = "/.abbreviated";
+    private static final String INDEX_SNAPSHOT = ".cache-index";
+
+    private CacheFiles() {
+    }
+
+    /**
+     * The file holding the ETag and Last-Modified headers that the remote server sent with a cached file.
+     */
+    public static File validatorsFile(File cachedFile) {
+        return new File(cachedFile.getParentFile(), cachedFile.getName() + VALIDATORS_SUFFIX);
+    }
+
+    /**
+     * The file that a download is written to before it is published to the cached file.
+     */
+    public static File partialFile(File cachedFile) {
+        return new File(cachedFile.getParentFile(), cachedFile.getName() + PARTIAL_SUFFIX);
+    }
+
+    /**
+     * The copy of a cached file with its registry URLs rewritten for offline mode. It has the same last
+     * modified time as the cached file it was made from, so it is out of date when the times differ.
+     */
+    public static File offlineFile(File cachedFile) {
+        return new File(cachedFile.getParentFile(), cachedFile.getName() + OFFLINE_SUFFIX);
+    }
+
+    /**
+     * The file that a server creates while it downloads a cached file, so that other servers sharing the cache
+     * folder know not to download it too.
+     */
+    public static File lockFile(File cachedFile) {
+        return new File(cachedFile.getParentFile(), cachedFile.getName() + LOCK_SUFFIX);
+    }
+
+    /**
+     * A file of its own that a server downloads a cached file to when it gives up waiting for another server
+     * sharing the cache folder to download it. Each call returns a new name. NPM package names cannot start
+     * with a dot, so it cannot clash with a cached file.
+     */
+    public static File failoverFile(File cachedFile) {
+        return new File(cachedFile.getParentFile(), FAILOVER_PREFIX + UUID.randomUUID() + "-" + cachedFile.getName());
+    }
+
+    /**
+     * The path of the abbreviated version of a packument, which only has the fields needed to install a
+     * package. NPM package names cannot start with a dot, so this folder cannot clash with a package.
+     */
+    public static String abbreviatedPath(String packumentPath) {
+        return ABBREVIATED_FOLDER + packumentPath;
+    }
+
+    /**
+     * The file that the index of the cache folder is saved to when the server stops.
+     */
+    public static File indexSnapshotFile(File cacheFolder) {
+        return new File(cacheFolder, INDEX_SNAPSHOT);
+    }
+
+    /**
+     * Moves a completely written partial file over the cached file. On systems that support it this is an
+     * atomic rename, so readers see either the complete old version or the complete new version. Readers
+     * that already have the old version open keep reading it.
+     */
+    public static void publish(File partialFile, File cachedFile) throws IOException {
+        if (partialFile.renameTo(cachedFile)) {
+            return;
+        }
+        // Windows will not rename over an existing file, so there is a brief moment where there is no file
+        if (cachedFile.delete() && partialFile.renameTo(cachedFile)) {
+            return;
+        }
+        throw new IOException("Could not move " + partialFile.getCanonicalPath() + " to " + cachedFile.getCanonicalPath());
+    }
+
+    /**
+     * Returns true if the path is one of the server's own files rather than something from the NPM registry.
+     */
+    public static boolean isInternalFile(String path) {
+        return path.startsWith(ABBREVIATED_FOLDER + "/") || isWorkingFile(path);
+    }
+
+    /**
+     * Returns true if the path is a file that the server keeps alongside the cached files, rather than a
+     * cached file.
+     */
+    public static boolean isWorkingFile(String path) {
+        return path.endsWith(VALIDATORS_SUFFIX) || path.endsWith(PARTIAL_SUFFIX) || path.endsWith(OFFLINE_SUFFIX)
+                || path.endsWith(LOCK_SUFFIX) || path.endsWith(INDEX_SNAPSHOT)
+                || FilenameUtils.getName(path).startsWith(FAILOVER_PREFIX);
+    }
+}
@@ -0,0 +1,315 @@
+package com.danielflower.internalnpmserver.services;
+
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps the size and last modified time of every file in the cache folder in memory, so that requests
+ * for cached files do not need to ask the file system about them. It also records when and how often
+ * each file is used, so that the least useful files can be removed when the cache gets too big.
+ * <p>
+ * The index is kept up to date by listening to downloads, so it relies on the downloader being the only
+ * thing that changes the cache folder while the server is running. Files that are not in the index are
+ * looked up on the file system and added if they exist. Files that are deleted by anything else are
+ * noticed when they cannot be opened, and are then read again with {@link #update(String)}.
+ */
+public class CacheIndex implements FileStats, DownloadListener {
+    private static final Logger log = LoggerFactory.getLogger(CacheIndex.class);
+
+    private static final int SNAPSHOT_VERSION = 2;
+    private static final int MAX_ACCESS_COUNT = 1000;
+
+    private final File folder;
+    private final String folderPath;
+    private final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+    private final AtomicLong totalBytes = new AtomicLong();
+    private volatile boolean complete;
+
+    public CacheIndex(File folder) {
+        this.folder = folder;
+        this.folderPath = folder.getAbsolutePath();
+    }
+
+    @Override
+    public long lastModified(String path) {
+        Entry entry = lookup(path);
+        return entry == null ? 0 : entry.lastModified;
+    }
+
+    @Override
+    public long length(String path) {
+        Entry entry = lookup(path);
+        return entry == null ? 0 : entry.length;
+    }
+
+    /**
+     * Records that a file has been sent to a client.
+     */
+    public void recordAccess(String path) {
+        Entry entry = lookup(path);
+        if (entry != null) {
+            entry.accessed(System.currentTimeMillis());
+        }
+    }
+
+    public int getFileCount() {
+        return entries.size();
+    }
+
+    /**
+     * The total size of all the files in the index.
+     */
+    public long getTotalBytes() {
+        return totalBytes.get();
+    }
+
+    /**
+     * Returns true once every file in the folder has been added, either by building the index or by loading
+     * a snapshot.
+     */
+    public boolean isComplete() {
+        return complete;
+    }
+
+    File getFolder() {
+        return folder;
+    }
+
+    Map<String, Entry> getEntries() {
+        return Collections.unmodifiableMap(entries);
+    }
+
+    @Override
+    public void downloaded(File destination) {
+        String absolutePath = destination.getAbsolutePath();
+        // the separator stops files in a sibling folder whose name starts with this one's from matching
+        if (absolutePath.startsWith(folderPath + File.separator)) {
+            String path = absolutePath.substring(folderPath.length());
+            update(path);
+            recordAccess(path);
+        }
+    }
+
+    /**
+     * Reads the details of the file from the file system again, e.g. after it has been changed or deleted.
+     */
+    @Override
+    public void update(String path) {
+        String key = key(path);
+        Entry entry = read(new File(folder, key));
+        Entry previous = (entry == null) ? entries.remove(key) : entries.put(key, entry);
+        if (previous != null) {
+            totalBytes.addAndGet(-previous.length);
+            if (entry != null) {
+                entry.copyAccessesFrom(previous);
+            }
+        }
+        if (entry != null) {
+            totalBytes.addAndGet(entry.length);
+        }
+    }
+
+    private Entry lookup(String path) {
+        String key = key(path);
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            entry = read(new File(folder, key));
+            if (entry != null) {
+                Entry existing = addIfAbsent(key, entry);
+                if (existing != null) {
+                    entry = existing;
+                }
+            }
+        }
+        return entry;
+    }
+
+    private Entry addIfAbsent(String key, Entry entry) {
+        Entry existing = entries.putIfAbsent(key, entry);
+        if (existing == null) {
+            totalBytes.addAndGet(entry.length);
+        }
+        return existing;
+    }
+
+    /**
+     * Adds every file in the folder to the index. Each folder at the top of the cache folder (which is one
+     * per package) is walked as a separate task on the executor.
+     */
+    public void build(ExecutorService executor) throws InterruptedException {
+        long start = System.currentTimeMillis();
+        File[] children = folder.listFiles();
+        if (children == null) {
+            complete = true;
+            return;
+        }
+        List<Callable<Object>> walks = new ArrayList<Callable<Object>>();
+        for (final File child : children) {
+            final String path = "/" + child.getName();
+            if (child.isDirectory()) {
+                walks.add(Executors.callable(new Runnable() {
+                    public void run() {
+                        walk(child, path);
+                    }
+                }));
+            } else {
+                add(child, path);
+            }
+        }
+        executor.invokeAll(walks);
+        complete = true;
+        log.info("Indexed " + entries.size() + " cached files in " + (System.currentTimeMillis() - start) + "ms");
+    }
+
+    private void walk(File directory, String path) {
+        File[] children = directory.listFiles();
+        if (children == null) {
+            return;
+        }
+        for (File child : children) {
+            String childPath = path + "/" + child.getName();
+            if (child.isDirectory()) {
+                walk(child, childPath);
+            } else {
+                add(child, childPath);
+            }
+        }
+    }
+
+    private void add(File file, String path) {
+        if (CacheFiles.isWorkingFile(path)) {
+            return;
+        }
+        Entry entry = read(file);
+        // a download may have updated it since this walk looked at it
+        if (entry != null) {
+            addIfAbsent(path, entry);
+        }
+    }
+
+    /**
+     * Writes the index to a file so that the next time the server starts it does not need to walk the
+     * cache folder.
+     */
+    public void saveSnapshot(File snapshot) throws IOException {
+        File partial = CacheFiles.partialFile(snapshot);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(partial)));
+        try {
+            out.writeInt(SNAPSHOT_VERSION);
+            for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+                Entry value = entry.getValue();
+                out.writeBoolean(true);
+                out.writeUTF(entry.getKey());
+                out.writeLong(value.lastModified);
+                out.writeLong(value.length);
+                out.writeLong(value.lastAccessed);
+                out.writeInt(value.accessCount);
+            }
+            out.writeBoolean(false);
+        } finally {
+            IOUtils.closeQuietly(out);
+        }
+        CacheFiles.publish(partial, snapshot);
+        log.info("Saved the index of " + entries.size() + " cached files to " + snapshot);
+    }
+
+    /**
+     * Loads an index saved by {@link #saveSnapshot(File)} and deletes the file, so that if the server does
+     * not stop cleanly the next start walks the cache folder rather than trusting an old snapshot.
+     *
+     * @return False if there was no usable snapshot
+     */
+    public boolean loadSnapshot(File snapshot) {
+        if (!snapshot.isFile()) {
+            return false;
+        }
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(snapshot)));
+            try {
+                if (in.readInt() != SNAPSHOT_VERSION) {
+                    return false;
+                }
+                while (in.readBoolean()) {
+                    String path = in.readUTF();
+                    Entry entry = new Entry(in.readLong(), in.readLong());
+                    entry.lastAccessed = in.readLong();
+                    entry.accessCount = in.readInt();
+                    addIfAbsent(path, entry);
+                }
+            } finally {
+                IOUtils.closeQuietly(in);
+            }
+            complete = true;
+            log.info("Loaded the index of " + entries.size() + " cached files from " + snapshot);
+            return true;
+        } catch (IOException e) {
+            log.warn("Could not load " + snapshot + " so the cache folder will be walked instead. Error was: " + e.getMessage());
+            entries.clear();
+            totalBytes.set(0);
+            return false;
+        } finally {
+            if (!snapshot.delete()) {
+                log.warn("Could not delete " + snapshot);
+            }
+        }
+    }
+
+    private static String key(String path) {
+        String key = path.replace('\\', '/');
+        return key.startsWith("/") ? key : "/" + key;
+    }
+
+    private static Entry read(File file) {
+        long lastModified = file.lastModified();
+        if (lastModified == 0 || !file.isFile()) {
+            return null;
+        }
+        return new Entry(lastModified, file.length());
+    }
+
+    static class Entry {
+        final long lastModified;
+        final long length;
+        // updated without locking, so concurrent accesses may occasionally not be counted
+        volatile long lastAccessed;
+        volatile int accessCount;
+
+        Entry(long lastModified, long length) {
+            this.lastModified = lastModified;
+            this.length = length;
+            this.lastAccessed = lastModified;
+        }
+
+        void accessed(long time) {
+            lastAccessed = time;
+            if (accessCount < MAX_ACCESS_COUNT) {
+                accessCount++;
+            }
+        }
+
+        void copyAccessesFrom(Entry previous) {
+            lastAccessed = Math.max(lastAccessed, previous.lastAccessed);
+            accessCount = previous.accessCount;
+        }
+
+        /**
+         * Halves the access count so that files that used to be popular are eventually forgotten.
+         */
+        void age() {
+            accessCount >>>= 1;
+        }
+    }
+}
@@ -0,0 +1,241 @@
+package com.danielflower.internalnpmserver.services;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Keeps the cache folder under a maximum size by removing the files that are least likely to be asked for
+ * again. It is run regularly; once the folder is bigger than the high watermark, files are removed until
+ * it is no bigger than the low watermark.
+ * <p>
+ * Files are ranked by when they were last used, with each recent use counting as if the file had been used
+ * an hour later, so that files that are used often outlast files that were used once. The few newest
+ * tarballs of a package count as used whenever its packument is, because those are the versions that
+ * installs resolve to.
+ * <p>
+ * Files that have been used recently are never removed, as whenever a file is being downloaded, refreshed
+ * or sent, it has just been used. A file is also only removed while holding the same lock that downloads of
+ * it hold, and only if it has not changed since it was ranked, so a file that was just downloaded is never
+ * removed, and the index is updated before any download can change the file again.
+ */
+public class CacheSweeper implements Runnable {
+    private static final Logger log = LoggerFactory.getLogger(CacheSweeper.class);
+
+    static final int PINNED_VERSIONS = 3;
+    static final long USE_WEIGHT_MILLIS = 60 * 60 * 1000L;
+    private static final int MAX_WEIGHTED_USES = 24;
+    private static final String TARBALL_FOLDER = "/-/";
+
+    private final CacheIndex index;
+    private final long highWatermarkBytes;
+    private final long lowWatermarkBytes;
+    private final long minIdleMillis;
+    private final KeyedLock<File> fileLocks;
+    private final List<DownloadListener> listeners = new CopyOnWriteArrayList<DownloadListener>();
+
+    public CacheSweeper(CacheIndex index, long highWatermarkBytes, long lowWatermarkBytes, long minIdleMillis) {
+        this(index, highWatermarkBytes, lowWatermarkBytes, minIdleMillis, new KeyedLock<File>());
+    }
+
+    /**
+     * @param minIdleMillis Files that have been used more recently than this are never removed
+     * @param fileLocks     The locks that the downloaders hold while downloading each file
+     */
+    public CacheSweeper(CacheIndex index, long highWatermarkBytes, long lowWatermarkBytes, long minIdleMillis, KeyedLock<File> fileLocks) {
+        this.index = index;
+        this.fileLocks = fileLocks;
+        this.highWatermarkBytes = highWatermarkBytes;
+        this.lowWatermarkBytes = Math.min(lowWatermarkBytes, highWatermarkBytes);
+        this.minIdleMillis = minIdleMillis;
+    }
+
+    /**
+     * Adds something to tell about each file that is removed, in the same way that downloads tell it about
+     * each file that changes, e.g. so that copies of the file kept in memory are forgotten.
+     */
+    public void addListener(DownloadListener listener) {
+        listeners.add(listener);
+    }
+
+    @Override
+    public void run() {
+        try {
+            sweep();
+        } catch (Exception e) {
+            // an exception would stop the scheduled executor from running this again
+            log.warn("Error while removing files from the cache", e);
+        }
+    }
+
+    /**
+     * @return The number of files removed
+     */
+    public int sweep() {
+        // until the index is complete the total size is too small, and files missing from it would never be removed
+        if (!index.isComplete() || index.getTotalBytes() <= highWatermarkBytes) {
+            return 0;
+        }
+        long start = System.currentTimeMillis();
+        long idleBefore = start - minIdleMillis;
+        int removed = 0;
+        long removedBytes = 0;
+        for (Candidate candidate : rank()) {
+            if (index.getTotalBytes() <= lowWatermarkBytes) {
+                break;
+            }
+            if (candidate.lastUsed() > idleBefore || candidate.entry.lastAccessed > idleBefore) {
+                continue;
+            }
+            if (remove(candidate)) {
+                removed++;
+                removedBytes += candidate.entry.length;
+            }
+        }
+        for (CacheIndex.Entry entry : index.getEntries().values()) {
+            entry.age();
+        }
+        log.info("Removed " + removed + " files (" + (removedBytes / 1024) + "KB) from the cache in "
+                + (System.currentTimeMillis() - start) + "ms. The cache is now " + (index.getTotalBytes() / 1024) + "KB");
+        if (index.getTotalBytes() > lowWatermarkBytes) {
+            log.warn("The cache is still bigger than it should be, because the rest of the files have been used recently");
+        }
+        return removed;
+    }
+
+    /**
+     * Returns the files in the order they should be removed.
+     */
+    List<Candidate> rank() {
+        Map<String, Long> packumentUses = new HashMap<String, Long>();
+        Map<String, List<Candidate>> tarballs = new HashMap<String, List<Candidate>>();
+        List<Candidate> candidates = new ArrayList<Candidate>();
+        for (Map.Entry<String, CacheIndex.Entry> e : index.getEntries().entrySet()) {
+            Candidate candidate = new Candidate(e.getKey(), e.getValue());
+            candidates.add(candidate);
+            String pkg = packageOf(candidate.path);
+            if (pkg == null) {
+                continue;
+            }
+            if (candidate.path.contains(TARBALL_FOLDER)) {
+                List<Candidate> versions = tarballs.get(pkg);
+                if (versions == null) {
+                    versions = new ArrayList<Candidate>();
+                    tarballs.put(pkg, versions);
+                }
+                versions.add(candidate);
+            } else {
+                Long previous = packumentUses.get(pkg);
+                packumentUses.put(pkg, Math.max(candidate.lastAccessed, previous == null ? 0 : previous));
+            }
+        }
+
+        for (Map.Entry<String, List<Candidate>> e : tarballs.entrySet()) {
+            Long packumentUsed = packumentUses.get(e.getKey());
+            if (packumentUsed == null) {
+                continue;
+            }
+            List<Candidate> versions = e.getValue();
+            // tarballs are downloaded when they are first installed, so the newest files are usually the newest versions
+            Collections.sort(versions, NEWEST_FIRST);
+            for (int i = 0; i < Math.min(PINNED_VERSIONS, versions.size()); i++) {
+                versions.get(i).pinnedUntil = packumentUsed;
+            }
+        }
+
+        Collections.sort(candidates, LEAST_USEFUL_FIRST);
+        return candidates;
+    }
+
+    private boolean remove(Candidate candidate) {
+        File file = new File(index.getFolder(), candidate.path);
+        fileLocks.lock(file);
+        try {
+            if (file.lastModified() != candidate.entry.lastModified) {
+                // it has been downloaded again since it was ranked
+                return false;
+            }
+            if (!file.delete()) {
+                log.warn("Could not delete " + file);
+                index.update(candidate.path);
+                return false;
+            }
+            deleteIfExists(CacheFiles.validatorsFile(file));
+            deleteIfExists(CacheFiles.offlineFile(file));
+            index.update(candidate.path);
+            for (DownloadListener listener : listeners) {
+                listener.downloaded(file);
+            }
+            return true;
+        } finally {
+            fileLocks.unlock(file);
+        }
+    }
+
+    private static void deleteIfExists(File file) {
+        if (file.exists() && !file.delete()) {
+            log.warn("Could not delete " + file);
+        }
+    }
+
+    /**
+     * The package that a cached file belongs to, e.g. "/@scope/name" for both "/@scope/name.json" and
+     * "/@scope/name/-/name-1.0.0.tgz", or null for files that aren't part of a package.
+     */
+    static String packageOf(String path) {
+        int tarballFolder = path.indexOf(TARBALL_FOLDER);
+        if (tarballFolder > 0) {
+            return path.substring(0, tarballFolder);
+        }
+        if (path.endsWith(".json")) {
+            String packument = path.startsWith(CacheFiles.abbreviatedPath("/"))
+                    ? path.substring(CacheFiles.abbreviatedPath("").length())
+                    : path;
+            return packument.substring(0, packument.length() - ".json".length());
+        }
+        return null;
+    }
+
+    static class Candidate {
+        final String path;
+        final CacheIndex.Entry entry;
+        // copied because sorting needs values that don't change while requests are using the file
+        final long lastAccessed;
+        final int accessCount;
+        long pinnedUntil;
+
+        Candidate(String path, CacheIndex.Entry entry) {
+            this.path = path;
+            this.entry = entry;
+            this.lastAccessed = entry.lastAccessed;
+            this.accessCount = entry.accessCount;
+        }
+
+        long lastUsed() {
+            return Math.max(lastAccessed, pinnedUntil);
+        }
+
+        long score() {
+            return lastUsed() + Math.min(accessCount, MAX_WEIGHTED_USES) * USE_WEIGHT_MILLIS;
+        }
+    }
+
+    private static final Comparator<Candidate> NEWEST_FIRST = new Comparator<Candidate>() {
+        public int compare(Candidate a, Candidate b) {
+            return compareLongs(b.entry.lastModified, a.entry.lastModified);
+        }
+    };
+
+    private static final Comparator<Candidate> LEAST_USEFUL_FIRST = new Comparator<Candidate>() {
+        public int compare(Candidate a, Candidate b) {
+            return compareLongs(a.score(), b.score());
+        }
+    };
+
+    private static int compareLongs(long a, long b) {
+        return a < b ? -1 : (a == b ? 0 : 1);
+    }
+}
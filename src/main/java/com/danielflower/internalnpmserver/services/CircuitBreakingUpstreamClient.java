@@ -0,0 +1,225 @@
+package com.danielflower.internalnpmserver.services;
+
+import com.danielflower.internalnpmserver.metrics.Counter;
+import com.danielflower.internalnpmserver.metrics.Gauge;
+import com.danielflower.internalnpmserver.metrics.Metrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.util.Map;
+
+/**
+ * Stops asking an NPM registry for anything while most recent requests to it have failed or been slow, so
+ * that requests fall back to cached copies straight away rather than each waiting to time out.
+ * <p>
+ * The outcomes of the last few requests are kept. When enough of them failed, the circuit opens and every
+ * request fails with an IOException without being sent. After a while one request is let through as a
+ * probe: if it works the circuit closes again, otherwise it stays open for another while.
+ * <p>
+ * A request fails if it throws, if the registry answers with a 5xx or 429, if reading the body throws, or
+ * if the response headers took longer than the slow call time. Not found is a normal answer.
+ */
+public class CircuitBreakingUpstreamClient implements UpstreamClient {
+    private static final Logger log = LoggerFactory.getLogger(CircuitBreakingUpstreamClient.class);
+
+    enum State {CLOSED, OPEN, HALF_OPEN}
+
+    private final UpstreamClient delegate;
+    private final String upstream;
+    private final int minimumCalls;
+    private final int failureRatePercent;
+    private final long slowCallNanos;
+    private final long openMillis;
+    private final Counter opened;
+    private final Counter rejected;
+
+    private final boolean[] failures;
+    private int calls;
+    private int next;
+    private int failureCount;
+    private State state = State.CLOSED;
+    private long openedAt;
+    private boolean probing;
+
+    public CircuitBreakingUpstreamClient(UpstreamClient delegate, int windowSize, int minimumCalls, int failureRatePercent, long slowCallMillis, long openMillis) {
+        this(delegate, windowSize, minimumCalls, failureRatePercent, slowCallMillis, openMillis, new Metrics(), "registry");
+    }
+
+    /**
+     * @param windowSize         How many of the most recent requests the failure rate is worked out from
+     * @param minimumCalls       How many requests must have been made before the circuit can open
+     * @param failureRatePercent The percentage of requests that must fail for the circuit to open
+     * @param slowCallMillis     Requests whose response headers take longer than this count as failures
+     * @param openMillis         How long the circuit stays open before a probe request is let through
+     * @param metrics            Where the state of the circuit, and how often it opened, are recorded
+     * @param upstream           The label the metrics are recorded with, to tell the circuits of different
+     *                           registries apart
+     */
+    public CircuitBreakingUpstreamClient(UpstreamClient delegate, int windowSize, int minimumCalls, int failureRatePercent, long slowCallMillis, long openMillis, Metrics metrics, String upstream) {
+        this.delegate = delegate;
+        this.failures = new boolean[windowSize];
+        this.minimumCalls = Math.min(minimumCalls, windowSize);
+        this.failureRatePercent = failureRatePercent;
+        this.slowCallNanos = slowCallMillis * 1000000L;
+        this.openMillis = openMillis;
+        this.upstream = upstream;
+        this.opened = metrics.counter("upstream_circuit_opened_total", "Times requests to an NPM registry were stopped because too many failed", "upstream", upstream);
+        this.rejected = metrics.counter("upstream_circuit_rejected_total", "Requests that were not sent to an NPM registry because its circuit was open", "upstream", upstream);
+        for (final State value : State.values()) {
+            metrics.gauge("upstream_circuit_state", "1 for the current state of the circuit in front of an NPM registry", new Gauge() {
+                public double getValue() {
+                    return getState() == value ? 1 : 0;
+                }
+            }, "upstream", upstream, "state", value.name().toLowerCase());
+        }
+    }
+
+    @Override
+    public UpstreamResponse get(URL url, Map<String, String> requestHeaders) throws IOException {
+        boolean probe = permit(url);
+        long start = System.nanoTime();
+        UpstreamResponse response = null;
+        try {
+            response = delegate.get(url, requestHeaders);
+        } finally {
+            if (response == null) {
+                record(false, probe);
+            }
+        }
+        int status = response.getStatus();
+        if (status >= 500 || status == 429 || System.nanoTime() - start > slowCallNanos) {
+            record(false, probe);
+            return response;
+        }
+        // the body can still fail, so the outcome is known when the response is closed
+        return new RecordingResponse(response, probe);
+    }
+
+    synchronized State getState() {
+        if (state == State.OPEN && System.currentTimeMillis() - openedAt >= openMillis) {
+            state = State.HALF_OPEN;
+        }
+        return state;
+    }
+
+    /**
+     * @return True if the request is the probe of a half open circuit
+     * @throws IOException If the request should not be sent
+     */
+    private synchronized boolean permit(URL url) throws IOException {
+        State current = getState();
+        if (current == State.CLOSED) {
+            return false;
+        }
+        if (current == State.HALF_OPEN && !probing) {
+            probing = true;
+            return true;
+        }
+        rejected.increment();
+        throw new IOException("Did not ask for " + url + " because too many recent requests to " + upstream + " failed");
+    }
+
+    private synchronized void record(boolean success, boolean probe) {
+        if (probe) {
+            probing = false;
+            if (success) {
+                log.info("A request to " + upstream + " worked, so requests will be sent to it again");
+                reset(State.CLOSED);
+            } else {
+                reset(State.OPEN);
+            }
+            return;
+        }
+        if (state != State.CLOSED) {
+            // it was sent before the circuit opened
+            return;
+        }
+        if (calls == failures.length) {
+            if (failures[next]) {
+                failureCount--;
+            }
+        } else {
+            calls++;
+        }
+        failures[next] = !success;
+        if (!success) {
+            failureCount++;
+        }
+        next = (next + 1) % failures.length;
+
+        if (calls >= minimumCalls && failureCount * 100 >= failureRatePercent * calls) {
+            log.warn(failureCount + " of the last " + calls + " requests to " + upstream + " failed, so no requests will be sent to it for "
+                    + openMillis + "ms and cached copies will be used instead");
+            opened.increment();
+            reset(State.OPEN);
+        }
+    }
+
+    private void reset(State newState) {
+        state = newState;
+        openedAt = System.currentTimeMillis();
+        calls = 0;
+        next = 0;
+        failureCount = 0;
+    }
+
+    private class RecordingResponse implements UpstreamResponse {
+        private final UpstreamResponse response;
+        private final boolean probe;
+        private boolean failed;
+        private boolean closed;
+
+        RecordingResponse(UpstreamResponse response, boolean probe) {
+            this.response = response;
+            this.probe = probe;
+        }
+
+        public int getStatus() {
+            return response.getStatus();
+        }
+
+        public String getHeader(String name) {
+            return response.getHeader(name);
+        }
+
+        public long getContentLength() {
+            return response.getContentLength();
+        }
+
+        public InputStream getBody() throws IOException {
+            return new FilterInputStream(response.getBody()) {
+                @Override
+                public int read() throws IOException {
+                    try {
+                        return super.read();
+                    } catch (IOException e) {
+                        failed = true;
+                        throw e;
+                    }
+                }
+
+                @Override
+                public int read(byte[] buffer, int offset, int length) throws IOException {
+                    try {
+                        return super.read(buffer, offset, length);
+                    } catch (IOException e) {
+                        failed = true;
+                        throw e;
+                    }
+                }
+            };
+        }
+
+        public void close() {
+            response.close();
+            if (!closed) {
+                closed = true;
+                record(!failed, probe);
+            }
+        }
+    }
+}
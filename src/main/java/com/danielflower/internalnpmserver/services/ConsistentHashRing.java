@@ -0,0 +1,61 @@
+package com.danielflower.internalnpmserver.services;
+
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Chooses which of several nodes owns a key, such that adding or removing a node only moves the keys that
+ * node gains or loses, rather than most keys as a plain modulo of the hash would.
+ * <p>
+ * Each node is put on a ring of hashes at many points, and a key belongs to the node at the first point after
+ * the key's hash. The hashes are MD5 so that every server, on any JVM, agrees on the owner of each key.
+ * Instances are immutable and can be shared between threads.
+ */
+public class ConsistentHashRing {
+
+    public static final int DEFAULT_POINTS_PER_NODE = 160;
+
+    private final TreeMap<Long, String> ring = new TreeMap<Long, String>();
+
+    public ConsistentHashRing(Collection<String> nodes) {
+        this(nodes, DEFAULT_POINTS_PER_NODE);
+    }
+
+    /**
+     * @param pointsPerNode How many places on the ring each node has. More places share the keys out more evenly.
+     */
+    public ConsistentHashRing(Collection<String> nodes, int pointsPerNode) {
+        if (nodes.isEmpty()) {
+            throw new IllegalArgumentException("There must be at least one node");
+        }
+        for (String node : nodes) {
+            for (int i = 0; i < pointsPerNode; i++) {
+                ring.put(hash(node + "#" + i), node);
+            }
+        }
+    }
+
+    public String ownerOf(String key) {
+        Map.Entry<Long, String> owner = ring.ceilingEntry(hash(key));
+        return (owner == null ? ring.firstEntry() : owner).getValue();
+    }
+
+    static long hash(String value) {
+        try {
+            byte[] digest = MessageDigest.getInstance("MD5").digest(value.getBytes("UTF-8"));
+            long hash = 0;
+            for (int i = 0; i < 8; i++) {
+                hash = (hash << 8) | (digest[i] & 0xff);
+            }
+            return hash;
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e); // every JVM has MD5
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
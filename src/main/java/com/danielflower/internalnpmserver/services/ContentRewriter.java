@@ -0,0 +1,25 @@
+package com.danielflower.internalnpmserver.services;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Changes the contents of downloaded files as they are written to the cache.
+ */
+public interface ContentRewriter {
+
+    ContentRewriter NONE = new ContentRewriter() {
+        @Override
+        public OutputStream rewrite(File destination, OutputStream out) {
+            return out;
+        }
+    };
+
+    /**
+     * Returns the stream that the contents of the destination file should be written to, which writes
+     * them on to the given stream. Closing the returned stream must close the given stream.
+     */
+    OutputStream rewrite(File destination, OutputStream out) throws IOException;
+
+}
@@ -0,0 +1,16 @@
+package com.danielflower.internalnpmserver.services;
+
+import java.io.File;
+
+/**
+ * Told whenever a download to the cache folder finishes successfully, and whenever the cache sweeper
+ * removes a file from it.
+ */
+public interface DownloadListener {
+
+    /**
+     * Called on the download thread after the destination has been written or revalidated, or on the sweeper
+     * thread after it has been deleted.
+     */
+    void downloaded(File destination);
+}
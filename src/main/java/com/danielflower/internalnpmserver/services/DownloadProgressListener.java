@@ -0,0 +1,15 @@
+package com.danielflower.internalnpmserver.services;
+
+import java.io.File;
+
+/**
+ * Told whenever more of a download has been written to its partial file, so that anything reading the
+ * partial file can carry on straight away.
+ */
+public interface DownloadProgressListener {
+
+    /**
+     * Called on the download thread after bytes have been flushed to the partial file of the destination.
+     */
+    void written(File destination);
+}
@@ -6,6 +6,11 @@ import java.net.URL;
 
 public interface FileDownloader {
 
-    void fetch(URL source, File destination) throws IOException;
+    /**
+     * Downloads the source to the destination file.
+     *
+     * @return True if new content was written, or false if the remote server said the cached copy is still current.
+     */
+    boolean fetch(URL source, File destination) throws IOException;
 
 }
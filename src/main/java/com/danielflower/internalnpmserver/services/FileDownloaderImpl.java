@@ -1,48 +1,239 @@
 package com.danielflower.internalnpmserver.services;
 
+import com.danielflower.internalnpmserver.metrics.Counter;
+import com.danielflower.internalnpmserver.metrics.Histogram;
+import com.danielflower.internalnpmserver.metrics.Metrics;
 import com.danielflower.internalnpmserver.webserver.ResourceNotFoundException;
+import org.apache.commons.io.FilenameUtils;
 import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.CountingInputStream;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.*;
+import java.net.HttpURLConnection;
 import java.net.Proxy;
 import java.net.URL;
-import java.net.URLConnection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.zip.GZIPInputStream;
 
 public class FileDownloaderImpl implements FileDownloader {
     private static final Logger log = LoggerFactory.getLogger(FileDownloaderImpl.class);
 
-    private final Proxy proxy;
+    private static final String ETAG = "ETag";
+    private static final String LAST_MODIFIED = "Last-Modified";
+    private static final int BUFFER_SIZE = 16 * 1024;
+
+    private final UpstreamClient client;
+    private final ContentRewriter rewriter;
+    private final Map<String, String> requestHeaders;
+    private final Metrics metrics;
+    // looked up once for each status, as looking up a metric builds its label text
+    private final ConcurrentMap<Integer, StatusMetrics> statusMetrics = new ConcurrentHashMap<Integer, StatusMetrics>();
+    private final List<DownloadProgressListener> progressListeners = new CopyOnWriteArrayList<DownloadProgressListener>();
 
     public FileDownloaderImpl(Proxy proxy) {
-        this.proxy = proxy;
+        this(new HttpURLConnectionUpstreamClient(proxy), ContentRewriter.NONE);
+    }
+
+    public FileDownloaderImpl(UpstreamClient client, ContentRewriter rewriter) {
+        this(client, rewriter, new HashMap<String, String>());
+    }
+
+    /**
+     * @param requestHeaders Headers sent with every request, e.g. an Accept header asking for a particular
+     *                       format of a document.
+     */
+    public FileDownloaderImpl(UpstreamClient client, ContentRewriter rewriter, Map<String, String> requestHeaders) {
+        this(client, rewriter, requestHeaders, new Metrics());
+    }
+
+    /**
+     * @param metrics Where the time taken and bytes received for each download are recorded by response status
+     */
+    public FileDownloaderImpl(UpstreamClient client, ContentRewriter rewriter, Map<String, String> requestHeaders, Metrics metrics) {
+        this.client = client;
+        this.rewriter = rewriter;
+        this.requestHeaders = requestHeaders;
+        this.metrics = metrics;
+    }
+
+    /**
+     * Adds something to tell each time more of a download has been written to its partial file. The partial
+     * file is flushed after each chunk that is received while there are any.
+     */
+    public void addProgressListener(DownloadProgressListener listener) {
+        progressListeners.add(listener);
     }
 
     @Override
-    public void fetch(URL source, File destination) throws IOException {
+    public boolean fetch(URL source, File destination) throws IOException {
         if (destination.getParentFile().mkdirs()) {
             log.info("Will create " + destination.getCanonicalPath());
         }
 
-        URLConnection conn = source.openConnection(proxy);
-        conn.setDoInput(true);
+        Map<String, String> requestHeaders = new HashMap<String, String>(this.requestHeaders);
+        requestHeaders.put("Accept-Encoding", "gzip");
+        File validatorsFile = CacheFiles.validatorsFile(destination);
+        if (destination.isFile()) {
+            Properties validators = loadValidators(validatorsFile);
+            if (validators.containsKey(ETAG)) {
+                requestHeaders.put("If-None-Match", validators.getProperty(ETAG));
+            }
+            if (validators.containsKey(LAST_MODIFIED)) {
+                requestHeaders.put("If-Modified-Since", validators.getProperty(LAST_MODIFIED));
+            }
+        }
 
-        InputStream inputStream;
+        long start = System.nanoTime();
+        int status = 0;
+        long bytesReceived = 0;
         try {
-            inputStream = conn.getInputStream();
-        } catch (FileNotFoundException e) {
-            throw new ResourceNotFoundException(source.toString());
+            UpstreamResponse response = client.get(source, requestHeaders);
+            try {
+                status = response.getStatus();
+                if (status == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                    if (!destination.setLastModified(System.currentTimeMillis())) {
+                        log.warn("Could not update the modified date of " + destination.getCanonicalPath());
+                    }
+                    log.info("Not modified: " + source);
+                    return false;
+                }
+                if (status == HttpURLConnection.HTTP_NOT_FOUND || status == HttpURLConnection.HTTP_GONE) {
+                    throw new ResourceNotFoundException(source.toString());
+                }
+                if (status != HttpURLConnection.HTTP_OK) {
+                    throw new IOException("Server returned HTTP response code: " + status + " for URL: " + source);
+                }
+
+                CountingInputStream body = new CountingInputStream(response.getBody());
+                try {
+                    saveBody(source, response, body, destination);
+                } finally {
+                    bytesReceived = body.getByteCount();
+                }
+
+                // only JSON files are ever re-downloaded, so tarballs don't need their validators stored
+                if (FilenameUtils.getExtension(destination.getName()).equalsIgnoreCase("json")) {
+                    saveValidators(validatorsFile, response);
+                }
+                return true;
+            } finally {
+                response.close();
+            }
+        } finally {
+            recordUpstreamRequest(status, System.nanoTime() - start, bytesReceived);
         }
-        OutputStream outputStream = new FileOutputStream(destination, false);
+    }
+
+    private void recordUpstreamRequest(int status, long nanos, long bytesReceived) {
+        StatusMetrics recorded = statusMetrics.get(status);
+        if (recorded == null) {
+            recorded = new StatusMetrics(metrics, (status == 0) ? "error" : String.valueOf(status));
+            StatusMetrics existing = statusMetrics.putIfAbsent(status, recorded);
+            if (existing != null) {
+                recorded = existing;
+            }
+        }
+        recorded.duration.recordNanos(nanos);
+        recorded.bytesReceived.add(bytesReceived);
+    }
 
+    private void saveBody(URL source, UpstreamResponse response, CountingInputStream body, File destination) throws IOException {
+        File partialFile = CacheFiles.partialFile(destination);
+        OutputStream outputStream = rewriter.rewrite(destination, new BufferedOutputStream(new FileOutputStream(partialFile, false)));
+
+        boolean published = false;
         try {
-            int bytesDownloaded = IOUtils.copy(inputStream, outputStream);
+            boolean gzipped = "gzip".equalsIgnoreCase(response.getHeader("Content-Encoding"));
+            copy(gzipped ? new GZIPInputStream(body) : body, outputStream, destination);
+            long bytesDownloaded = body.getByteCount();
+            long expectedBytes = response.getContentLength();
+            if (expectedBytes >= 0 && bytesDownloaded != expectedBytes) {
+                throw new IOException("Only " + bytesDownloaded + " of " + expectedBytes + " bytes were received from " + source);
+            }
+            outputStream.close();
+            CacheFiles.publish(partialFile, destination);
+            published = true;
             log.info("Downloaded " + source + " (" + bytesDownloaded + " bytes)");
         } finally {
-            IOUtils.closeQuietly(inputStream);
             IOUtils.closeQuietly(outputStream);
+            if (!published) {
+                partialFile.delete();
+            }
         }
+    }
+
+    private void copy(InputStream in, OutputStream out, File destination) throws IOException {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+            if (!progressListeners.isEmpty()) {
+                out.flush();
+                for (DownloadProgressListener listener : progressListeners) {
+                    listener.written(destination);
+                }
+            }
+        }
+    }
 
+    private static Properties loadValidators(File validatorsFile) {
+        Properties validators = new Properties();
+        if (validatorsFile.isFile()) {
+            try {
+                InputStream in = new FileInputStream(validatorsFile);
+                try {
+                    validators.load(in);
+                } finally {
+                    IOUtils.closeQuietly(in);
+                }
+            } catch (IOException e) {
+                log.warn("Could not read " + validatorsFile + " so an unconditional download will be made. Error was: " + e.getMessage());
+            }
+        }
+        return validators;
+    }
+
+    private static void saveValidators(File validatorsFile, UpstreamResponse response) {
+        Properties validators = new Properties();
+        String etag = response.getHeader(ETAG);
+        String lastModified = response.getHeader(LAST_MODIFIED);
+        if (etag != null) {
+            validators.setProperty(ETAG, etag);
+        }
+        if (lastModified != null) {
+            validators.setProperty(LAST_MODIFIED, lastModified);
+        }
+        if (validators.isEmpty()) {
+            validatorsFile.delete();
+            return;
+        }
+        try {
+            OutputStream out = new FileOutputStream(validatorsFile, false);
+            try {
+                validators.store(out, null);
+            } finally {
+                IOUtils.closeQuietly(out);
+            }
+        } catch (IOException e) {
+            log.warn("Could not save " + validatorsFile + " so the next download will be unconditional. Error was: " + e.getMessage());
+        }
+    }
+
+    private static class StatusMetrics {
+        final Histogram duration;
+        final Counter bytesReceived;
+
+        StatusMetrics(Metrics metrics, String status) {
+            this.duration = metrics.histogram("upstream_request_duration_seconds", "Time taken to download files from the NPM registry, including the body", "status", status);
+            this.bytesReceived = metrics.counter("upstream_received_bytes_total", "Bytes received from the NPM registry, before decompression", "status", status);
+        }
     }
 }
@@ -0,0 +1,25 @@
+package com.danielflower.internalnpmserver.services;
+
+/**
+ * Looks up the details of the files in a folder.
+ */
+public interface FileStats {
+
+    /**
+     * @param path The path of the file relative to the folder
+     * @return The time the file was last modified, or 0 if there is no such file
+     */
+    long lastModified(String path);
+
+    /**
+     * @param path The path of the file relative to the folder
+     * @return The size of the file in bytes, or 0 if there is no such file
+     */
+    long length(String path);
+
+    /**
+     * Called when a file that was looked up could not be opened, e.g. because it was deleted by something
+     * other than this server, so that any details remembered about it are read again.
+     */
+    void update(String path);
+}
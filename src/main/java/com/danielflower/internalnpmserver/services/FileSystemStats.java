@@ -0,0 +1,31 @@
+package com.danielflower.internalnpmserver.services;
+
+import java.io.File;
+
+/**
+ * Asks the file system for the details of a file every time.
+ */
+public class FileSystemStats implements FileStats {
+
+    private final File folder;
+
+    public FileSystemStats(File folder) {
+        this.folder = folder;
+    }
+
+    @Override
+    public long lastModified(String path) {
+        File file = new File(folder, path);
+        return file.isFile() ? file.lastModified() : 0;
+    }
+
+    @Override
+    public long length(String path) {
+        return new File(folder, path).length();
+    }
+
+    @Override
+    public void update(String path) {
+        // nothing is remembered
+    }
+}
@@ -0,0 +1,65 @@
+package com.danielflower.internalnpmserver.services;
+
+/**
+ * A count-min sketch estimating how often keys have been seen recently, in a fixed amount of memory.
+ * Counts are capped at 15 and halved periodically so that keys which used to be popular are forgotten.
+ * Not thread safe.
+ */
+class FrequencySketch {
+    private static final int[] SEEDS = {0x97cb3127, 0x5a6b4c39, 0x8f1bbcdc, 0x3c6ef372};
+    private static final int MAX_COUNT = 15;
+
+    private final int[][] counts;
+    private final int mask;
+    private final int sampleSize;
+    private int additions;
+
+    FrequencySketch(int expectedKeys) {
+        int width = Integer.highestOneBit(Math.max(16, expectedKeys - 1) << 1);
+        this.counts = new int[SEEDS.length][width];
+        this.mask = width - 1;
+        this.sampleSize = 10 * width;
+    }
+
+    void increment(Object key) {
+        int hash = spread(key.hashCode());
+        for (int row = 0; row < SEEDS.length; row++) {
+            int index = indexOf(hash, row);
+            if (counts[row][index] < MAX_COUNT) {
+                counts[row][index]++;
+            }
+        }
+        if (++additions >= sampleSize) {
+            halve();
+        }
+    }
+
+    int frequency(Object key) {
+        int hash = spread(key.hashCode());
+        int frequency = MAX_COUNT;
+        for (int row = 0; row < SEEDS.length; row++) {
+            frequency = Math.min(frequency, counts[row][indexOf(hash, row)]);
+        }
+        return frequency;
+    }
+
+    private void halve() {
+        for (int[] row : counts) {
+            for (int i = 0; i < row.length; i++) {
+                row[i] >>>= 1;
+            }
+        }
+        additions /= 2;
+    }
+
+    private int indexOf(int hash, int row) {
+        int h = (hash ^ SEEDS[row]) * 0x9e3779b9;
+        return (h ^ (h >>> 16)) & mask;
+    }
+
+    private static int spread(int hash) {
+        hash ^= (hash >>> 16);
+        hash *= 0x45d9f3b;
+        return hash ^ (hash >>> 16);
+    }
+}
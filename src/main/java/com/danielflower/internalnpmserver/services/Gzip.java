@@ -0,0 +1,87 @@
+package com.danielflower.internalnpmserver.services;
+
+import org.apache.commons.io.FilenameUtils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Helpers for cached files that may be stored gzipped. Only JSON files are ever stored gzipped, and they are
+ * recognised by the first two bytes of the gzip format, which can never be the start of a JSON document, so
+ * cache folders can hold a mix of gzipped and plain JSON files. Tarballs are gzip files in their own right
+ * so they must never be treated as having been gzipped for storage.
+ */
+public class Gzip {
+
+    private static final int MAGIC_1 = 0x1f;
+    private static final int MAGIC_2 = 0x8b;
+
+    private Gzip() {
+    }
+
+    public static boolean canBeStoredGzipped(String fileName) {
+        return FilenameUtils.getExtension(fileName).equalsIgnoreCase("json");
+    }
+
+    public static boolean isGzipped(byte[] contents) {
+        return contents.length >= 2 && (contents[0] & 0xff) == MAGIC_1 && (contents[1] & 0xff) == MAGIC_2;
+    }
+
+    /**
+     * Checks the start of the file without changing the channel's position.
+     */
+    public static boolean isGzipped(FileChannel file) throws IOException {
+        ByteBuffer start = ByteBuffer.allocate(2);
+        while (start.hasRemaining()) {
+            if (file.read(start, start.position()) < 0) {
+                return false;
+            }
+        }
+        return isGzipped(start.array());
+    }
+
+    /**
+     * Checks the start of the stream, leaving the stream where it was. The stream must support mark.
+     */
+    public static boolean isGzipped(InputStream in) throws IOException {
+        in.mark(2);
+        try {
+            return in.read() == MAGIC_1 && in.read() == MAGIC_2;
+        } finally {
+            in.reset();
+        }
+    }
+
+    /**
+     * Returns true if an Accept-Encoding header allows a gzipped response.
+     */
+    public static boolean isAccepted(String acceptEncoding) {
+        if (acceptEncoding == null) {
+            return false;
+        }
+        for (String coding : acceptEncoding.split(",")) {
+            String[] parts = coding.split(";");
+            String name = parts[0].trim();
+            if (name.equalsIgnoreCase("gzip") || name.equalsIgnoreCase("x-gzip") || name.equals("*")) {
+                return !hasZeroQuality(parts);
+            }
+        }
+        return false;
+    }
+
+    private static boolean hasZeroQuality(String[] parts) {
+        for (int i = 1; i < parts.length; i++) {
+            String parameter = parts[i].trim();
+            if (parameter.startsWith("q=")) {
+                try {
+                    return Double.parseDouble(parameter.substring(2).trim()) == 0;
+                } catch (NumberFormatException e) {
+                    return false;
+                }
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,28 @@
+package com.danielflower.internalnpmserver.services;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Stores downloaded JSON files gzipped, after they have been through another rewriter. Packuments are
+ * highly compressible so this saves disk space, page cache and, for clients that accept gzip, bandwidth.
+ * Tarballs are already compressed and are stored as they are.
+ */
+public class GzipContentRewriter implements ContentRewriter {
+
+    private final ContentRewriter rewriter;
+
+    public GzipContentRewriter(ContentRewriter rewriter) {
+        this.rewriter = rewriter;
+    }
+
+    @Override
+    public OutputStream rewrite(File destination, OutputStream out) throws IOException {
+        if (!Gzip.canBeStoredGzipped(destination.getName())) {
+            return rewriter.rewrite(destination, out);
+        }
+        return rewriter.rewrite(destination, new GZIPOutputStream(out, 8192));
+    }
+}
@@ -0,0 +1,193 @@
+package com.danielflower.internalnpmserver.services;
+
+import org.apache.commons.io.IOUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.Proxy;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An upstream client using the JDK's HttpURLConnection, which keeps a pool of keep-alive connections
+ * per host. Connections only go back to the pool when the response body has been read to the end and
+ * closed, which {@link FileDownloaderImpl} always does.
+ */
+public class HttpURLConnectionUpstreamClient implements UpstreamClient {
+
+    public static final int DEFAULT_CONNECT_TIMEOUT_MILLIS = 10000;
+    public static final int DEFAULT_READ_TIMEOUT_MILLIS = 30000;
+    public static final long DEFAULT_TOTAL_TIMEOUT_MILLIS = 10 * 60 * 1000;
+
+    private static final ScheduledExecutorService watchdog = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("upstream-timeout"));
+
+    private final Proxy proxy;
+    private final int connectTimeoutMillis;
+    private final int readTimeoutMillis;
+    private final long totalTimeoutMillis;
+
+    public HttpURLConnectionUpstreamClient(Proxy proxy) {
+        this(proxy, DEFAULT_CONNECT_TIMEOUT_MILLIS, DEFAULT_READ_TIMEOUT_MILLIS, DEFAULT_TOTAL_TIMEOUT_MILLIS);
+    }
+
+    /**
+     * @param connectTimeoutMillis How long to wait for a connection to be established
+     * @param readTimeoutMillis    How long to wait for the next bytes to arrive
+     * @param totalTimeoutMillis   How long the whole request, including reading the body, may take
+     */
+    public HttpURLConnectionUpstreamClient(Proxy proxy, int connectTimeoutMillis, int readTimeoutMillis, long totalTimeoutMillis) {
+        this.proxy = (proxy == null) ? Proxy.NO_PROXY : proxy;
+        this.connectTimeoutMillis = connectTimeoutMillis;
+        this.readTimeoutMillis = readTimeoutMillis;
+        this.totalTimeoutMillis = totalTimeoutMillis;
+    }
+
+    /**
+     * Sets how many idle keep-alive connections are kept for each host. This is a JVM-wide setting which
+     * only has an effect if it is set before the first HTTP connection is made.
+     */
+    public static void setMaxIdleConnectionsPerHost(int maxIdleConnections) {
+        System.setProperty("http.keepAlive", "true");
+        System.setProperty("http.maxConnections", String.valueOf(maxIdleConnections));
+    }
+
+    @Override
+    public UpstreamResponse get(URL url, Map<String, String> requestHeaders) throws IOException {
+        final HttpURLConnection conn = (HttpURLConnection) url.openConnection(proxy);
+        conn.setConnectTimeout(connectTimeoutMillis);
+        conn.setReadTimeout(readTimeoutMillis);
+        conn.setDoInput(true);
+        for (Map.Entry<String, String> header : requestHeaders.entrySet()) {
+            conn.setRequestProperty(header.getKey(), header.getValue());
+        }
+
+        Deadline deadline = new Deadline(conn, url);
+        try {
+            int status = conn.getResponseCode();
+            return new Response(conn, status, deadline);
+        } catch (IOException e) {
+            deadline.cancel();
+            throw deadline.translate(e);
+        } catch (RuntimeException e) {
+            deadline.cancel();
+            throw e;
+        }
+    }
+
+    /**
+     * Disconnects the connection if the request is still running once the total timeout has passed.
+     */
+    private class Deadline implements Runnable {
+        private final HttpURLConnection conn;
+        private final URL url;
+        private final ScheduledFuture<?> future;
+        private volatile boolean expired;
+
+        Deadline(HttpURLConnection conn, URL url) {
+            this.conn = conn;
+            this.url = url;
+            this.future = watchdog.schedule(this, totalTimeoutMillis, TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public void run() {
+            expired = true;
+            conn.disconnect();
+        }
+
+        void cancel() {
+            future.cancel(false);
+        }
+
+        IOException translate(IOException e) {
+            if (expired) {
+                SocketTimeoutException timeout = new SocketTimeoutException("Request to " + url + " took longer than " + totalTimeoutMillis + "ms");
+                timeout.initCause(e);
+                return timeout;
+            }
+            return e;
+        }
+    }
+
+    private static class Response implements UpstreamResponse {
+        private final HttpURLConnection conn;
+        private final int status;
+        private final Deadline deadline;
+        private InputStream body;
+
+        Response(HttpURLConnection conn, int status, Deadline deadline) {
+            this.conn = conn;
+            this.status = status;
+            this.deadline = deadline;
+        }
+
+        @Override
+        public int getStatus() {
+            return status;
+        }
+
+        @Override
+        public String getHeader(String name) {
+            return conn.getHeaderField(name);
+        }
+
+        @Override
+        public long getContentLength() {
+            String value = conn.getHeaderField("Content-Length");
+            try {
+                return (value == null) ? -1 : Long.parseLong(value.trim());
+            } catch (NumberFormatException e) {
+                return -1;
+            }
+        }
+
+        @Override
+        public InputStream getBody() throws IOException {
+            if (body == null) {
+                body = new FilterInputStream(openStream()) {
+                    @Override
+                    public int read() throws IOException {
+                        try {
+                            return super.read();
+                        } catch (IOException e) {
+                            throw deadline.translate(e);
+                        }
+                    }
+
+                    @Override
+                    public int read(byte[] b, int off, int len) throws IOException {
+                        try {
+                            return super.read(b, off, len);
+                        } catch (IOException e) {
+                            throw deadline.translate(e);
+                        }
+                    }
+                };
+            }
+            return body;
+        }
+
+        private InputStream openStream() throws IOException {
+            InputStream stream = (status >= 400) ? conn.getErrorStream() : conn.getInputStream();
+            return (stream == null) ? new ByteArrayInputStream(new byte[0]) : stream;
+        }
+
+        @Override
+        public void close() {
+            deadline.cancel();
+            try {
+                IOUtils.closeQuietly(getBody());
+            } catch (IOException e) {
+                conn.disconnect();
+            }
+        }
+    }
+}
@@ -0,0 +1,194 @@
+package com.danielflower.internalnpmserver.services;
+
+import java.io.*;
+
+/**
+ * A download of a single cache file that is either still running or has just finished. Any number
+ * of requests can wait for it to finish, or read the bytes while they are still arriving from the
+ * remote server.
+ */
+public class InFlightDownload {
+
+    // readers are woken whenever bytes are written, so they only look for bytes they were not told about this often
+    static final long POLL_INTERVAL_MILLIS = 500;
+    // another server writing to a shared cache folder cannot wake the readers on this one
+    static final long SHARED_FOLDER_POLL_INTERVAL_MILLIS = 10;
+
+    private final File destination;
+    private final long pollIntervalMillis;
+    private final boolean sharedCacheFolder;
+    private boolean complete;
+    private Throwable failure;
+
+    InFlightDownload(File destination) {
+        this(destination, POLL_INTERVAL_MILLIS);
+    }
+
+    /**
+     * @param pollIntervalMillis The longest a reader waits for more bytes before looking at the partial file again
+     */
+    InFlightDownload(File destination, long pollIntervalMillis) {
+        this(destination, pollIntervalMillis, false);
+    }
+
+    /**
+     * @param pollIntervalMillis The longest a reader waits for more bytes before looking at the partial file again
+     * @param sharedCacheFolder  True if the partial file may be another server's, which this server's download
+     *                           may finish before, in which case readers of it get an error instead of part of the file
+     */
+    InFlightDownload(File destination, long pollIntervalMillis, boolean sharedCacheFolder) {
+        this.destination = destination;
+        this.pollIntervalMillis = pollIntervalMillis;
+        this.sharedCacheFolder = sharedCacheFolder;
+    }
+
+    public File getDestination() {
+        return destination;
+    }
+
+    public synchronized boolean isComplete() {
+        return complete;
+    }
+
+    synchronized void finish(Throwable failure) {
+        this.failure = failure;
+        this.complete = true;
+        notifyAll();
+    }
+
+    /**
+     * Wakes the readers that are waiting for more bytes to be written.
+     */
+    synchronized void progressed() {
+        notifyAll();
+    }
+
+    /**
+     * Blocks until the download has finished, throwing the exception the download failed with, if any.
+     */
+    public void awaitCompletion() throws IOException {
+        synchronized (this) {
+            while (!complete) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting for " + destination);
+                }
+            }
+        }
+        rethrowFailure();
+    }
+
+    /**
+     * Returns a stream of the file contents which, if the download is still running, keeps reading
+     * as more bytes are written and only ends once the download is complete. Blocks until the first
+     * bytes have been written, so a download that fails before that throws here rather than mid-stream.
+     * <p>
+     * While the download is running the bytes are read from its partial file, which keeps its contents
+     * after it is renamed to the destination.
+     */
+    public InputStream openStream() throws IOException {
+        File partialFile = CacheFiles.partialFile(destination);
+        while (true) {
+            if (isComplete()) {
+                rethrowFailure();
+                return new FileInputStream(destination);
+            }
+            if (partialFile.length() > 0) {
+                try {
+                    return new TailingInputStream(new FileInputStream(partialFile));
+                } catch (FileNotFoundException e) {
+                    // it was published between the check and the open, so check again
+                }
+            }
+            awaitProgress();
+        }
+    }
+
+    private void awaitProgress() throws InterruptedIOException {
+        synchronized (this) {
+            if (!complete) {
+                try {
+                    wait(pollIntervalMillis);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting for " + destination);
+                }
+            }
+        }
+    }
+
+    private void rethrowFailure() throws IOException {
+        Throwable cause;
+        synchronized (this) {
+            cause = failure;
+        }
+        if (cause == null) {
+            return;
+        }
+        if (cause instanceof IOException) {
+            throw (IOException) cause;
+        }
+        if (cause instanceof RuntimeException) {
+            throw (RuntimeException) cause;
+        }
+        if (cause instanceof Error) {
+            throw (Error) cause;
+        }
+        throw new IOException("Error while downloading " + destination, cause);
+    }
+
+    /**
+     * Reads a file that is still being appended to. When it runs out of bytes it waits for either more
+     * bytes or for the download to finish, and only reports the end of the stream after the latter.
+     */
+    private class TailingInputStream extends InputStream {
+        private final InputStream underlying;
+        private long position;
+
+        TailingInputStream(InputStream underlying) {
+            this.underlying = underlying;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] single = new byte[1];
+            int read = read(single, 0, 1);
+            return (read == -1) ? -1 : (single[0] & 0xff);
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            if (length == 0) {
+                return 0;
+            }
+            while (true) {
+                int read = underlying.read(buffer, offset, length);
+                if (read != -1) {
+                    position += read;
+                    return read;
+                }
+                if (isComplete()) {
+                    // the last bytes may have been written after the previous read
+                    read = underlying.read(buffer, offset, length);
+                    if (read != -1) {
+                        position += read;
+                        return read;
+                    }
+                    rethrowFailure();
+                    if (sharedCacheFolder && position != destination.length()) {
+                        throw new IOException("The partial download of " + destination + " was replaced by another download while it was being read");
+                    }
+                    return -1;
+                }
+                awaitProgress();
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            underlying.close();
+        }
+    }
+}
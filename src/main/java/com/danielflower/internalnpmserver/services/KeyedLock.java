@@ -0,0 +1,106 @@
+package com.danielflower.internalnpmserver.services;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Mutual exclusion per key, e.g. so that only one request at a time decides whether to download a file.
+ * <p>
+ * Requests for different keys don't wait for each other: the locks are kept in a concurrent map, and a
+ * key's lock is only in the map while a thread holds it or is waiting for it. Each lock counts the threads
+ * using it, and the last one to unlock it removes it, so nothing is left for the garbage collector to find.
+ * <p>
+ * Every call to {@link #lock(Object)} must be followed by a call to {@link #unlock(Object)} in a finally block.
+ */
+public class KeyedLock<K> {
+
+    private final ConcurrentMap<K, Entry> locks = new ConcurrentHashMap<K, Entry>();
+    // only updated when a thread has to wait, so threads that don't contend don't share any counters
+    private final AtomicLong contendedCount = new AtomicLong();
+    private final AtomicLong waitNanos = new AtomicLong();
+
+    public void lock(K key) {
+        Entry entry = join(key);
+        if (!entry.lock.tryLock()) {
+            long start = System.nanoTime();
+            entry.lock.lock();
+            contendedCount.incrementAndGet();
+            waitNanos.addAndGet(System.nanoTime() - start);
+        }
+    }
+
+    public void unlock(K key) {
+        Entry entry = locks.get(key);
+        if (entry == null || !entry.lock.isHeldByCurrentThread()) {
+            throw new IllegalMonitorStateException("The lock for " + key + " is not held by this thread");
+        }
+        entry.lock.unlock();
+        if (entry.users.decrementAndGet() == 0) {
+            locks.remove(key, entry);
+        }
+    }
+
+    /**
+     * Adds the current thread to the users of the key's lock, creating the lock if nobody is using it.
+     */
+    private Entry join(K key) {
+        while (true) {
+            Entry entry = locks.get(key);
+            if (entry == null) {
+                Entry created = new Entry();
+                entry = locks.putIfAbsent(key, created);
+                if (entry == null) {
+                    return created;
+                }
+            }
+            if (entry.tryJoin()) {
+                return entry;
+            }
+            // the last user removed it after it was looked up, so try again with a new one
+        }
+    }
+
+    /**
+     * The number of keys that are locked or waited for.
+     */
+    public int size() {
+        return locks.size();
+    }
+
+    /**
+     * The number of times a thread had to wait for another thread to unlock a key.
+     */
+    public long getContendedCount() {
+        return contendedCount.get();
+    }
+
+    /**
+     * The total time threads have spent waiting for locks, in nanoseconds.
+     */
+    public long getWaitNanos() {
+        return waitNanos.get();
+    }
+
+    private static class Entry {
+        final ReentrantLock lock = new ReentrantLock();
+        final AtomicInteger users = new AtomicInteger(1);
+
+        /**
+         * @return False if the last user has already left, in which case the entry is being removed
+         */
+        boolean tryJoin() {
+            while (true) {
+                int current = users.get();
+                if (current == 0) {
+                    return false;
+                }
+                if (users.compareAndSet(current, current + 1)) {
+                    return true;
+                }
+            }
+        }
+    }
+}
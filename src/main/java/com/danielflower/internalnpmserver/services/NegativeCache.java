@@ -0,0 +1,100 @@
+package com.danielflower.internalnpmserver.services;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Remembers for a while which files the NPM registry said do not exist, so that asking for them again does
+ * not go to the registry each time. This is for private package names, typos, and paths npm looks for that
+ * are not there.
+ * <p>
+ * This is thread safe. Every request asks it about its file, so looking a path up takes no lock. Paths are
+ * only added after the registry has been asked, and when that makes the cache too big, the expired paths and
+ * then the oldest ones are removed, under a lock that lookups do not take. Every entry lives for the same
+ * time, so the oldest entries are the ones that will expire first.
+ */
+public class NegativeCache {
+
+    private final int maxEntries;
+    private final long ttlMillis;
+    private final ConcurrentMap<String, Long> expiryTimes = new ConcurrentHashMap<String, Long>();
+    private final Object trimLock = new Object();
+
+    /**
+     * @param maxEntries The most paths to remember
+     * @param ttlMillis  How long a path is remembered for. 0 turns the cache off.
+     */
+    public NegativeCache(int maxEntries, long ttlMillis) {
+        this.maxEntries = maxEntries;
+        this.ttlMillis = ttlMillis;
+    }
+
+    /**
+     * @return True if the registry said recently that the path does not exist
+     */
+    public boolean isNotFound(String path) {
+        return isNotFound(path, System.currentTimeMillis());
+    }
+
+    boolean isNotFound(String path, long now) {
+        Long expiry = expiryTimes.get(path);
+        if (expiry == null) {
+            return false;
+        }
+        if (expiry <= now) {
+            // only if it has not been added again since it was looked up
+            expiryTimes.remove(path, expiry);
+            return false;
+        }
+        return true;
+    }
+
+    public void notFound(String path) {
+        notFound(path, System.currentTimeMillis());
+    }
+
+    void notFound(String path, long now) {
+        if (ttlMillis <= 0 || maxEntries <= 0) {
+            return;
+        }
+        expiryTimes.put(path, now + ttlMillis);
+        if (expiryTimes.size() > maxEntries) {
+            trim(now);
+        }
+    }
+
+    private void trim(long now) {
+        synchronized (trimLock) {
+            List<Long> live = new ArrayList<Long>();
+            for (Iterator<Long> expiries = expiryTimes.values().iterator(); expiries.hasNext(); ) {
+                long expiry = expiries.next();
+                if (expiry <= now) {
+                    expiries.remove();
+                } else {
+                    live.add(expiry);
+                }
+            }
+            // a tenth more than needed are removed, so that adding each new path does not mean trimming again
+            int excess = live.size() - (maxEntries - maxEntries / 10);
+            if (excess <= 0) {
+                return;
+            }
+            Collections.sort(live);
+            long newestToRemove = live.get(excess - 1);
+            for (Iterator<Map.Entry<String, Long>> entries = expiryTimes.entrySet().iterator(); entries.hasNext(); ) {
+                if (entries.next().getValue() <= newestToRemove) {
+                    entries.remove();
+                }
+            }
+        }
+    }
+
+    public int size() {
+        return expiryTimes.size();
+    }
+}
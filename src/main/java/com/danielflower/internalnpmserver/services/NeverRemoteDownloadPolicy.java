@@ -9,4 +9,9 @@ public class NeverRemoteDownloadPolicy implements RemoteDownloadPolicy {
 	public boolean shouldDownload(String localPath) {
 		return false;
 	}
+
+	@Override
+	public boolean shouldRefreshInBackground(String localPath) {
+		return false;
+	}
 }
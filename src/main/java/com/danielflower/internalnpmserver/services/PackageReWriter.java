@@ -0,0 +1,47 @@
+package com.danielflower.internalnpmserver.services;
+
+import org.apache.commons.io.FilenameUtils;
+import org.apache.commons.lang.StringUtils;
+
+import java.io.File;
+import java.io.OutputStream;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Changes the URLs in JSON files from the NPM registries so that they point at this server, whether the
+ * registries wrote them with http or https.
+ */
+public class PackageReWriter implements ContentRewriter {
+
+    private final StreamingReplacer replacer;
+
+    public PackageReWriter(String externalNPMRegistry, String internalNPMRegistry) {
+        this(Collections.singletonList(externalNPMRegistry), internalNPMRegistry);
+    }
+
+    /**
+     * @param externalNPMRegistries Every registry that files may be downloaded from, such as mirrors and the
+     *                              registries of scoped packages
+     */
+    public PackageReWriter(List<String> externalNPMRegistries, String internalNPMRegistry) {
+        internalNPMRegistry = StringUtils.stripEnd(internalNPMRegistry, "/");
+        Map<String, String> replacements = new LinkedHashMap<String, String>();
+        for (String externalNPMRegistry : externalNPMRegistries) {
+            externalNPMRegistry = StringUtils.stripEnd(externalNPMRegistry, "/");
+            replacements.put(externalNPMRegistry.replace("https://", "http://"), internalNPMRegistry);
+            replacements.put(externalNPMRegistry.replace("http://", "https://"), internalNPMRegistry);
+        }
+        this.replacer = new StreamingReplacer(replacements);
+    }
+
+    @Override
+    public OutputStream rewrite(File destination, OutputStream out) {
+        if (FilenameUtils.getExtension(destination.getName()).equalsIgnoreCase("json")) {
+            return replacer.wrap(out);
+        }
+        return out;
+    }
+}
@@ -0,0 +1,99 @@
+package com.danielflower.internalnpmserver.services;
+
+import org.apache.commons.lang.StringUtils;
+
+import java.io.IOException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Several servers that share out the packages between them, so that each package is only downloaded from
+ * the NPM registry by the server that owns it. The others download it from the owner.
+ * <p>
+ * Servers send the {@link #PEER_HEADER} with their downloads from each other, but not with their downloads
+ * from the NPM registry. A server never passes a request with that header on to another server, so requests
+ * cannot go round in circles while servers disagree about who owns what, for example while the list of
+ * servers is being changed.
+ * <p>
+ * This is also the upstream client, which sends requests for other servers to them, and everything else to
+ * the NPM registry. This keeps failures of other servers from counting against the registry.
+ */
+public class PeerCluster implements UpstreamClient {
+
+    public static final String PEER_HEADER = "X-Npm-Peer";
+
+    private final List<String> nodes = new ArrayList<String>();
+    private final String self;
+    private final ConsistentHashRing ring;
+    private final UpstreamClient registryClient;
+    private final UpstreamClient peerClient;
+
+    /**
+     * @param nodes          The URLs of every server in the cluster, e.g. http://npm1.ourco.com:9100
+     * @param self           The URL of this server, which should be one of the nodes
+     * @param registryClient Used for requests to the NPM registry
+     * @param peerClient     Used for requests to other servers
+     */
+    public PeerCluster(List<String> nodes, String self, UpstreamClient registryClient, UpstreamClient peerClient) {
+        for (String node : nodes) {
+            this.nodes.add(StringUtils.stripEnd(node, "/"));
+        }
+        this.self = StringUtils.stripEnd(self, "/");
+        this.ring = new ConsistentHashRing(this.nodes);
+        this.registryClient = registryClient;
+        this.peerClient = peerClient;
+    }
+
+    /**
+     * @param remotePath The path of a file in the registry, e.g. /commander or /commander/-/commander-0.6.1.tgz
+     * @return The URL of the server that owns the file, or null if it is this server
+     */
+    public String ownerOf(String remotePath) {
+        String owner = ring.ownerOf(packageOf(remotePath));
+        return owner.equals(self) ? null : owner;
+    }
+
+    /**
+     * @return The NPM end points of the servers, which are in the URLs of the packuments they send
+     */
+    public List<String> getEndPoints(String npmPrefix) {
+        List<String> endPoints = new ArrayList<String>();
+        for (String node : nodes) {
+            endPoints.add(node + npmPrefix + "/");
+        }
+        return endPoints;
+    }
+
+    public String getSelf() {
+        return self;
+    }
+
+    @Override
+    public UpstreamResponse get(URL url, Map<String, String> requestHeaders) throws IOException {
+        String target = url.toString();
+        for (String node : nodes) {
+            if (target.startsWith(node + "/")) {
+                Map<String, String> peerHeaders = new HashMap<String, String>(requestHeaders);
+                peerHeaders.put(PEER_HEADER, self);
+                return peerClient.get(url, peerHeaders);
+            }
+        }
+        return registryClient.get(url, requestHeaders);
+    }
+
+    /**
+     * The packument and tarballs of a package have the same owner, whether or not the scope's slash is encoded.
+     */
+    static String packageOf(String remotePath) {
+        String path = remotePath.toLowerCase().replace("%2f", "/");
+        int query = path.indexOf('?');
+        if (query > -1) {
+            path = path.substring(0, query);
+        }
+        int tarballFolder = path.indexOf("/-/");
+        return tarballFolder > -1 ? path.substring(0, tarballFolder) : path;
+    }
+}
@@ -16,4 +16,9 @@ public class ReDownloadCachedJSONFilesPolicy implements RemoteDownloadPolicy {
 
         return !isCached || FilenameUtils.getExtension(localPath).equalsIgnoreCase("json");
     }
+
+    @Override
+    public boolean shouldRefreshInBackground(String localPath) {
+        return false;
+    }
 }
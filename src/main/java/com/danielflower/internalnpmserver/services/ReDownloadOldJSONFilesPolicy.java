@@ -8,23 +8,49 @@ import java.util.Date;
 public class ReDownloadOldJSONFilesPolicy implements RemoteDownloadPolicy {
 	private static final long TWENTY_FOUR_HOURS_IN_MILLIS = 24 * 60 * 60 * 1000;
     private final StaticHandler staticHandler;
+	private final long hardStaleMillis;
 
     public ReDownloadOldJSONFilesPolicy(StaticHandler staticHandler) {
-        this.staticHandler = staticHandler;
+        this(staticHandler, TWENTY_FOUR_HOURS_IN_MILLIS);
     }
 
+	/**
+	 * @param hardStaleMillis JSON files older than a day but younger than this are served from the cache
+	 *                        and refreshed in the background; older ones are downloaded before being served.
+	 */
+	public ReDownloadOldJSONFilesPolicy(StaticHandler staticHandler, long hardStaleMillis) {
+		this.staticHandler = staticHandler;
+		this.hardStaleMillis = Math.max(hardStaleMillis, TWENTY_FOUR_HOURS_IN_MILLIS);
+	}
+
 	@Override
 	public boolean shouldDownload(String localPath) {
 		boolean existsLocally = staticHandler.canHandle(localPath);
-		boolean isJSONFile = FilenameUtils.getExtension(localPath).equalsIgnoreCase("json");
+		boolean isJSONFile = isJSONFile(localPath);
 		if (existsLocally && !isJSONFile) {
 			return false;
 		}
 		if (!existsLocally) {
 			return true;
 		}
+		return age(localPath) > hardStaleMillis;
+	}
+
+	@Override
+	public boolean shouldRefreshInBackground(String localPath) {
+		if (hardStaleMillis == TWENTY_FOUR_HOURS_IN_MILLIS || !isJSONFile(localPath) || !staticHandler.canHandle(localPath)) {
+			return false;
+		}
+		long age = age(localPath);
+		return age > TWENTY_FOUR_HOURS_IN_MILLIS && age <= hardStaleMillis;
+	}
+
+	private static boolean isJSONFile(String localPath) {
+		return FilenameUtils.getExtension(localPath).equalsIgnoreCase("json");
+	}
+
+	private long age(String localPath) {
 		Date fileModifiedDate = staticHandler.dateCreated(localPath);
-		long age = System.currentTimeMillis() - fileModifiedDate.getTime();
-		return age > TWENTY_FOUR_HOURS_IN_MILLIS;
+		return System.currentTimeMillis() - fileModifiedDate.getTime();
 	}
 }
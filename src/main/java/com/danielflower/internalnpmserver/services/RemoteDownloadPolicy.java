@@ -2,4 +2,10 @@ package com.danielflower.internalnpmserver.services;
 
 public interface RemoteDownloadPolicy {
     boolean shouldDownload(String localPath);
+
+    /**
+     * Called when {@link #shouldDownload(String)} is false. If this returns true then the cached copy is
+     * served as it is and a fresh copy is downloaded in the background for future requests.
+     */
+    boolean shouldRefreshInBackground(String localPath);
 }
@@ -0,0 +1,282 @@
+package com.danielflower.internalnpmserver.services;
+
+import com.danielflower.internalnpmserver.metrics.Counter;
+import com.danielflower.internalnpmserver.metrics.Metrics;
+import org.apache.commons.lang.StringUtils;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sends requests for the NPM registry to whichever registry should answer them. Requests are made as if
+ * to the registry URL in the config, and the start of the URL is replaced with the chosen registry's.
+ * <p>
+ * Scoped packages, such as @ourco/thing, can have their own registry, which is the only one asked about them.
+ * Everything else goes to the first of a list of mirrors. If it has not answered by the time that most of its
+ * recent requests had (the hedge percentile), the same request is sent to the next mirror as well, and so on,
+ * and whichever answers first is used. A mirror that fails is skipped straight away. Any answer counts,
+ * including not found, so the mirrors should all have every package.
+ */
+public class RoutingUpstreamClient implements UpstreamClient {
+    private final String registryURL;
+    private final List<Upstream> mirrors;
+    private final Map<String, Upstream> scopes;
+    private final Executor executor;
+    private final int hedgePercentile;
+    private final long minHedgeDelayNanos;
+    private final Counter hedges;
+    private final Counter hedgeWins;
+
+    /**
+     * @param registryURL        The URL requests are made to, which is replaced with the URL of the chosen registry
+     * @param mirrors            The registries to try, in order
+     * @param scopes             The registries of scoped packages, by scope including the @, e.g. "@ourco"
+     * @param executor           Runs the requests when more than one mirror is asked
+     * @param hedgePercentile    How slow the first mirror's answer must be, compared to its recent answers, before
+     *                           the next mirror is asked as well. 0 means the next mirror is only asked if the
+     *                           first one fails.
+     * @param minHedgeDelayMillis The least time to wait before asking the next mirror
+     * @param metrics            Where the number of requests sent to more than one mirror are recorded
+     */
+    public RoutingUpstreamClient(String registryURL, List<Upstream> mirrors, Map<String, Upstream> scopes, Executor executor,
+                                 int hedgePercentile, long minHedgeDelayMillis, Metrics metrics) {
+        this.registryURL = StringUtils.stripEnd(registryURL, "/");
+        this.mirrors = mirrors;
+        this.scopes = new HashMap<String, Upstream>();
+        for (Map.Entry<String, Upstream> scope : scopes.entrySet()) {
+            this.scopes.put(scope.getKey().toLowerCase(), scope.getValue());
+        }
+        this.executor = executor;
+        this.hedgePercentile = hedgePercentile;
+        this.minHedgeDelayNanos = TimeUnit.MILLISECONDS.toNanos(minHedgeDelayMillis);
+        this.hedges = metrics.counter("upstream_hedged_requests_total", "Requests to the NPM registry that were also sent to the next mirror because the first was slow");
+        this.hedgeWins = metrics.counter("upstream_hedge_wins_total", "Requests to the NPM registry that were answered first by a mirror other than the first one");
+    }
+
+    @Override
+    public UpstreamResponse get(URL url, Map<String, String> requestHeaders) throws IOException {
+        String target = url.toString();
+        if (!target.startsWith(registryURL)) {
+            return mirrors.get(0).get(target, requestHeaders);
+        }
+        String path = target.substring(registryURL.length());
+        Upstream scoped = scopes.get(scopeOf(path));
+        if (scoped != null) {
+            return scoped.get(scoped.url + path, requestHeaders);
+        }
+        if (mirrors.size() == 1) {
+            return mirrors.get(0).get(mirrors.get(0).url + path, requestHeaders);
+        }
+        return new Race(path, requestHeaders).run();
+    }
+
+    /**
+     * @return The host and port of the registry that a request for the URL is sent to first, which for most
+     * packages is the first mirror, and for scoped packages is the registry of their scope
+     */
+    public String hostFor(URL url) throws MalformedURLException {
+        String target = url.toString();
+        if (!target.startsWith(registryURL)) {
+            return url.getAuthority();
+        }
+        Upstream scoped = scopes.get(scopeOf(target.substring(registryURL.length())));
+        return new URL(((scoped != null) ? scoped : mirrors.get(0)).url).getAuthority();
+    }
+
+    /**
+     * @return The scope of a path such as /@ourco%2fthing or /@ourco/thing/-/thing-1.0.0.tgz, or null if it is not scoped
+     */
+    static String scopeOf(String path) {
+        if (!path.startsWith("/@")) {
+            return null;
+        }
+        int slash = path.indexOf('/', 1);
+        int encodedSlash = path.toLowerCase().indexOf("%2f", 1);
+        int end = (slash == -1) ? encodedSlash : (encodedSlash == -1) ? slash : Math.min(slash, encodedSlash);
+        return (end == -1) ? null : path.substring(1, end).toLowerCase();
+    }
+
+    /**
+     * A registry, and the client used to talk to it.
+     */
+    public static class Upstream {
+        private final String url;
+        private final UpstreamClient client;
+        private final long[] latencies = new long[100];
+        private int latencyCount;
+        private int nextLatency;
+
+        public Upstream(String url, UpstreamClient client) {
+            this.url = StringUtils.stripEnd(url, "/");
+            this.client = client;
+        }
+
+        UpstreamResponse get(String url, Map<String, String> requestHeaders) throws IOException {
+            long start = System.nanoTime();
+            UpstreamResponse response = client.get(new URL(url), requestHeaders);
+            recordLatency(System.nanoTime() - start);
+            return response;
+        }
+
+        private synchronized void recordLatency(long nanos) {
+            latencies[nextLatency] = nanos;
+            nextLatency = (nextLatency + 1) % latencies.length;
+            latencyCount = Math.min(latencyCount + 1, latencies.length);
+        }
+
+        /**
+         * @return The time taken by the given percentage of recent requests to get their response headers, or
+         * -1 if there have not been any
+         */
+        synchronized long percentileNanos(int percentile) {
+            if (latencyCount == 0) {
+                return -1;
+            }
+            long[] sorted = Arrays.copyOf(latencies, latencyCount);
+            Arrays.sort(sorted);
+            int index = (int) Math.ceil(percentile / 100.0 * latencyCount) - 1;
+            return sorted[Math.max(0, Math.min(latencyCount - 1, index))];
+        }
+    }
+
+    private static boolean isAnswer(UpstreamResponse response) {
+        int status = response.getStatus();
+        return status < 500 && status != 429;
+    }
+
+    /**
+     * Sends one request to as many mirrors as it takes to get an answer. Responses that arrive after the answer
+     * was chosen are closed as they arrive, so their connections are not left open.
+     */
+    private class Race {
+        private final String path;
+        private final Map<String, String> requestHeaders;
+        private final BlockingQueue<Attempt> finished = new LinkedBlockingQueue<Attempt>();
+        private boolean decided;
+        private int started;
+
+        Race(String path, Map<String, String> requestHeaders) {
+            this.path = path;
+            this.requestHeaders = requestHeaders;
+        }
+
+        UpstreamResponse run() throws IOException {
+            long hedgeDelay = hedgeDelayNanos();
+            start();
+            int done = 0;
+            Attempt lastFailure = null;
+            try {
+                while (done < started) {
+                    boolean canHedge = started < mirrors.size();
+                    Attempt attempt = (canHedge && hedgeDelay >= 0) ? finished.poll(hedgeDelay, TimeUnit.NANOSECONDS) : finished.take();
+                    if (attempt == null) {
+                        hedges.increment();
+                        start();
+                        continue;
+                    }
+                    done++;
+                    if (attempt.response != null && isAnswer(attempt.response)) {
+                        if (attempt.index > 0) {
+                            hedgeWins.increment();
+                        }
+                        close(lastFailure);
+                        closeLosers(attempt);
+                        return attempt.response;
+                    }
+                    close(lastFailure);
+                    lastFailure = attempt;
+                    if (canHedge) {
+                        start();
+                    }
+                }
+            } catch (InterruptedException e) {
+                close(lastFailure);
+                closeLosers(null);
+                throw new InterruptedIOException("Interrupted while waiting for " + path);
+            }
+            // every mirror failed, so the last failure is passed on
+            closeLosers(lastFailure);
+            if (lastFailure.response != null) {
+                return lastFailure.response;
+            }
+            throw lastFailure.failure;
+        }
+
+        private long hedgeDelayNanos() {
+            if (hedgePercentile <= 0) {
+                return -1;
+            }
+            return Math.max(minHedgeDelayNanos, mirrors.get(0).percentileNanos(hedgePercentile));
+        }
+
+        private void start() {
+            final Attempt attempt = new Attempt(started++);
+            final Upstream mirror = mirrors.get(attempt.index);
+            executor.execute(new Runnable() {
+                public void run() {
+                    try {
+                        attempt.response = mirror.get(mirror.url + path, requestHeaders);
+                    } catch (IOException e) {
+                        attempt.failure = e;
+                    } catch (RuntimeException e) {
+                        attempt.failure = new IOException("Error while asking " + mirror.url + " for " + path, e);
+                    }
+                    if (!finish(attempt) && attempt.response != null) {
+                        attempt.response.close();
+                    }
+                }
+            });
+        }
+
+        /**
+         * @return False if the race was already decided, in which case the attempt is not needed
+         */
+        private synchronized boolean finish(Attempt attempt) {
+            if (decided) {
+                return false;
+            }
+            finished.add(attempt);
+            return true;
+        }
+
+        private void closeLosers(Attempt winner) {
+            List<Attempt> losers = new ArrayList<Attempt>();
+            synchronized (this) {
+                decided = true;
+                finished.drainTo(losers);
+            }
+            for (Attempt loser : losers) {
+                if (loser != winner) {
+                    close(loser);
+                }
+            }
+        }
+
+        private void close(Attempt attempt) {
+            if (attempt != null && attempt.response != null) {
+                attempt.response.close();
+            }
+        }
+    }
+
+    private static class Attempt {
+        private final int index;
+        private volatile UpstreamResponse response;
+        private volatile IOException failure;
+
+        Attempt(int index) {
+            this.index = index;
+        }
+    }
+}
@@ -0,0 +1,235 @@
+package com.danielflower.internalnpmserver.services;
+
+import com.danielflower.internalnpmserver.metrics.Counter;
+import com.danielflower.internalnpmserver.metrics.Histogram;
+import com.danielflower.internalnpmserver.metrics.Metrics;
+import org.apache.commons.io.FileUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.URL;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Makes sure that, as far as it can, only one of several servers that share a cache folder, e.g. on a network
+ * drive, downloads any given file at a time. The {@link SingleFlightDownloader} only stops downloads within one
+ * server.
+ * <p>
+ * A server creates a lock file next to the file before downloading it, and deletes it afterwards. Creating a
+ * file that does not exist yet is atomic, even on NFS, so only one server gets the lock. Other servers that
+ * want a file which is not cached yet wait for the lock file to go, and then use the file the first server
+ * saved. If the file is already cached they do not wait, and the cached copy is used until it is refreshed.
+ * A server waits at most {@link #MAX_WAIT_LEASES} times the lease time, after which it downloads the file
+ * itself, to a file of its own so that it does not write over the other server's partial download.
+ * <p>
+ * The lock is a lease: the server holding it touches the lock file while it downloads, and a lock file that
+ * has not been touched for the lease time was left by a server that stopped. It is then deleted, along with
+ * any partial download, so that the next request downloads the file again. The clocks of the servers should
+ * agree to within much less than the lease time.
+ * <p>
+ * Deleting an expired lock is not atomic: the modified time of the lock file is checked and then the file is
+ * deleted, so a lock that another server creates in between is deleted too, along with its partial download,
+ * and a third server may then download the same file at the same time. The lock therefore stops most, but
+ * not all, duplicate downloads. Files are only ever published by renaming a complete download over the cached
+ * file, so the cached file itself is never left half written.
+ */
+public class SharedFolderFileDownloader implements FileDownloader {
+    private static final Logger log = LoggerFactory.getLogger(SharedFolderFileDownloader.class);
+
+    static final int MAX_WAIT_LEASES = 5;
+
+    private final FileDownloader delegate;
+    private final String owner;
+    private final long leaseMillis;
+    private final long pollMillis;
+    private final ScheduledExecutorService renewer;
+    private final Counter waits;
+    private final Counter staleHits;
+    private final Counter expired;
+    private final Counter failovers;
+    private final Histogram waitTime;
+
+    public SharedFolderFileDownloader(FileDownloader delegate, String owner, long leaseMillis, long pollMillis, ScheduledExecutorService renewer) {
+        this(delegate, owner, leaseMillis, pollMillis, renewer, new Metrics());
+    }
+
+    /**
+     * @param owner       Written to the lock files, to tell which server holds them
+     * @param leaseMillis How long a lock file lasts without being touched before it is taken to be abandoned
+     * @param pollMillis  How often a server waiting for another checks whether it has finished
+     * @param renewer     Touches the lock files of downloads that are running
+     * @param metrics     Where the number of downloads that waited for another server, and the time waited, are recorded
+     */
+    public SharedFolderFileDownloader(FileDownloader delegate, String owner, long leaseMillis, long pollMillis, ScheduledExecutorService renewer, Metrics metrics) {
+        this.delegate = delegate;
+        this.owner = owner;
+        this.leaseMillis = leaseMillis;
+        this.pollMillis = pollMillis;
+        this.renewer = renewer;
+        String help = "Downloads of files that another server sharing the cache folder was already downloading, by whether "
+                + "this server waited for it or used its cached copy";
+        this.waits = metrics.counter("npm_shared_lock_contended_total", help, "outcome", "waited");
+        this.staleHits = metrics.counter("npm_shared_lock_contended_total", help, "outcome", "stale");
+        this.expired = metrics.counter("npm_shared_lock_expired_total", "Lock files left in the cache folder by servers that stopped while downloading");
+        this.failovers = metrics.counter("npm_shared_lock_failovers_total", "Downloads that another server sharing the cache folder took so long "
+                + "over that this server downloaded the file too");
+        this.waitTime = metrics.histogram("npm_shared_lock_wait_seconds", "Time spent waiting for another server sharing the cache folder to download a file");
+    }
+
+    @Override
+    public boolean fetch(URL source, File destination) throws IOException {
+        File lockFile = CacheFiles.lockFile(destination);
+        long lastModified = destination.lastModified();
+        if (!tryLock(lockFile)) {
+            if (lastModified != 0) {
+                // the abandoned lock of a cached file is only noticed here, as nothing waits for it
+                deleteIfExpired(lockFile, destination);
+                staleHits.increment();
+                return false;
+            }
+            if (awaitOtherServer(source, destination, lockFile)) {
+                return true;
+            }
+            failovers.increment();
+            log.warn(readOwner(lockFile) + " has been downloading " + source + " for more than " + (leaseMillis * MAX_WAIT_LEASES)
+                    + "ms so this server is downloading it too");
+            return downloadToOwnFile(source, destination);
+        }
+        try {
+            if (destination.lastModified() != lastModified) {
+                // another server saved it after this one decided to download it
+                return true;
+            }
+            File partialFile = CacheFiles.partialFile(destination);
+            if (partialFile.exists()) {
+                // requests may already be reading it, so it cannot simply be written over
+                deleteAbandoned(partialFile);
+                throw new IOException("A server that stopped while downloading " + source + " left a partial download, so it will be downloaded again by the next request for it");
+            }
+            ScheduledFuture<?> renewal = renewer.scheduleWithFixedDelay(renew(lockFile),
+                    leaseMillis / 3, leaseMillis / 3, TimeUnit.MILLISECONDS);
+            try {
+                return delegate.fetch(source, destination);
+            } finally {
+                renewal.cancel(false);
+            }
+        } finally {
+            if (!lockFile.delete()) {
+                log.warn("Could not delete " + lockFile + " so other servers will not download it until its lease expires");
+            }
+        }
+    }
+
+    private boolean tryLock(File lockFile) throws IOException {
+        if (lockFile.getParentFile().mkdirs()) {
+            log.info("Will create " + lockFile.getParentFile().getCanonicalPath());
+        }
+        if (!lockFile.createNewFile()) {
+            return false;
+        }
+        try {
+            FileUtils.writeStringToFile(lockFile, owner);
+        } catch (IOException e) {
+            deleteAbandoned(lockFile);
+            throw e;
+        }
+        return true;
+    }
+
+    private Runnable renew(final File lockFile) {
+        return new Runnable() {
+            public void run() {
+                if (!lockFile.setLastModified(System.currentTimeMillis())) {
+                    log.warn("Could not renew the lease on " + lockFile + " so another server may download it too");
+                }
+            }
+        };
+    }
+
+    /**
+     * @return False if the other server was still downloading it when this one gave up waiting
+     */
+    private boolean awaitOtherServer(URL source, File destination, File lockFile) throws IOException {
+        waits.increment();
+        long start = System.nanoTime();
+        long maxWaitNanos = TimeUnit.MILLISECONDS.toNanos(leaseMillis * MAX_WAIT_LEASES);
+        try {
+            while (lockFile.exists()) {
+                if (deleteIfExpired(lockFile, destination)) {
+                    throw new IOException("Another server stopped while downloading " + source + " so it will be downloaded again by the next request for it");
+                }
+                if (System.nanoTime() - start >= maxWaitNanos) {
+                    return false;
+                }
+                try {
+                    Thread.sleep(pollMillis);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting for another server to download " + source);
+                }
+            }
+        } finally {
+            waitTime.recordNanos(System.nanoTime() - start);
+        }
+        if (!destination.isFile()) {
+            throw new IOException("Another server sharing the cache folder could not download " + source);
+        }
+        return true;
+    }
+
+    private boolean downloadToOwnFile(URL source, File destination) throws IOException {
+        File ownFile = CacheFiles.failoverFile(destination);
+        File ownValidators = CacheFiles.validatorsFile(ownFile);
+        try {
+            boolean downloaded = delegate.fetch(source, ownFile);
+            if (ownValidators.isFile()) {
+                CacheFiles.publish(ownValidators, CacheFiles.validatorsFile(destination));
+            }
+            CacheFiles.publish(ownFile, destination);
+            return downloaded;
+        } finally {
+            deleteAbandoned(ownFile);
+            deleteAbandoned(ownValidators);
+            deleteAbandoned(CacheFiles.partialFile(ownFile));
+        }
+    }
+
+    /**
+     * @return True if the lock had not been touched for the lease time, in which case it and any partial
+     * download were deleted
+     */
+    private boolean deleteIfExpired(File lockFile, File destination) {
+        long lockModified = lockFile.lastModified();
+        if (lockModified == 0 || System.currentTimeMillis() - lockModified <= leaseMillis) {
+            return false;
+        }
+        expired.increment();
+        log.warn("The lease on " + lockFile + " held by " + readOwner(lockFile) + " expired, so it is being deleted");
+        // check it was not replaced since it was looked at, so a new lock is not deleted, though one created
+        // between this check and the delete still is, as described in the class comment
+        if (lockFile.lastModified() == lockModified) {
+            deleteAbandoned(lockFile);
+            deleteAbandoned(CacheFiles.partialFile(destination));
+        }
+        return true;
+    }
+
+    private static String readOwner(File lockFile) {
+        try {
+            return FileUtils.readFileToString(lockFile);
+        } catch (IOException e) {
+            return "an unknown server";
+        }
+    }
+
+    private static void deleteAbandoned(File file) {
+        if (file.exists() && !file.delete()) {
+            log.warn("Could not delete " + file);
+        }
+    }
+}
@@ -0,0 +1,168 @@
+package com.danielflower.internalnpmserver.services;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.net.URL;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Makes sure that only one download of any given cache file happens at a time. The first request for
+ * a file starts the download on the executor, and any requests that arrive while it is running are
+ * given the same {@link InFlightDownload} so they can wait for it, or stream from it, rather than
+ * downloading the file again.
+ * <p>
+ * Readers of a download that is still running are woken when the downloader says more bytes have been
+ * written, if it is given this as a {@link DownloadProgressListener}, and otherwise look for more bytes
+ * regularly.
+ */
+public class SingleFlightDownloader implements DownloadProgressListener {
+    private static final Logger log = LoggerFactory.getLogger(SingleFlightDownloader.class);
+
+    private final FileDownloader downloader;
+    private final Executor executor;
+    private final Executor backgroundExecutor;
+    private final boolean sharedCacheFolder;
+    private final KeyedLock<File> fileLocks;
+    private final ConcurrentMap<File, InFlightDownload> inFlight = new ConcurrentHashMap<File, InFlightDownload>();
+    private final List<DownloadListener> listeners = new CopyOnWriteArrayList<DownloadListener>();
+
+    public SingleFlightDownloader(FileDownloader downloader, Executor executor) {
+        this(downloader, executor, executor);
+    }
+
+    /**
+     * @param backgroundExecutor Runs background refreshes. This should be bounded, as refreshes that it
+     *                           rejects are simply skipped until a later request asks for them again.
+     */
+    public SingleFlightDownloader(FileDownloader downloader, Executor executor, Executor backgroundExecutor) {
+        this(downloader, executor, backgroundExecutor, false);
+    }
+
+    /**
+     * @param sharedCacheFolder True if other servers download to the same cache folder, in which case partial
+     *                          files may be theirs and are left alone, and the downloader must deal with any
+     *                          that were left over
+     */
+    public SingleFlightDownloader(FileDownloader downloader, Executor executor, Executor backgroundExecutor, boolean sharedCacheFolder) {
+        this(downloader, executor, backgroundExecutor, sharedCacheFolder, new KeyedLock<File>());
+    }
+
+    /**
+     * @param fileLocks Locked for each destination while it is downloaded and its listeners are told, so that
+     *                  anything else that changes cached files, such as the {@link CacheSweeper}, can wait for it
+     */
+    public SingleFlightDownloader(FileDownloader downloader, Executor executor, Executor backgroundExecutor, boolean sharedCacheFolder, KeyedLock<File> fileLocks) {
+        this.sharedCacheFolder = sharedCacheFolder;
+        this.fileLocks = fileLocks;
+        this.downloader = downloader;
+        this.executor = executor;
+        this.backgroundExecutor = backgroundExecutor;
+    }
+
+    /**
+     * Starts downloading the source to the destination, or joins the download of that destination
+     * which is already running.
+     */
+    public InFlightDownload fetch(URL source, File destination) {
+        InFlightDownload download = newDownload(destination);
+        InFlightDownload existing = inFlight.putIfAbsent(destination, download);
+        if (existing != null) {
+            return existing;
+        }
+        start(source, download, executor, false);
+        return download;
+    }
+
+    /**
+     * Starts downloading the source to the destination in the background, unless that destination is
+     * already being downloaded or the background executor is busy.
+     *
+     * @return True if a refresh was started
+     */
+    public boolean refreshInBackground(URL source, File destination) {
+        if (inFlight.containsKey(destination)) {
+            return false;
+        }
+        InFlightDownload download = newDownload(destination);
+        if (inFlight.putIfAbsent(destination, download) != null) {
+            return false;
+        }
+        return start(source, download, backgroundExecutor, true);
+    }
+
+    public void addListener(DownloadListener listener) {
+        listeners.add(listener);
+    }
+
+    @Override
+    public void written(File destination) {
+        InFlightDownload download = inFlight.get(destination);
+        if (download != null) {
+            download.progressed();
+        }
+    }
+
+    private InFlightDownload newDownload(File destination) {
+        return new InFlightDownload(destination, sharedCacheFolder
+                ? InFlightDownload.SHARED_FOLDER_POLL_INTERVAL_MILLIS
+                : InFlightDownload.POLL_INTERVAL_MILLIS, sharedCacheFolder);
+    }
+
+    public int getInFlightCount() {
+        return inFlight.size();
+    }
+
+    private boolean start(final URL source, final InFlightDownload download, Executor executor, final boolean background) {
+        // anything left over from a crashed download must not be streamed to clients as if it were this one
+        File partialFile = CacheFiles.partialFile(download.getDestination());
+        if (!sharedCacheFolder && partialFile.isFile() && !partialFile.delete()) {
+            log.warn("Could not delete " + partialFile);
+        }
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    download(source, download, background);
+                }
+            });
+            return true;
+        } catch (RejectedExecutionException e) {
+            log.debug("Could not start download of " + source + ": " + e.getMessage());
+            finish(download, e);
+            return false;
+        }
+    }
+
+    private void download(URL source, InFlightDownload download, boolean background) {
+        Throwable failure = null;
+        fileLocks.lock(download.getDestination());
+        try {
+            downloader.fetch(source, download.getDestination());
+            for (DownloadListener listener : listeners) {
+                listener.downloaded(download.getDestination());
+            }
+        } catch (Throwable t) {
+            if (background) {
+                log.warn("Background refresh of " + source + " failed so the cached copy will be used for now. Error was: " + t.getMessage());
+            } else {
+                log.debug("Download of " + source + " failed", t);
+            }
+            failure = t;
+        } finally {
+            fileLocks.unlock(download.getDestination());
+            finish(download, failure);
+        }
+    }
+
+    private void finish(InFlightDownload download, Throwable failure) {
+        download.finish(failure);
+        inFlight.remove(download.getDestination(), download);
+    }
+}
@@ -0,0 +1,194 @@
+package com.danielflower.internalnpmserver.services;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Replaces any number of strings in a stream of bytes as it is written, in one pass and using a fixed
+ * amount of memory no matter how big the stream is.
+ * <p>
+ * The patterns are compiled once into an Aho-Corasick automaton over UTF-8 bytes, and each stream only
+ * buffers the bytes that might be the start of a match. When two patterns could match at the same
+ * place, the one that ends first wins. Instances are immutable and can be shared between threads.
+ */
+public class StreamingReplacer {
+
+    private final int[][] transitions;
+    private final int[] depth;
+    private final int[] matchLength;
+    private final byte[][] replacements;
+    private final int maxDepth;
+
+    /**
+     * @param replacements The strings to find, mapped to what they should be replaced with.
+     */
+    public StreamingReplacer(Map<String, String> replacements) {
+        List<int[]> trie = new ArrayList<int[]>();
+        List<Integer> depths = new ArrayList<Integer>();
+        List<byte[]> terminalReplacements = new ArrayList<byte[]>();
+        List<Integer> terminalLengths = new ArrayList<Integer>();
+        addState(trie, depths, terminalReplacements, terminalLengths, 0);
+
+        for (Map.Entry<String, String> replacement : replacements.entrySet()) {
+            byte[] pattern = utf8(replacement.getKey());
+            if (pattern.length == 0) {
+                throw new IllegalArgumentException("Cannot replace an empty string");
+            }
+            int state = 0;
+            for (byte b : pattern) {
+                int next = trie.get(state)[b & 0xff];
+                if (next == 0) {
+                    next = addState(trie, depths, terminalReplacements, terminalLengths, depths.get(state) + 1);
+                    trie.get(state)[b & 0xff] = next;
+                }
+                state = next;
+            }
+            terminalReplacements.set(state, utf8(replacement.getValue()));
+            terminalLengths.set(state, pattern.length);
+        }
+
+        int states = trie.size();
+        this.transitions = trie.toArray(new int[states][]);
+        this.depth = new int[states];
+        this.matchLength = new int[states];
+        this.replacements = new byte[states][];
+        int deepest = 0;
+        for (int i = 0; i < states; i++) {
+            depth[i] = depths.get(i);
+            deepest = Math.max(deepest, depth[i]);
+        }
+        this.maxDepth = deepest;
+
+        // Breadth first, fill in the failure transitions so that every state has a move for every byte, and
+        // work out which pattern (if any) ends at each state, including patterns that are suffixes of it.
+        int[] failure = new int[states];
+        LinkedList<Integer> queue = new LinkedList<Integer>();
+        for (int b = 0; b < 256; b++) {
+            int next = transitions[0][b];
+            if (next != 0) {
+                failure[next] = 0;
+                queue.add(next);
+            }
+        }
+        for (int state = 0; state < states; state++) {
+            if (terminalLengths.get(state) > 0) {
+                matchLength[state] = terminalLengths.get(state);
+                this.replacements[state] = terminalReplacements.get(state);
+            }
+        }
+        while (!queue.isEmpty()) {
+            int state = queue.removeFirst();
+            if (matchLength[state] == 0 && matchLength[failure[state]] > 0) {
+                matchLength[state] = matchLength[failure[state]];
+                this.replacements[state] = this.replacements[failure[state]];
+            }
+            for (int b = 0; b < 256; b++) {
+                int next = transitions[state][b];
+                if (next != 0) {
+                    failure[next] = transitions[failure[state]][b];
+                    queue.add(next);
+                } else {
+                    transitions[state][b] = transitions[failure[state]][b];
+                }
+            }
+        }
+    }
+
+    private static int addState(List<int[]> trie, List<Integer> depths, List<byte[]> terminalReplacements, List<Integer> terminalLengths, int depth) {
+        trie.add(new int[256]);
+        depths.add(depth);
+        terminalReplacements.add(null);
+        terminalLengths.add(0);
+        return trie.size() - 1;
+    }
+
+    private static byte[] utf8(String value) {
+        try {
+            return value.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e); // UTF-8 is always supported
+        }
+    }
+
+    /**
+     * Returns a stream that writes to the given stream with the replacements made. Bytes that may be the
+     * start of a match are held back until it is known whether they are, so the returned stream must be
+     * closed to write the last of them.
+     */
+    public OutputStream wrap(OutputStream out) {
+        return new ReplacingOutputStream(out);
+    }
+
+    private class ReplacingOutputStream extends FilterOutputStream {
+        private final byte[] pending = new byte[maxDepth + 1];
+        private int pendingLength;
+        private int state;
+
+        ReplacingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            int next = transitions[state][b & 0xff];
+            pending[pendingLength++] = (byte) b;
+
+            // any bytes at the start that can no longer be part of a match can be written out
+            int noLongerNeeded = pendingLength - depth[next];
+            if (noLongerNeeded > 0) {
+                out.write(pending, 0, noLongerNeeded);
+                pendingLength -= noLongerNeeded;
+                System.arraycopy(pending, noLongerNeeded, pending, 0, pendingLength);
+            }
+            state = next;
+
+            int matched = matchLength[state];
+            if (matched > 0) {
+                out.write(pending, 0, pendingLength - matched);
+                out.write(replacements[state]);
+                pendingLength = 0;
+                state = 0;
+            }
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            int end = off + len;
+            int i = off;
+            while (i < end) {
+                if (state == 0) {
+                    // copy runs of bytes that cannot start a match straight through
+                    int runStart = i;
+                    while (i < end && transitions[0][b[i] & 0xff] == 0) {
+                        i++;
+                    }
+                    if (i > runStart) {
+                        out.write(b, runStart, i - runStart);
+                    }
+                    if (i == end) {
+                        break;
+                    }
+                }
+                write(b[i]);
+                i++;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                out.write(pending, 0, pendingLength);
+                pendingLength = 0;
+                state = 0;
+            } finally {
+                super.close();
+            }
+        }
+    }
+}
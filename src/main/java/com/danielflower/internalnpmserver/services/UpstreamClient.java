@@ -0,0 +1,18 @@
+package com.danielflower.internalnpmserver.services;
+
+import java.io.IOException;
+import java.net.URL;
+import java.util.Map;
+
+/**
+ * Makes GET requests to the remote NPM registry.
+ */
+public interface UpstreamClient {
+
+    /**
+     * Sends the request and returns once the response headers have arrived. The response must be closed
+     * so that the connection can be reused.
+     */
+    UpstreamResponse get(URL url, Map<String, String> requestHeaders) throws IOException;
+
+}
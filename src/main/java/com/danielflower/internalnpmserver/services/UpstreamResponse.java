@@ -0,0 +1,26 @@
+package com.danielflower.internalnpmserver.services;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+public interface UpstreamResponse {
+
+    int getStatus();
+
+    /**
+     * @return The header value, or null if the response did not have it.
+     */
+    String getHeader(String name);
+
+    /**
+     * @return The length of the body, or -1 if it is not known.
+     */
+    long getContentLength();
+
+    InputStream getBody() throws IOException;
+
+    /**
+     * Releases the connection, returning it to the pool if the body was fully read.
+     */
+    void close();
+}
@@ -0,0 +1,253 @@
+package com.danielflower.internalnpmserver.webserver;
+
+import com.danielflower.internalnpmserver.services.DaemonThreadFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Writes a line of JSON for each request to a file, without slowing down the requests.
+ * <p>
+ * Request threads copy the details of each request into a slot in a fixed-size ring of reusable entries,
+ * which takes no locks and allocates nothing. A background thread formats the entries and writes them in
+ * batches, flushing whenever it has caught up. If requests arrive faster than they can be written and the
+ * ring fills up, new entries are either dropped (and counted) or the request threads wait for space.
+ */
+public class AccessLog implements Closeable {
+    private static final Logger log = LoggerFactory.getLogger(AccessLog.class);
+
+    private static final long IDLE_NANOS = TimeUnit.MILLISECONDS.toNanos(5);
+    private static final long FULL_WAIT_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+    private static final int BUFFER_CHARS = 64 * 1024;
+
+    private final Entry[] ring;
+    private final int mask;
+    private final boolean blockWhenFull;
+    private final Writer out;
+    private final Thread writerThread;
+    // the next sequence number for a request thread to claim
+    private final AtomicLong claimed = new AtomicLong();
+    // the next sequence number for the writer to write, which is only changed by the writer thread
+    private volatile long written;
+    private volatile boolean closed;
+    private final AtomicLong dropped = new AtomicLong();
+
+    /**
+     * @param capacity      The number of entries that can be waiting to be written, rounded up to a power of two
+     * @param blockWhenFull If true, requests wait for space when the ring is full. Otherwise, their entries are dropped.
+     */
+    public AccessLog(File file, int capacity, boolean blockWhenFull) throws IOException {
+        this(new OutputStreamWriter(new FileOutputStream(file, true), "UTF-8"), capacity, blockWhenFull);
+    }
+
+    AccessLog(Writer out, int capacity, boolean blockWhenFull) {
+        int size = Integer.highestOneBit(Math.max(1, capacity - 1)) << 1;
+        this.ring = new Entry[size];
+        for (int i = 0; i < size; i++) {
+            ring[i] = new Entry();
+        }
+        this.mask = size - 1;
+        this.blockWhenFull = blockWhenFull;
+        this.out = new BufferedWriter(out, BUFFER_CHARS);
+        this.writerThread = new DaemonThreadFactory("access-log").newThread(new Runnable() {
+            public void run() {
+                writeUntilClosed();
+            }
+        });
+    }
+
+    public void start() {
+        writerThread.start();
+    }
+
+    /**
+     * @param contentLength The Content-Length header of the response, or null if it was sent chunked
+     * @param cacheResult   Whether the response came from the cache, or null if it does not apply
+     * @return False if the entry was dropped because the ring was full or the log is closed
+     */
+    public boolean record(long timeMillis, String method, String target, InetSocketAddress client, int status,
+                          String contentLength, String cacheResult, long durationNanos) {
+        long sequence;
+        while (true) {
+            sequence = claimed.get();
+            if (closed) {
+                dropped.incrementAndGet();
+                return false;
+            }
+            if (sequence - written >= ring.length) {
+                if (!blockWhenFull) {
+                    dropped.incrementAndGet();
+                    return false;
+                }
+                LockSupport.parkNanos(FULL_WAIT_NANOS);
+            } else if (claimed.compareAndSet(sequence, sequence + 1)) {
+                break;
+            }
+        }
+        Entry entry = ring[(int) sequence & mask];
+        entry.timeMillis = timeMillis;
+        entry.method = method;
+        entry.target = target;
+        entry.client = client;
+        entry.status = status;
+        entry.contentLength = contentLength;
+        entry.cacheResult = cacheResult;
+        entry.durationNanos = durationNanos;
+        // the writer only reads the fields after seeing this, so it sees all of them
+        entry.published = sequence;
+        return true;
+    }
+
+    /**
+     * The number of entries that were not written because the ring was full.
+     */
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    /**
+     * Writes everything that has been recorded, and stops.
+     */
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        LockSupport.unpark(writerThread);
+        try {
+            writerThread.join(TimeUnit.SECONDS.toMillis(10));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        out.close();
+    }
+
+    private void writeUntilClosed() {
+        StringBuilder line = new StringBuilder(256);
+        SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
+        dateFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+        boolean unflushed = false;
+        while (true) {
+            // read before draining, so that nothing recorded before close is missed
+            boolean closing = closed;
+            int count = drain(line, dateFormat);
+            if (count > 0) {
+                unflushed = true;
+            } else {
+                if (unflushed) {
+                    flush();
+                    unflushed = false;
+                }
+                if (closing) {
+                    return;
+                }
+                LockSupport.parkNanos(IDLE_NANOS);
+            }
+        }
+    }
+
+    private int drain(StringBuilder line, SimpleDateFormat dateFormat) {
+        int count = 0;
+        long sequence = written;
+        while (count < ring.length) {
+            Entry entry = ring[(int) sequence & mask];
+            if (entry.published != sequence) {
+                break;
+            }
+            line.setLength(0);
+            entry.format(line, dateFormat);
+            entry.clear();
+            written = ++sequence;
+            count++;
+            try {
+                out.append(line);
+            } catch (IOException e) {
+                log.warn("Could not write to the access log: " + e.getMessage());
+            }
+        }
+        return count;
+    }
+
+    private void flush() {
+        try {
+            out.flush();
+        } catch (IOException e) {
+            log.warn("Could not write to the access log: " + e.getMessage());
+        }
+    }
+
+    private static class Entry {
+        volatile long published = -1;
+        long timeMillis;
+        String method;
+        String target;
+        InetSocketAddress client;
+        int status;
+        String contentLength;
+        String cacheResult;
+        long durationNanos;
+
+        void format(StringBuilder line, SimpleDateFormat dateFormat) {
+            line.append("{\"time\":\"").append(dateFormat.format(new Date(timeMillis))).append('"');
+            if (client != null) {
+                appendString(line.append(",\"client\":"), client.getAddress() == null ? client.getHostName() : client.getAddress().getHostAddress());
+            }
+            appendString(line.append(",\"method\":"), method);
+            appendString(line.append(",\"target\":"), target);
+            line.append(",\"status\":").append(status);
+            if (contentLength != null) {
+                appendNumber(line.append(",\"bytes\":"), contentLength.trim());
+            }
+            if (cacheResult != null) {
+                appendString(line.append(",\"cache\":"), cacheResult);
+            }
+            line.append(",\"duration_ns\":").append(durationNanos).append("}\n");
+        }
+
+        /**
+         * Lets the request's strings be garbage collected while the entry waits to be reused.
+         */
+        void clear() {
+            method = null;
+            target = null;
+            client = null;
+            contentLength = null;
+            cacheResult = null;
+        }
+
+        private static void appendNumber(StringBuilder line, String value) {
+            for (int i = 0; i < value.length(); i++) {
+                if (!Character.isDigit(value.charAt(i))) {
+                    appendString(line, value);
+                    return;
+                }
+            }
+            line.append(value.isEmpty() ? "null" : value);
+        }
+
+        private static void appendString(StringBuilder line, String value) {
+            if (value == null) {
+                line.append("null");
+                return;
+            }
+            line.append('"');
+            for (int i = 0; i < value.length(); i++) {
+                char c = value.charAt(i);
+                if (c == '"' || c == '\\') {
+                    line.append('\\').append(c);
+                } else if (c < 0x20) {
+                    line.append(String.format("\\u%04x", (int) c));
+                } else {
+                    line.append(c);
+                }
+            }
+            line.append('"');
+        }
+    }
+}
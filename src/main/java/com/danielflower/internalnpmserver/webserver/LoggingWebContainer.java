@@ -8,17 +8,38 @@ import org.slf4j.LoggerFactory;
 
 public class LoggingWebContainer implements Container {
     private static final Logger log = LoggerFactory.getLogger(LoggingWebContainer.class);
+
+    /**
+     * The response header that says whether a response came from the cache.
+     */
+    public static final String CACHE_RESULT_HEADER = "X-Cache";
+
     private final Container underlying;
+    private final AccessLog accessLog;
 
     public LoggingWebContainer(Container underlying) {
+        this(underlying, null);
+    }
+
+    /**
+     * @param accessLog Where each request is recorded. If null, each request is logged at INFO instead.
+     */
+    public LoggingWebContainer(Container underlying, AccessLog accessLog) {
         this.underlying = underlying;
+        this.accessLog = accessLog;
     }
 
     @Override
     public void handle(Request req, Response resp) {
-        long start = System.currentTimeMillis();
+        long startMillis = System.currentTimeMillis();
+        long start = System.nanoTime();
         underlying.handle(req, resp);
-        long time = System.currentTimeMillis() - start;
-        log.info("Handled request to " + req.getTarget() + " in " + time + "ms");
+        long time = System.nanoTime() - start;
+        if (accessLog == null) {
+            log.info("Handled request to " + req.getTarget() + " in " + (time / 1000000) + "ms");
+        } else {
+            accessLog.record(startMillis, req.getMethod(), req.getTarget(), req.getClientAddress(), resp.getCode(),
+                    resp.getValue("Content-Length"), resp.getValue(CACHE_RESULT_HEADER), time);
+        }
     }
 }
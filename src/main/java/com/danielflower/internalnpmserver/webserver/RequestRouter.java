@@ -1,31 +1,92 @@
 package com.danielflower.internalnpmserver.webserver;
 
+import com.danielflower.internalnpmserver.metrics.Counter;
+import com.danielflower.internalnpmserver.metrics.Histogram;
+import com.danielflower.internalnpmserver.metrics.Metrics;
 import org.simpleframework.http.Request;
 import org.simpleframework.http.Response;
 import org.simpleframework.http.core.Container;
 
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
 public class RequestRouter implements Container {
+    private static final String NO_ROUTE = "none";
+
     private final RequestHandler[] handlers;
+    private final Metrics metrics;
+    private final Route[] routes;
+    private final Route noRoute;
 
     public RequestRouter(RequestHandler[] handlers) {
+        this(handlers, new Metrics());
+    }
+
+    /**
+     * @param metrics Where the time taken and response code of each request is recorded, by the name of the
+     *                handler that handled it
+     */
+    public RequestRouter(RequestHandler[] handlers, Metrics metrics) {
         this.handlers = handlers;
+        this.metrics = metrics;
+        this.routes = new Route[handlers.length];
+        for (int i = 0; i < handlers.length; i++) {
+            routes[i] = new Route(handlers[i].getClass().getSimpleName());
+        }
+        this.noRoute = new Route(NO_ROUTE);
     }
 
     @Override
     public void handle(Request req, Response resp) {
+        long start = System.nanoTime();
         String path = req.getPath().getPath();
-        for (RequestHandler handler : handlers) {
+        for (int i = 0; i < handlers.length; i++) {
+            RequestHandler handler = handlers[i];
             if (handler.canHandle(path)) {
+                int code = 500;
                 try {
                     handler.handle(req, resp);
+                    code = resp.getCode();
                     return;
                 } catch (ResourceNotFoundException rnfe) {
+                    code = 404;
                     throw rnfe;
                 } catch (Exception e) {
                     throw new UnhandledException(e);
+                } finally {
+                    routes[i].record(code, System.nanoTime() - start);
                 }
             }
         }
+        noRoute.record(404, System.nanoTime() - start);
         throw new ResourceNotFoundException(req.getTarget());
     }
+
+    private class Route {
+        private final String name;
+        private final Histogram latency;
+        // looked up the first time each code is sent, so that recording doesn't need to build label strings
+        private final AtomicReferenceArray<Counter> responsesByCode = new AtomicReferenceArray<Counter>(600);
+
+        Route(String name) {
+            this.name = name;
+            this.latency = metrics.histogram("http_request_duration_seconds", "Time taken to handle requests", "route", name);
+        }
+
+        void record(int code, long nanos) {
+            latency.recordNanos(nanos);
+            responsesCounter(code).increment();
+        }
+
+        private Counter responsesCounter(int code) {
+            if (code < 0 || code >= responsesByCode.length()) {
+                return metrics.counter("http_responses_total", "Responses sent", "route", name, "code", String.valueOf(code));
+            }
+            Counter counter = responsesByCode.get(code);
+            if (counter == null) {
+                counter = metrics.counter("http_responses_total", "Responses sent", "route", name, "code", String.valueOf(code));
+                responsesByCode.set(code, counter);
+            }
+            return counter;
+        }
+    }
 }
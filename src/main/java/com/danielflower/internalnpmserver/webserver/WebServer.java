@@ -2,10 +2,16 @@ package com.danielflower.internalnpmserver.webserver;
 
 import com.danielflower.internalnpmserver.App;
 import com.danielflower.internalnpmserver.Config;
+import com.danielflower.internalnpmserver.controllers.AccessRecordingStaticHandler;
+import com.danielflower.internalnpmserver.controllers.CachingStaticHandler;
 import com.danielflower.internalnpmserver.controllers.HomepageHandler;
+import com.danielflower.internalnpmserver.controllers.MetricsHandler;
 import com.danielflower.internalnpmserver.controllers.NpmHandler;
+import com.danielflower.internalnpmserver.controllers.PrefetchHandler;
 import com.danielflower.internalnpmserver.controllers.StaticHandler;
 import com.danielflower.internalnpmserver.controllers.StaticHandlerImpl;
+import com.danielflower.internalnpmserver.metrics.Gauge;
+import com.danielflower.internalnpmserver.metrics.Metrics;
 import com.danielflower.internalnpmserver.rendering.HttpViewRenderer;
 import com.danielflower.internalnpmserver.rendering.NonCachableHttpViewRenderer;
 import com.danielflower.internalnpmserver.rendering.VelocityViewRenderer;
@@ -19,7 +25,14 @@ import org.slf4j.LoggerFactory;
 
 import java.io.File;
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
 import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
 
 public class WebServer {
 
@@ -28,6 +41,11 @@ public class WebServer {
     private static ViewRenderer viewRenderer = new VelocityViewRenderer("/views/");
     private static HttpViewRenderer httpViewRenderer = new NonCachableHttpViewRenderer(viewRenderer);
     public static final File STATIC_ROOT;
+    private static final int BACKGROUND_QUEUE_SIZE = 1000;
+    private static final int INDEX_WALKER_THREADS = 8;
+    private static final long MIN_IDLE_MILLIS_BEFORE_EVICTION = 10 * 60 * 1000L;
+    private static final long SHARED_LOCK_POLL_MILLIS = 100;
+    private static final long STOP_WAIT_MILLIS = 10000;
 
     static {
         File root = new File("src/main/resources/webroot");
@@ -42,39 +60,302 @@ public class WebServer {
     private final Container webContainer;
     private final int port;
     private final String hostname;
+    private final CacheIndex cacheIndex;
+    private final File cacheFolder;
+    private final AccessLog accessLog;
+    private final List<ExecutorService> executors;
 
-    private WebServer(Container webContainer, int port, String hostname) {
+    private WebServer(Container webContainer, int port, String hostname, CacheIndex cacheIndex, File cacheFolder, AccessLog accessLog, List<ExecutorService> executors) {
         this.webContainer = webContainer;
         this.port = port;
         this.hostname = hostname;
+        this.cacheIndex = cacheIndex;
+        this.cacheFolder = cacheFolder;
+        this.accessLog = accessLog;
+        this.executors = executors;
     }
 
     public static WebServer createWebServer(Config config) {
 
-        FileDownloader downloader =
-                new PackageReWritingFileDownloader(
-                new FileDownloaderImpl(config.getProxy()), config.getNpmRepositoryURL(), config.getNpmEndPoint().toString());
+        Metrics metrics = new Metrics();
+        // the executors that run background tasks, which are stopped when the server is
+        List<ExecutorService> executors = new ArrayList<ExecutorService>();
+        HttpURLConnectionUpstreamClient.setMaxIdleConnectionsPerHost(config.getUpstreamMaxIdleConnections());
+        UpstreamClient httpClient = new HttpURLConnectionUpstreamClient(config.getProxy(),
+                config.getUpstreamConnectTimeoutMillis(), config.getUpstreamReadTimeoutMillis(), config.getUpstreamTotalTimeoutMillis());
+        RoutingUpstreamClient routing = createRoutingClient(config, httpClient, metrics, executors);
+        UpstreamClient upstreamClient = (routing == null)
+                ? withCircuitBreaker(config, httpClient, config.getNpmRepositoryURL(), metrics)
+                : routing;
+        List<String> registryURLs = new ArrayList<String>();
+        registryURLs.add(config.getNpmRepositoryURL());
+        registryURLs.addAll(config.getNpmMirrorURLs());
+        registryURLs.addAll(config.getScopeRegistryURLs().values());
+        Map<String, String> requestHeaders = new HashMap<String, String>();
+        PeerCluster cluster = null;
+        if (!config.getClusterNodes().isEmpty()) {
+            cluster = createCluster(config, upstreamClient);
+            upstreamClient = cluster;
+            // packuments from other servers have their URLs in them
+            registryURLs.addAll(cluster.getEndPoints(NpmHandler.PREFIX));
+        }
+        ContentRewriter rewriter = new PackageReWriter(registryURLs, config.getNpmEndPoint().toString());
+        if (config.isCompressPackuments()) {
+            rewriter = new GzipContentRewriter(rewriter);
+        }
+        ScheduledExecutorService leaseRenewer = null;
+        if (config.isSharedCacheFolder()) {
+            leaseRenewer = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("shared-lock-renewer"));
+            executors.add(leaseRenewer);
+        }
+        FileDownloaderImpl fullDownloader = new FileDownloaderImpl(upstreamClient, rewriter, requestHeaders, metrics);
+        FileDownloader downloader = withSharedLocks(config, fullDownloader, leaseRenewer, metrics);
+
+        ExecutorService downloadExecutor = Executors.newCachedThreadPool(new DaemonThreadFactory("npm-download"));
+        ExecutorService refreshExecutor = boundedExecutor(config.getBackgroundRefreshThreads(), "npm-refresh");
+        executors.add(downloadExecutor);
+        executors.add(refreshExecutor);
+        // held while each file is downloaded, and by the cache sweeper while it removes one
+        KeyedLock<File> cacheFileLocks = new KeyedLock<File>();
+        SingleFlightDownloader downloads = new SingleFlightDownloader(downloader, downloadExecutor, refreshExecutor, config.isSharedCacheFolder(), cacheFileLocks);
+        // wakes the requests that are streaming a download as soon as more of it has been written
+        fullDownloader.addProgressListener(downloads);
+        SingleFlightDownloader abbreviatedDownloads = null;
+        if (config.isAbbreviatedMetadata()) {
+            Map<String, String> abbreviatedHeaders = new HashMap<String, String>(requestHeaders);
+            abbreviatedHeaders.put("Accept", NpmHandler.ABBREVIATED_METADATA + "; q=1.0, application/json; q=0.8, */*");
+            FileDownloaderImpl abbreviatedFileDownloader = new FileDownloaderImpl(upstreamClient, rewriter, abbreviatedHeaders, metrics);
+            FileDownloader abbreviatedDownloader = withSharedLocks(config, abbreviatedFileDownloader, leaseRenewer, metrics);
+            abbreviatedDownloads = new SingleFlightDownloader(abbreviatedDownloader, downloadExecutor, refreshExecutor, config.isSharedCacheFolder(), cacheFileLocks);
+            abbreviatedFileDownloader.addProgressListener(abbreviatedDownloads);
+            addInFlightGauge(metrics, abbreviatedDownloads, "abbreviated");
+        }
+        addInFlightGauge(metrics, downloads, "full");
+
+        FileStats npmCacheStats = new FileSystemStats(config.getNpmCacheFolder());
+        CacheIndex cacheIndex = null;
+        if (config.isCacheIndex() && config.isSharedCacheFolder()) {
+            log.warn("cacheIndex is ignored because the index cannot see the files that other servers sharing the cache folder download");
+        } else if (config.isCacheIndex()) {
+            cacheIndex = createCacheIndex(config.getNpmCacheFolder());
+            downloads.addListener(cacheIndex);
+            if (abbreviatedDownloads != null) {
+                abbreviatedDownloads.addListener(cacheIndex);
+            }
+            npmCacheStats = cacheIndex;
+            addCacheIndexGauges(metrics, cacheIndex);
+        }
 
-        StaticHandler npmCacheStaticHandler = new StaticHandlerImpl(config.getNpmCacheFolder(), config.getPort(), config.getWebServerHostName(), config.isOffline(), config.getNpmRepositoryURL());
+        StaticHandlerImpl npmCacheFileHandler = new StaticHandlerImpl(config.getNpmCacheFolder(), config.getPort(), config.getWebServerHostName(), config.isOffline(), config.getNpmRepositoryURL(), npmCacheStats,
+                metrics.counter("npm_cache_sent_bytes_total", "Bytes of cached files sent to clients"));
+        StaticHandler npmCacheStaticHandler = npmCacheFileHandler;
+        CachingStaticHandler cachingHandler = null;
+        if (config.getHotCacheBytes() > 0) {
+            cachingHandler = new CachingStaticHandler(npmCacheFileHandler, config.getHotCacheBytes());
+            final CachingStaticHandler hotCache = cachingHandler;
+            metrics.gauge("npm_hot_cache_bytes", "Bytes of packuments kept in memory", new Gauge() {
+                public double getValue() {
+                    return hotCache.getCachedBytes();
+                }
+            });
+            downloads.addListener(cachingHandler);
+            if (abbreviatedDownloads != null) {
+                abbreviatedDownloads.addListener(cachingHandler);
+            }
+            npmCacheStaticHandler = cachingHandler;
+        }
+        if (config.getMaxCacheBytes() > 0) {
+            if (cacheIndex == null) {
+                log.warn("maxCacheMegabytes is ignored because the cache folder can only be kept to a size when cacheIndex=true");
+            } else {
+                npmCacheStaticHandler = new AccessRecordingStaticHandler(npmCacheStaticHandler, cacheIndex);
+                executors.add(startCacheSweeper(config, cacheIndex, cacheFileLocks, cachingHandler));
+            }
+        }
         RemoteDownloadPolicy remoteDownloadPolicy = getRemoteDownloadPolicy(config, npmCacheStaticHandler);
+        final NegativeCache notFound = new NegativeCache(config.getNegativeCacheMaxEntries(), config.getNegativeCacheMillis());
+        metrics.gauge("npm_not_found_cached", "Files that the NPM registry recently said do not exist", new Gauge() {
+            public double getValue() {
+                return notFound.size();
+            }
+        });
+        ExecutorService prefetchExecutor = Executors.newFixedThreadPool(config.getPrefetchThreads(), new DaemonThreadFactory("npm-prefetch"));
+        executors.add(prefetchExecutor);
+        NpmHandler npmHandler = new NpmHandler.Builder(downloads, npmCacheStaticHandler, config.getNpmRepositoryURL(), config.getNpmCacheFolder(), remoteDownloadPolicy)
+                .abbreviatedDownloads(abbreviatedDownloads)
+                .metrics(metrics)
+                .notFound(notFound)
+                .cluster(cluster)
+                .build();
         RequestHandler[] handlers = new RequestHandler[]{
                 new HomepageHandler(httpViewRenderer, config),
-                new NpmHandler(downloader, npmCacheStaticHandler, config.getNpmRepositoryURL(), config.getNpmCacheFolder(), remoteDownloadPolicy),
+                npmHandler,
+                new MetricsHandler(metrics),
+                new PrefetchHandler(npmHandler, routing, prefetchExecutor, config.getPrefetchConnectionsPerHost(), config.getPrefetchMaxLockfileBytes(), metrics),
                 new StaticHandlerImpl(STATIC_ROOT, config.getPort(), config.getWebServerHostName(), config.isOffline(), config.getNpmRepositoryURL())
         };
-        RequestRouter router = new RequestRouter(handlers);
+        RequestRouter router = new RequestRouter(handlers, metrics);
         ErrorHandlingWebContainer errorHandler = new ErrorHandlingWebContainer(router);
-        return new WebServer(new LoggingWebContainer(errorHandler), config.getPort(), config.getWebServerHostName());
+        AccessLog accessLog = createAccessLog(config, metrics);
+        return new WebServer(new LoggingWebContainer(errorHandler, accessLog), config.getPort(), config.getWebServerHostName(), cacheIndex, config.getNpmCacheFolder(), accessLog, executors);
+    }
+
+    /**
+     * Each registry gets its own circuit breaker, so one that is down does not stop requests to the others.
+     *
+     * @param executors Where the executor that sends requests to more than one mirror is added, so that it is
+     *                  stopped with the server
+     * @return The client that sends requests to the mirrors and scoped registries, or null if there are none
+     */
+    private static RoutingUpstreamClient createRoutingClient(Config config, UpstreamClient httpClient, Metrics metrics, List<ExecutorService> executors) {
+        List<String> mirrorURLs = config.getNpmMirrorURLs();
+        Map<String, String> scopeURLs = config.getScopeRegistryURLs();
+        if (mirrorURLs.isEmpty() && scopeURLs.isEmpty()) {
+            return null;
+        }
+
+        List<RoutingUpstreamClient.Upstream> mirrors = new ArrayList<RoutingUpstreamClient.Upstream>();
+        mirrors.add(new RoutingUpstreamClient.Upstream(config.getNpmRepositoryURL(), withCircuitBreaker(config, httpClient, config.getNpmRepositoryURL(), metrics)));
+        for (String url : mirrorURLs) {
+            mirrors.add(new RoutingUpstreamClient.Upstream(url, withCircuitBreaker(config, httpClient, url, metrics)));
+        }
+        Map<String, RoutingUpstreamClient.Upstream> scopes = new HashMap<String, RoutingUpstreamClient.Upstream>();
+        for (Map.Entry<String, String> scope : scopeURLs.entrySet()) {
+            scopes.put(scope.getKey(), new RoutingUpstreamClient.Upstream(scope.getValue(), withCircuitBreaker(config, httpClient, scope.getValue(), metrics)));
+        }
+        log.info("Packages will be downloaded from " + mirrorURLs.size() + " mirrors as well as " + config.getNpmRepositoryURL()
+                + ", and from their own registries for the scopes " + scopeURLs.keySet());
+        ExecutorService hedgeExecutor = Executors.newCachedThreadPool(new DaemonThreadFactory("npm-upstream"));
+        executors.add(hedgeExecutor);
+        return new RoutingUpstreamClient(config.getNpmRepositoryURL(), mirrors, scopes, hedgeExecutor,
+                config.getHedgePercentile(), config.getHedgeMinDelayMillis(), metrics);
+    }
+
+    /**
+     * Other servers are asked without the proxy, as they are on the same network, and without a circuit breaker,
+     * as a request that fails is sent to the registry instead.
+     */
+    private static PeerCluster createCluster(Config config, UpstreamClient registryClient) {
+        UpstreamClient peerClient = new HttpURLConnectionUpstreamClient(Proxy.NO_PROXY,
+                config.getUpstreamConnectTimeoutMillis(), config.getUpstreamReadTimeoutMillis(), config.getUpstreamTotalTimeoutMillis());
+        log.info("Packages owned by the other servers in " + config.getClusterNodes() + " will be downloaded from them");
+        return new PeerCluster(config.getClusterNodes(), config.getClusterSelf(), registryClient, peerClient);
+    }
+
+    private static FileDownloader withSharedLocks(Config config, FileDownloader downloader, ScheduledExecutorService leaseRenewer, Metrics metrics) {
+        if (!config.isSharedCacheFolder()) {
+            return downloader;
+        }
+        String owner = ManagementFactory.getRuntimeMXBean().getName() + " " + config.getNpmEndPoint();
+        return new SharedFolderFileDownloader(downloader, owner, config.getSharedLockLeaseMillis(), SHARED_LOCK_POLL_MILLIS, leaseRenewer, metrics);
+    }
+
+    private static UpstreamClient withCircuitBreaker(Config config, UpstreamClient client, String registryURL, Metrics metrics) {
+        if (config.getCircuitFailureRatePercent() <= 0) {
+            return client;
+        }
+        return new CircuitBreakingUpstreamClient(client, config.getCircuitWindowSize(), config.getCircuitMinimumCalls(),
+                config.getCircuitFailureRatePercent(), config.getCircuitSlowCallMillis(), config.getCircuitOpenMillis(), metrics, registryURL);
+    }
+
+    private static AccessLog createAccessLog(Config config, Metrics metrics) {
+        File file = config.getAccessLogFile();
+        if (file == null) {
+            return null;
+        }
+        final AccessLog accessLog;
+        try {
+            accessLog = new AccessLog(file, config.getAccessLogBufferSize(), config.isAccessLogBlockingWhenFull());
+        } catch (IOException e) {
+            log.warn("Could not open the access log " + file + " so requests will be logged in the server log instead. Error was: " + e.getMessage());
+            return null;
+        }
+        accessLog.start();
+        metrics.counterFunction("access_log_dropped_total", "Access log entries dropped because they could not be written fast enough", new Gauge() {
+            public double getValue() {
+                return accessLog.getDroppedCount();
+            }
+        });
+        return accessLog;
+    }
+
+    /**
+     * Loads the index saved when the server last stopped, or if there isn't one, builds it in the background.
+     * Files that are asked for before it is built are looked up on the file system.
+     */
+    private static CacheIndex createCacheIndex(File cacheFolder) {
+        final CacheIndex cacheIndex = new CacheIndex(cacheFolder);
+        if (!cacheIndex.loadSnapshot(CacheFiles.indexSnapshotFile(cacheFolder))) {
+            Thread builder = new DaemonThreadFactory("cache-index").newThread(new Runnable() {
+                public void run() {
+                    ExecutorService walkers = Executors.newFixedThreadPool(INDEX_WALKER_THREADS, new DaemonThreadFactory("cache-index-walker"));
+                    try {
+                        cacheIndex.build(walkers);
+                    } catch (InterruptedException e) {
+                        log.info("Stopped building the cache index");
+                    } finally {
+                        walkers.shutdown();
+                    }
+                }
+            });
+            builder.start();
+        }
+        return cacheIndex;
+    }
+
+    /**
+     * @param hotCache The packuments kept in memory, which forgets the files that are removed, or null if there is none
+     */
+    private static ScheduledExecutorService startCacheSweeper(Config config, CacheIndex cacheIndex, KeyedLock<File> cacheFileLocks, CachingStaticHandler hotCache) {
+        CacheSweeper sweeper = new CacheSweeper(cacheIndex, config.getCacheHighWatermarkBytes(),
+                config.getCacheLowWatermarkBytes(), MIN_IDLE_MILLIS_BEFORE_EVICTION, cacheFileLocks);
+        if (hotCache != null) {
+            sweeper.addListener(hotCache);
+        }
+        long interval = config.getCacheSweepIntervalMillis();
+        ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("cache-sweeper"));
+        executor.scheduleWithFixedDelay(sweeper, interval, interval, TimeUnit.MILLISECONDS);
+        return executor;
+    }
+
+    private static void addInFlightGauge(Metrics metrics, final SingleFlightDownloader downloads, String kind) {
+        metrics.gauge("npm_downloads_in_flight", "Downloads from the NPM registry that are in progress", new Gauge() {
+            public double getValue() {
+                return downloads.getInFlightCount();
+            }
+        }, "kind", kind);
+    }
+
+    private static void addCacheIndexGauges(Metrics metrics, final CacheIndex cacheIndex) {
+        metrics.gauge("npm_cache_files", "Files in the cache folder", new Gauge() {
+            public double getValue() {
+                return cacheIndex.getFileCount();
+            }
+        });
+        metrics.gauge("npm_cache_size_bytes", "Bytes used by the files in the cache folder", new Gauge() {
+            public double getValue() {
+                return cacheIndex.getTotalBytes();
+            }
+        });
     }
 
     private static RemoteDownloadPolicy getRemoteDownloadPolicy(Config config, StaticHandler npmCacheStaticHandler) {
         if (config.isOffline()) {
             return new NeverRemoteDownloadPolicy();
+        } else if (config.isStaleWhileRevalidate()) {
+            return new ReDownloadOldJSONFilesPolicy(npmCacheStaticHandler, config.getHardStaleMillis());
         } else {
             return new ReDownloadOldJSONFilesPolicy(npmCacheStaticHandler);
         }
     }
 
+    private static ExecutorService boundedExecutor(int threads, String name) {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(BACKGROUND_QUEUE_SIZE), new DaemonThreadFactory(name));
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
     public void start() throws IOException {
         this.connection = new SocketConnection(new ContainerServer(webContainer));
         InetSocketAddress address = new InetSocketAddress(port);
@@ -88,7 +369,37 @@ public class WebServer {
     public void stop() throws IOException {
         log.info("Stopping server...");
         connection.close();
+        for (ExecutorService executor : executors) {
+            executor.shutdownNow();
+        }
+        // downloads that are still finishing update the index, so it is saved after they have
+        awaitTermination();
+        if (accessLog != null) {
+            accessLog.close();
+        }
+        if (cacheIndex != null && cacheIndex.isComplete()) {
+            try {
+                cacheIndex.saveSnapshot(CacheFiles.indexSnapshotFile(cacheFolder));
+            } catch (IOException e) {
+                log.warn("Could not save the index of the cache folder, so it will be rebuilt when the server next starts. Error was: " + e.getMessage());
+            }
+        }
         log.info("Server stopped.");
     }
 
+    private void awaitTermination() {
+        long deadline = System.currentTimeMillis() + STOP_WAIT_MILLIS;
+        try {
+            for (ExecutorService executor : executors) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0 || !executor.awaitTermination(remaining, TimeUnit.MILLISECONDS)) {
+                    log.warn("Some downloads had not finished after " + STOP_WAIT_MILLIS + "ms, so the server stopped without them");
+                    return;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
 }
@@ -6,8 +6,10 @@ import org.junit.Test;
 
 import java.io.File;
 import java.net.Proxy;
+import java.util.Arrays;
 
 import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
 import static org.hamcrest.core.IsEqual.equalTo;
 import static org.junit.Assert.assertThat;
 
@@ -47,6 +49,87 @@ public class ConfigTest {
         assertThat(config.isOffline(), equalTo(true));
     }
 
+    @Test
+    public void optionalSettingsHaveDefaults() {
+        Config config = new Config(1000, npmCacheFolder, "http://registry.npmjs.org/", webServerHostName, null, false);
+        assertThat(config.isStaleWhileRevalidate(), is(false));
+        assertThat(config.getHardStaleMillis(), is(168 * 60 * 60 * 1000L));
+        assertThat(config.getBackgroundRefreshThreads(), is(4));
+        assertThat(config.getUpstreamConnectTimeoutMillis(), is(10000));
+        assertThat(config.getUpstreamReadTimeoutMillis(), is(30000));
+        assertThat(config.getUpstreamTotalTimeoutMillis(), is(600000L));
+        assertThat(config.getUpstreamMaxIdleConnections(), is(20));
+        assertThat(config.getHotCacheBytes(), is(64 * 1024 * 1024L));
+        assertThat(config.isCompressPackuments(), is(false));
+        assertThat(config.isAbbreviatedMetadata(), is(true));
+        assertThat(config.isCacheIndex(), is(true));
+        assertThat(config.getMaxCacheBytes(), is(0L));
+        assertThat(config.getCacheSweepIntervalMillis(), is(60000L));
+        assertThat(config.getAccessLogFile(), is(nullValue()));
+        assertThat(config.getAccessLogBufferSize(), is(8192));
+        assertThat(config.isAccessLogBlockingWhenFull(), is(false));
+        assertThat(config.getNegativeCacheMillis(), is(60000L));
+        assertThat(config.getNegativeCacheMaxEntries(), is(10000));
+        assertThat(config.getCircuitFailureRatePercent(), is(50));
+        assertThat(config.getCircuitWindowSize(), is(20));
+        assertThat(config.getCircuitMinimumCalls(), is(10));
+        assertThat(config.getCircuitSlowCallMillis(), is(10000L));
+        assertThat(config.getCircuitOpenMillis(), is(30000L));
+        assertThat(config.getNpmMirrorURLs().isEmpty(), is(true));
+        assertThat(config.getScopeRegistryURLs().isEmpty(), is(true));
+        assertThat(config.getHedgePercentile(), is(95));
+        assertThat(config.getHedgeMinDelayMillis(), is(100L));
+        assertThat(config.getClusterNodes().isEmpty(), is(true));
+        assertThat(config.getClusterSelf(), is("http://localhost:1000"));
+        assertThat(config.isSharedCacheFolder(), is(false));
+        assertThat(config.getSharedLockLeaseMillis(), is(60000L));
+        assertThat(config.getPrefetchThreads(), is(16));
+        assertThat(config.getPrefetchConnectionsPerHost(), is(8));
+        assertThat(config.getPrefetchMaxLockfileBytes(), is(32 * 1024 * 1024L));
+    }
+
+    @Test
+    public void optionalSettingsCanBeReadFromPropertiesFile() {
+        Config config = Config.fromFile("src/test/resources/configs/tuned-config.properties");
+        assertThat(config.isStaleWhileRevalidate(), is(true));
+        assertThat(config.getHardStaleMillis(), is(72 * 60 * 60 * 1000L));
+        assertThat(config.getBackgroundRefreshThreads(), is(2));
+        assertThat(config.getUpstreamConnectTimeoutMillis(), is(5000));
+        assertThat(config.getUpstreamReadTimeoutMillis(), is(15000));
+        assertThat(config.getUpstreamTotalTimeoutMillis(), is(120000L));
+        assertThat(config.getUpstreamMaxIdleConnections(), is(50));
+        assertThat(config.getHotCacheBytes(), is(16 * 1024 * 1024L));
+        assertThat(config.isCompressPackuments(), is(true));
+        assertThat(config.isAbbreviatedMetadata(), is(false));
+        assertThat(config.isCacheIndex(), is(false));
+        assertThat(config.getMaxCacheBytes(), is(1000 * 1024 * 1024L));
+        assertThat(config.getCacheHighWatermarkBytes(), is(950 * 1024 * 1024L));
+        assertThat(config.getCacheLowWatermarkBytes(), is(800 * 1024 * 1024L));
+        assertThat(config.getCacheSweepIntervalMillis(), is(30000L));
+        assertThat(config.getAccessLogFile(), is(new File("target/requests.log")));
+        assertThat(config.getAccessLogBufferSize(), is(1024));
+        assertThat(config.isAccessLogBlockingWhenFull(), is(true));
+        assertThat(config.getNegativeCacheMillis(), is(300000L));
+        assertThat(config.getNegativeCacheMaxEntries(), is(500));
+        assertThat(config.getCircuitFailureRatePercent(), is(25));
+        assertThat(config.getCircuitWindowSize(), is(100));
+        assertThat(config.getCircuitMinimumCalls(), is(40));
+        assertThat(config.getCircuitSlowCallMillis(), is(3000L));
+        assertThat(config.getCircuitOpenMillis(), is(10000L));
+        assertThat(config.getNpmMirrorURLs(), is(Arrays.asList("http://mirror.example.com/npm/", "https://registry.npmjs.org/")));
+        assertThat(config.getScopeRegistryURLs().get("@ourco"), is("http://npm.ourco.com/"));
+        assertThat(config.getScopeRegistryURLs().get("@other"), is("http://npm.other.com/"));
+        assertThat(config.getHedgePercentile(), is(99));
+        assertThat(config.getHedgeMinDelayMillis(), is(250L));
+        assertThat(config.getClusterNodes(), is(Arrays.asList("http://npm1.ourco.com:9100", "http://npm2.ourco.com:9100")));
+        assertThat(config.getClusterSelf(), is("http://npm2.ourco.com:9100"));
+        assertThat(config.isSharedCacheFolder(), is(true));
+        assertThat(config.getSharedLockLeaseMillis(), is(20000L));
+        assertThat(config.getPrefetchThreads(), is(32));
+        assertThat(config.getPrefetchConnectionsPerHost(), is(4));
+        assertThat(config.getPrefetchMaxLockfileBytes(), is(4 * 1024 * 1024L));
+    }
+
     @Test(expected = RuntimeException.class)
     public void throwsIfConfigFileNotFound() {
         Config.fromFile("src/test/resources/i-do-not-exist.properties");
@@ -0,0 +1,121 @@
+package com.danielflower.internalnpmserver.controllers;
+
+import com.danielflower.internalnpmserver.services.CacheIndex;
+import org.apache.commons.io.FileUtils;
+import org.jmock.Expectations;
+import org.jmock.Mockery;
+import org.jmock.integration.junit4.JMock;
+import org.jmock.integration.junit4.JUnit4Mockery;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.simpleframework.http.Response;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.UUID;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+@RunWith(JMock.class)
+public class CachingStaticHandlerTest {
+
+    private final Mockery context = new JUnit4Mockery();
+    private final Response response = context.mock(Response.class);
+    private final ByteArrayOutputStream body = new ByteArrayOutputStream();
+    private final File webRoot = new File("target/testArea/" + UUID.randomUUID());
+    private final File packument = new File(webRoot, "blah.json");
+    private final CachingStaticHandler handler = new CachingStaticHandler(
+            new StaticHandlerImpl(webRoot, 9100, "localhost", false, ""), 1024 * 1024);
+
+    @Before
+    public void setup() throws Exception {
+        FileUtils.writeStringToFile(packument, "Version 1");
+        context.checking(new Expectations() {{
+            allowing(response).setValue(with(any(String.class)), with(any(String.class)));
+            allowing(response).setDate(with(any(String.class)), with(any(long.class)));
+            allowing(response).getOutputStream(); will(returnValue(body));
+            allowing(response).getByteChannel(); will(returnValue(new WritableByteChannel() {
+                public int write(ByteBuffer src) throws IOException {
+                    byte[] bytes = new byte[src.remaining()];
+                    src.get(bytes);
+                    body.write(bytes);
+                    return bytes.length;
+                }
+
+                public boolean isOpen() {
+                    return true;
+                }
+
+                public void close() {
+                }
+            }));
+        }});
+    }
+
+    @Test
+    public void packumentsAreServedFromMemoryOnceTheyHaveBeenRead() throws Exception {
+        assertThat(send("/blah.json"), is("Version 1"));
+        assertThat(handler.getCachedFileCount(), is(1));
+
+        long lastModified = packument.lastModified();
+        FileUtils.forceDelete(packument);
+
+        assertThat(handler.canHandle("/blah.json"), is(true));
+        assertThat(handler.dateCreated("/blah.json").getTime(), is(lastModified));
+        assertThat(send("/blah.json"), is("Version 1"));
+    }
+
+    @Test
+    public void newVersionsAreServedOnceTheDownloaderPublishesThem() throws Exception {
+        assertThat(send("/blah.json"), is("Version 1"));
+
+        FileUtils.writeStringToFile(packument, "Version 2");
+        handler.downloaded(packument);
+
+        assertThat(send("/blah.json"), is("Version 2"));
+        assertThat(handler.getCachedBytes(), is(9L));
+    }
+
+    @Test
+    public void packumentsDeletedFromUnderTheCacheIndexAreNotCachedOrSent() throws Exception {
+        CacheIndex index = new CacheIndex(webRoot);
+        CachingStaticHandler handler = new CachingStaticHandler(new StaticHandlerImpl(webRoot, 9100, "localhost", false, "", index), 1024 * 1024);
+        assertThat(handler.canHandle("/blah.json"), is(true));
+
+        FileUtils.forceDelete(packument);
+        assertThat(handler.streamFileIfExists("/blah.json", null, false, response), is(false));
+        assertThat(handler.getCachedFileCount(), is(0));
+        assertThat(handler.canHandle("/blah.json"), is(false));
+    }
+
+    @Test
+    public void filesOtherThanPackumentsAreNotCached() throws Exception {
+        FileUtils.writeStringToFile(new File(webRoot, "blah-1.0.0.tgz"), "A tarball");
+        assertThat(send("/blah-1.0.0.tgz"), is("A tarball"));
+        assertThat(handler.getCachedFileCount(), is(0));
+    }
+
+    @Test
+    public void notModifiedIsReturnedFromMemoryWhenTheETagMatches() throws Exception {
+        send("/blah.json");
+        String etag = String.valueOf(packument.lastModified());
+        body.reset();
+        context.checking(new Expectations() {{
+            oneOf(response).setCode(304);
+            oneOf(response).setDescription("304 Not Modified");
+        }});
+        handler.streamFileToResponse("/blah.json", etag, false, response);
+        assertThat(body.size(), is(0));
+    }
+
+    private String send(String path) throws Exception {
+        body.reset();
+        handler.streamFileToResponse(path, null, false, response);
+        return body.toString("UTF-8");
+    }
+}
@@ -1,24 +1,35 @@
 package com.danielflower.internalnpmserver.controllers;
 
 
+import com.danielflower.internalnpmserver.metrics.Metrics;
 import com.danielflower.internalnpmserver.services.FileDownloader;
+import com.danielflower.internalnpmserver.services.NegativeCache;
+import com.danielflower.internalnpmserver.services.PeerCluster;
 import com.danielflower.internalnpmserver.services.RemoteDownloadPolicy;
+import com.danielflower.internalnpmserver.services.SingleFlightDownloader;
+import com.danielflower.internalnpmserver.webserver.ResourceNotFoundException;
 import org.jmock.Expectations;
 import org.jmock.Mockery;
+import org.jmock.States;
 import org.jmock.integration.junit4.JMock;
 import org.jmock.integration.junit4.JUnit4Mockery;
+import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.simpleframework.http.Request;
 import org.simpleframework.http.Response;
 
 import java.io.File;
+import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.net.URL;
+import java.util.Collections;
 import java.util.UUID;
+import java.util.concurrent.Executor;
 
 import static org.hamcrest.Matchers.is;
 import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
 
 @RunWith(JMock.class)
 public class NpmHandlerTest {
@@ -28,10 +39,26 @@ public class NpmHandlerTest {
     private final FileDownloader proxyService = context.mock(FileDownloader.class);
     private final StaticHandler staticHandler = context.mock(StaticHandler.class);
     private final RemoteDownloadPolicy remoteDownloadPolicy = context.mock(RemoteDownloadPolicy.class);
-    private final NpmHandler handler = new NpmHandler(proxyService, staticHandler, "http://registry.npmjs.org/", cacheFolder, remoteDownloadPolicy);
+    private final Executor sameThreadExecutor = new Executor() {
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+    private final NpmHandler handler = new NpmHandler(new SingleFlightDownloader(proxyService, sameThreadExecutor), staticHandler, "http://registry.npmjs.org/", cacheFolder, remoteDownloadPolicy);
+    private final FileDownloader abbreviatedProxyService = context.mock(FileDownloader.class, "abbreviatedProxyService");
+    private final NpmHandler abbreviatingHandler = builder()
+            .abbreviatedDownloads(new SingleFlightDownloader(abbreviatedProxyService, sameThreadExecutor)).build();
     private final Response response = context.mock(Response.class);
     private final Request request = context.mock(Request.class);
 
+    @Before
+    public void setup() {
+        context.checking(new Expectations() {{
+            allowing(request).getValue("Accept-Encoding"); will(returnValue("gzip, deflate"));
+            allowing(response).setValue(with("X-Cache"), with(any(String.class)));
+        }});
+    }
+
     @Test
     public void handlesCallsToAllUrlsStartingWithTextNPM() {
         assertThat(handler.canHandle("/npm"), is(true));
@@ -44,14 +71,26 @@ public class NpmHandlerTest {
     }
 
 	@Test
-	public void usesTheStaticHandlerToStreamResponsesWhenItIsAlreadyCached() throws Exception {
+	public void cachedTarballsAreStreamedWithoutAskingTheDownloadPolicy() throws Exception {
 		context.checking(new Expectations() {{
 			allowing(request).getTarget(); will(returnValue("/npm/commander/-/commander-0.6.1.tgz"));
-			allowing(staticHandler).canHandle("/commander/-/commander-0.6.1.tgz"); will(returnValue(true));
 			allowing(request).getValue("If-None-Match"); will(returnValue(""));
 
-			oneOf(remoteDownloadPolicy).shouldDownload("/commander/-/commander-0.6.1.tgz"); will(returnValue(false));
-			oneOf(staticHandler).streamFileToResponse("/commander/-/commander-0.6.1.tgz", "", response);
+			oneOf(staticHandler).streamFileIfExists("/commander/-/commander-0.6.1.tgz", "", true, response); will(returnValue(true));
+		}});
+		handler.handle(request, response);
+	}
+
+	@Test
+	public void usesTheStaticHandlerToStreamResponsesWhenItIsAlreadyCached() throws Exception {
+		context.checking(new Expectations() {{
+			allowing(request).getTarget(); will(returnValue("/npm/commander"));
+			allowing(staticHandler).canHandle("/commander.json"); will(returnValue(true));
+			allowing(request).getValue("If-None-Match"); will(returnValue(""));
+
+			oneOf(remoteDownloadPolicy).shouldDownload("/commander.json"); will(returnValue(false));
+			allowing(remoteDownloadPolicy).shouldRefreshInBackground("/commander.json"); will(returnValue(false));
+			oneOf(staticHandler).streamFileToResponse("/commander.json", "", true, response);
 		}});
 		handler.handle(request, response);
 	}
@@ -60,15 +99,22 @@ public class NpmHandlerTest {
 	public void passesTheETagFromTheRequestToTheHandler() throws Exception {
 		context.checking(new Expectations() {{
 			allowing(request).getTarget(); will(returnValue("/npm/commander/-/commander-0.6.1.tgz"));
-			allowing(staticHandler).canHandle("/commander/-/commander-0.6.1.tgz"); will(returnValue(true));
 			allowing(request).getValue("If-None-Match"); will(returnValue("12345"));
-			allowing(remoteDownloadPolicy).shouldDownload("/commander/-/commander-0.6.1.tgz"); will(returnValue(false));
 
-			oneOf(staticHandler).streamFileToResponse("/commander/-/commander-0.6.1.tgz", "12345", response);
+			oneOf(staticHandler).streamFileIfExists("/commander/-/commander-0.6.1.tgz", "12345", true, response); will(returnValue(true));
 		}});
 		handler.handle(request, response);
 	}
 
+    @Test(expected = ResourceNotFoundException.class)
+    public void theServersOwnFilesInTheCacheCannotBeRequested() throws Exception {
+        context.checking(new Expectations() {{
+            allowing(request).getTarget(); will(returnValue("/npm/commander/-/commander-0.6.1.tgz.validators"));
+            allowing(request).getValue("If-None-Match"); will(returnValue(""));
+        }});
+        handler.handle(request, response);
+    }
+
     @Test
     public void usesJSONAsTheFileExtensionOfAPIRequests() throws Exception {
         runJsonRenameTest("commander/1.0.1");
@@ -94,10 +140,11 @@ public class NpmHandlerTest {
         context.checking(new Expectations() {{
             allowing(request).getTarget();will(returnValue("/npm/" + path));
             allowing(remoteDownloadPolicy).shouldDownload(expectedLocalPath); will(returnValue(false));
+            allowing(remoteDownloadPolicy).shouldRefreshInBackground(expectedLocalPath); will(returnValue(false));
             allowing(staticHandler).canHandle(expectedLocalPath);will(returnValue(true));
 	        allowing(request).getValue("If-None-Match"); will(returnValue(""));
 
-            oneOf(staticHandler).streamFileToResponse(expectedLocalPath, "", response);
+            oneOf(staticHandler).streamFileToResponse(expectedLocalPath, "", true, response);
         }});
         handler.handle(request, response);
     }
@@ -107,27 +154,87 @@ public class NpmHandlerTest {
         context.checking(new Expectations() {{
             allowing(request).getTarget(); will(returnValue("/npm/commander/-/commander-0.6.1.tgz"));
 	        allowing(request).getValue("If-None-Match"); will(returnValue(""));
+            oneOf(staticHandler).streamFileIfExists("/commander/-/commander-0.6.1.tgz", "", true, response); will(returnValue(false));
 
-            oneOf(remoteDownloadPolicy).shouldDownload("/commander/-/commander-0.6.1.tgz");will(returnValue(true));
+            allowing(remoteDownloadPolicy).shouldDownload("/commander/-/commander-0.6.1.tgz");will(returnValue(true));
             oneOf(proxyService).fetch(new URL("http://registry.npmjs.org/commander/-/commander-0.6.1.tgz"), new File(cacheFolder, "commander/-/commander-0.6.1.tgz"));
             oneOf(staticHandler).canHandle("/commander/-/commander-0.6.1.tgz");will(returnValue(true));
-            oneOf(staticHandler).streamFileToResponse("/commander/-/commander-0.6.1.tgz", "", response);
+            oneOf(staticHandler).streamFileToResponse("/commander/-/commander-0.6.1.tgz", "", true, response);
+        }});
+        handler.handle(request, response);
+    }
+
+    @Test
+    public void filesDeletedFromUnderTheCacheIndexAreDownloadedAgain() throws Exception {
+        final States file = context.states("file").startsAs("indexed");
+        context.checking(new Expectations() {{
+            allowing(request).getTarget(); will(returnValue("/npm/commander"));
+            allowing(request).getValue("If-None-Match"); will(returnValue(""));
+            allowing(staticHandler).canHandle("/commander.json"); when(file.isNot("deleted")); will(returnValue(true));
+            allowing(staticHandler).canHandle("/commander.json"); when(file.is("deleted")); will(returnValue(false));
+            allowing(remoteDownloadPolicy).shouldDownload("/commander.json"); when(file.isNot("deleted")); will(returnValue(false));
+            allowing(remoteDownloadPolicy).shouldDownload("/commander.json"); when(file.is("deleted")); will(returnValue(true));
+            allowing(remoteDownloadPolicy).shouldRefreshInBackground("/commander.json"); will(returnValue(false));
+
+            oneOf(staticHandler).streamFileToResponse("/commander.json", "", true, response); when(file.is("indexed"));
+                will(throwException(new FileNotFoundException("deleted by someone else"))); then(file.is("deleted"));
+            oneOf(proxyService).fetch(new URL("http://registry.npmjs.org/commander"), new File(cacheFolder, "commander.json")); then(file.is("downloaded"));
+            oneOf(staticHandler).streamFileToResponse("/commander.json", "", true, response); when(file.is("downloaded"));
+        }});
+        handler.handle(request, response);
+    }
+
+    @Test
+    public void staleFilesAreServedFromTheCacheAndRefreshedInTheBackgroundIfThePolicySaysTo() throws Exception {
+        context.checking(new Expectations() {{
+            allowing(request).getTarget(); will(returnValue("/npm/commander"));
+            allowing(request).getValue("If-None-Match"); will(returnValue(""));
+            allowing(staticHandler).canHandle("/commander.json"); will(returnValue(true));
+
+            oneOf(remoteDownloadPolicy).shouldDownload("/commander.json"); will(returnValue(false));
+            oneOf(remoteDownloadPolicy).shouldRefreshInBackground("/commander.json"); will(returnValue(true));
+            oneOf(proxyService).fetch(new URL("http://registry.npmjs.org/commander"), new File(cacheFolder, "commander.json"));
+            oneOf(staticHandler).streamFileToResponse("/commander.json", "", true, response);
         }});
         handler.handle(request, response);
     }
 
+    @Test
+    public void hitsAndStaleHitsAreCounted() throws Exception {
+        Metrics metrics = new Metrics();
+        NpmHandler handler = builder().metrics(metrics).build();
+        context.checking(new Expectations() {{
+            allowing(request).getTarget(); will(onConsecutiveCalls(returnValue("/npm/commander/-/commander-0.6.1.tgz"), returnValue("/npm/commander")));
+            allowing(request).getValue("If-None-Match"); will(returnValue(""));
+            allowing(staticHandler).streamFileIfExists("/commander/-/commander-0.6.1.tgz", "", true, response); will(returnValue(true));
+            allowing(staticHandler).canHandle("/commander.json"); will(returnValue(true));
+            allowing(remoteDownloadPolicy).shouldDownload("/commander.json"); will(returnValue(false));
+            allowing(remoteDownloadPolicy).shouldRefreshInBackground("/commander.json"); will(returnValue(true));
+            allowing(proxyService).fetch(new URL("http://registry.npmjs.org/commander"), new File(cacheFolder, "commander.json"));
+            allowing(staticHandler).streamFileToResponse("/commander.json", "", true, response);
+        }});
+
+        handler.handle(request, response);
+        handler.handle(request, response);
+
+        assertThat(metrics.counter("npm_cache_requests_total", "", "result", "hit").get(), is(1L));
+        assertThat(metrics.counter("npm_cache_requests_total", "", "result", "stale").get(), is(1L));
+        assertThat(metrics.counter("npm_cache_requests_total", "", "result", "miss").get(), is(0L));
+    }
+
     @Test
     public void ifTheDownloadFailsThenTheStaticHandlerIsStillCalledIfThereIsACachedVersion() throws Exception {
         context.checking(new Expectations() {{
             allowing(request).getTarget(); will(returnValue("/npm/commander/-/commander-0.6.1.tgz"));
 	        allowing(request).getValue("If-None-Match"); will(returnValue(""));
+            oneOf(staticHandler).streamFileIfExists("/commander/-/commander-0.6.1.tgz", "", true, response); will(returnValue(false));
 
-            oneOf(remoteDownloadPolicy).shouldDownload("/commander/-/commander-0.6.1.tgz");will(returnValue(true));
+            allowing(remoteDownloadPolicy).shouldDownload("/commander/-/commander-0.6.1.tgz");will(returnValue(true));
             oneOf(staticHandler).canHandle("/commander/-/commander-0.6.1.tgz");will(returnValue(true));
 
             oneOf(proxyService).fetch(with(any(URL.class)), with(any(File.class))); will(throwException(new RuntimeException("Simulated exception while making web request")));
 
-            oneOf(staticHandler).streamFileToResponse("/commander/-/commander-0.6.1.tgz", "", response);
+            oneOf(staticHandler).streamFileToResponse("/commander/-/commander-0.6.1.tgz", "", true, response);
         }});
         handler.handle(request, response);
     }
@@ -137,14 +244,152 @@ public class NpmHandlerTest {
         context.checking(new Expectations() {{
             allowing(request).getTarget(); will(returnValue("/npm/commander/-/commander-0.6.1.tgz"));
 	        allowing(request).getValue("If-None-Match"); will(returnValue(""));
+            oneOf(staticHandler).streamFileIfExists("/commander/-/commander-0.6.1.tgz", "", true, response); will(returnValue(false));
 
-	        oneOf(remoteDownloadPolicy).shouldDownload("/commander/-/commander-0.6.1.tgz");will(returnValue(true));
+	        allowing(remoteDownloadPolicy).shouldDownload("/commander/-/commander-0.6.1.tgz");will(returnValue(true));
             oneOf(staticHandler).canHandle("/commander/-/commander-0.6.1.tgz");will(returnValue(false));
             oneOf(proxyService).fetch(with(any(URL.class)), with(any(File.class))); will(throwException(new IOException("Simulated exception while making web request")));
         }});
         handler.handle(request, response);
     }
 
+    @Test
+    public void filesTheRegistryDoesNotHaveAreRememberedSoItIsOnlyAskedOnce() throws Exception {
+        Metrics metrics = new Metrics();
+        NpmHandler rememberingHandler = builder().metrics(metrics).notFound(new NegativeCache(100, 60000)).build();
+        context.checking(new Expectations() {{
+            allowing(request).getTarget(); will(returnValue("/npm/@internal/thing"));
+            allowing(request).getValue("If-None-Match"); will(returnValue(""));
+            allowing(remoteDownloadPolicy).shouldDownload("/@internal/thing.json"); will(returnValue(true));
+            allowing(staticHandler).canHandle("/@internal/thing.json"); will(returnValue(false));
+            oneOf(proxyService).fetch(with(any(URL.class)), with(any(File.class))); will(throwException(new ResourceNotFoundException("/@internal/thing")));
+        }});
+
+        for (int i = 0; i < 2; i++) {
+            try {
+                rememberingHandler.handle(request, response);
+                fail("Should have thrown");
+            } catch (ResourceNotFoundException e) {
+                // expected
+            }
+        }
+        assertThat(metrics.counter("npm_cache_requests_total", "", "result", "notfound").get(), is(1L));
+    }
+
+    @Test
+    public void filesOwnedByAnotherServerInTheClusterAreDownloadedFromItAndFromTheRegistryIfItFails() throws Exception {
+        Metrics metrics = new Metrics();
+        NpmHandler clusteredHandler = builder().metrics(metrics).cluster(clusterOwnedByOtherServer()).build();
+        context.checking(new Expectations() {{
+            allowing(request).getTarget(); will(returnValue("/npm/commander/-/commander-0.6.1.tgz"));
+            allowing(request).getValue("If-None-Match"); will(returnValue(""));
+            allowing(request).getValue(PeerCluster.PEER_HEADER); will(returnValue(null));
+            oneOf(staticHandler).streamFileIfExists("/commander/-/commander-0.6.1.tgz", "", true, response); will(returnValue(false));
+            allowing(remoteDownloadPolicy).shouldDownload("/commander/-/commander-0.6.1.tgz"); will(returnValue(true));
+
+            oneOf(proxyService).fetch(new URL("http://npm2.ourco.com:9100/npm/commander/-/commander-0.6.1.tgz"), new File(cacheFolder, "commander/-/commander-0.6.1.tgz"));
+            will(throwException(new IOException("Simulated connection refused")));
+            oneOf(staticHandler).canHandle("/commander/-/commander-0.6.1.tgz"); will(returnValue(false));
+            oneOf(proxyService).fetch(new URL("http://registry.npmjs.org/commander/-/commander-0.6.1.tgz"), new File(cacheFolder, "commander/-/commander-0.6.1.tgz"));
+            oneOf(staticHandler).canHandle("/commander/-/commander-0.6.1.tgz"); will(returnValue(true));
+            oneOf(staticHandler).streamFileToResponse("/commander/-/commander-0.6.1.tgz", "", true, response);
+        }});
+        clusteredHandler.handle(request, response);
+        assertThat(metrics.counter("npm_peer_download_failures_total", "").get(), is(1L));
+    }
+
+    @Test
+    public void requestsFromOtherServersInTheClusterAreNeverPassedOnToAnotherServer() throws Exception {
+        NpmHandler clusteredHandler = builder().cluster(clusterOwnedByOtherServer()).build();
+        context.checking(new Expectations() {{
+            allowing(request).getTarget(); will(returnValue("/npm/commander/-/commander-0.6.1.tgz"));
+            allowing(request).getValue("If-None-Match"); will(returnValue(""));
+            allowing(request).getValue(PeerCluster.PEER_HEADER); will(returnValue("http://npm1.ourco.com:9100"));
+            oneOf(staticHandler).streamFileIfExists("/commander/-/commander-0.6.1.tgz", "", true, response); will(returnValue(false));
+            allowing(remoteDownloadPolicy).shouldDownload("/commander/-/commander-0.6.1.tgz"); will(returnValue(true));
+
+            oneOf(proxyService).fetch(new URL("http://registry.npmjs.org/commander/-/commander-0.6.1.tgz"), new File(cacheFolder, "commander/-/commander-0.6.1.tgz"));
+            oneOf(staticHandler).canHandle("/commander/-/commander-0.6.1.tgz"); will(returnValue(true));
+            oneOf(staticHandler).streamFileToResponse("/commander/-/commander-0.6.1.tgz", "", true, response);
+        }});
+        clusteredHandler.handle(request, response);
+    }
+
+    @Test
+    public void prefetchingDownloadsFilesThatAreNotCachedAndWaitsForThem() throws Exception {
+        context.checking(new Expectations() {{
+            allowing(remoteDownloadPolicy).shouldDownload("/.abbreviated/commander.json"); will(returnValue(true));
+            allowing(remoteDownloadPolicy).shouldDownload("/commander/-/commander-0.6.1.tgz"); will(returnValue(false));
+            oneOf(abbreviatedProxyService).fetch(new URL("http://registry.npmjs.org/commander"), new File(cacheFolder, ".abbreviated/commander.json"));
+        }});
+        assertThat(abbreviatingHandler.prefetch("/commander", true), is(true));
+        assertThat(abbreviatingHandler.prefetch("/commander/-/commander-0.6.1.tgz", true), is(false));
+    }
+
+    private NpmHandler.Builder builder() {
+        return new NpmHandler.Builder(new SingleFlightDownloader(proxyService, sameThreadExecutor), staticHandler, "http://registry.npmjs.org/", cacheFolder, remoteDownloadPolicy);
+    }
+
+    /**
+     * A cluster where this server is not one of the nodes, so every file is owned by the other server.
+     */
+    private static PeerCluster clusterOwnedByOtherServer() {
+        return new PeerCluster(Collections.singletonList("http://npm2.ourco.com:9100"), "http://npm1.ourco.com:9100", null, null);
+    }
+
+    @Test
+    public void abbreviatedPackumentsAreDownloadedAndSentToClientsThatAskForThem() throws Exception {
+        context.checking(new Expectations() {{
+            allowing(request).getTarget(); will(returnValue("/npm/commander"));
+            allowing(request).getValue("If-None-Match"); will(returnValue(""));
+            allowing(request).getValue("Accept"); will(returnValue("application/vnd.npm.install-v1+json; q=1.0, application/json; q=0.8, */*"));
+            allowing(remoteDownloadPolicy).shouldDownload("/.abbreviated/commander.json"); will(returnValue(true));
+            allowing(staticHandler).canHandle("/.abbreviated/commander.json"); will(returnValue(true));
+
+            oneOf(abbreviatedProxyService).fetch(new URL("http://registry.npmjs.org/commander"), new File(cacheFolder, ".abbreviated/commander.json"));
+            oneOf(staticHandler).streamFileToResponse("/.abbreviated/commander.json", "", true, response);
+        }});
+        abbreviatingHandler.handle(request, response);
+    }
+
+    @Test
+    public void theFullPackumentIsSentIfTheAbbreviatedOneCannotBeDownloaded() throws Exception {
+        context.checking(new Expectations() {{
+            allowing(request).getTarget(); will(returnValue("/npm/commander"));
+            allowing(request).getValue("If-None-Match"); will(returnValue(""));
+            allowing(request).getValue("Accept"); will(returnValue("application/vnd.npm.install-v1+json"));
+            allowing(remoteDownloadPolicy).shouldDownload("/.abbreviated/commander.json"); will(returnValue(true));
+            allowing(staticHandler).canHandle("/.abbreviated/commander.json"); will(returnValue(false));
+            oneOf(abbreviatedProxyService).fetch(with(any(URL.class)), with(any(File.class))); will(throwException(new IOException("Simulated exception while making web request")));
 
+            allowing(remoteDownloadPolicy).shouldDownload("/commander.json"); will(returnValue(false));
+            allowing(remoteDownloadPolicy).shouldRefreshInBackground("/commander.json"); will(returnValue(false));
+            allowing(staticHandler).canHandle("/commander.json"); will(returnValue(true));
+            oneOf(staticHandler).streamFileToResponse("/commander.json", "", true, response);
+        }});
+        abbreviatingHandler.handle(request, response);
+    }
+
+    @Test
+    public void theFullPackumentIsSentToClientsThatDoNotAskForTheAbbreviatedOne() throws Exception {
+        context.checking(new Expectations() {{
+            allowing(request).getTarget(); will(returnValue("/npm/commander"));
+            allowing(request).getValue("If-None-Match"); will(returnValue(""));
+            allowing(request).getValue("Accept"); will(returnValue("application/json"));
+            allowing(remoteDownloadPolicy).shouldDownload("/commander.json"); will(returnValue(false));
+            allowing(remoteDownloadPolicy).shouldRefreshInBackground("/commander.json"); will(returnValue(false));
+            allowing(staticHandler).canHandle("/commander.json"); will(returnValue(true));
+            oneOf(staticHandler).streamFileToResponse("/commander.json", "", true, response);
+        }});
+        abbreviatingHandler.handle(request, response);
+    }
+
+    @Test(expected = ResourceNotFoundException.class)
+    public void abbreviatedPackumentsCannotBeRequestedDirectly() throws Exception {
+        context.checking(new Expectations() {{
+            allowing(request).getTarget(); will(returnValue("/npm/.abbreviated/commander"));
+        }});
+        abbreviatingHandler.handle(request, response);
+    }
 
 }
@@ -0,0 +1,150 @@
+package com.danielflower.internalnpmserver.controllers;
+
+import com.danielflower.internalnpmserver.metrics.Metrics;
+import com.danielflower.internalnpmserver.services.RoutingUpstreamClient;
+import org.jmock.Expectations;
+import org.jmock.Mockery;
+import org.jmock.integration.junit4.JMock;
+import org.jmock.integration.junit4.JUnit4Mockery;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.simpleframework.http.Request;
+import org.simpleframework.http.Response;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+@RunWith(JMock.class)
+public class PrefetchHandlerTest {
+
+    private final Mockery context = new JUnit4Mockery();
+    private final Request request = context.mock(Request.class);
+    private final Response response = context.mock(Response.class);
+
+    @Test
+    public void thePackumentsAndTarballsOfEveryPackageInALockfileArePrefetched() {
+        String lockfile = "{\n" +
+                "  \"name\": \"app\",\n" +
+                "  \"lockfileVersion\": 3,\n" +
+                "  \"packages\": {\n" +
+                "    \"\": { \"name\": \"app\" },\n" +
+                "    \"node_modules/commander\": {\n" +
+                "      \"version\": \"2.0.0\",\n" +
+                "      \"resolved\": \"https://registry.npmjs.org/commander/-/commander-2.0.0.tgz\",\n" +
+                "      \"integrity\": \"sha512-abc\"\n" +
+                "    },\n" +
+                "    \"node_modules/@ourco/thing\": {\n" +
+                "      \"resolved\" : \"http://localhost:9100/npm/@ourco/thing/-/thing-1.0.0.tgz\"\n" +
+                "    },\n" +
+                "    \"node_modules/thing/node_modules/commander\": {\n" +
+                "      \"resolved\": \"https://registry.npmjs.org/commander/-/commander-1.0.0.tgz\"\n" +
+                "    },\n" +
+                "    \"node_modules/from-git\": {\n" +
+                "      \"resolved\": \"git+ssh://git@github.com/ourco/from-git.git#abc123\"\n" +
+                "    }\n" +
+                "  }\n" +
+                "}";
+        assertThat(new ArrayList<String>(PrefetchHandler.filesIn(lockfile)), is(Arrays.asList(
+                "/commander", "/commander/-/commander-2.0.0.tgz",
+                "/@ourco%2fthing", "/@ourco/thing/-/thing-1.0.0.tgz",
+                "/commander/-/commander-1.0.0.tgz")));
+    }
+
+    @Test
+    public void olderLockfilesWithNestedDependenciesArePrefetchedToo() {
+        String lockfile = "{\"dependencies\":{\"a\":{\"version\":\"1.0.0\",\"resolved\":\"https://registry.npmjs.org/a/-/a-1.0.0.tgz\"," +
+                "\"dependencies\":{\"b\":{\"version\":\"2.0.0\",\"resolved\":\"https://registry.npmjs.org/b/-/b-2.0.0.tgz\"}}}}}";
+        assertThat(new ArrayList<String>(PrefetchHandler.filesIn(lockfile)), is(Arrays.asList(
+                "/a", "/a/-/a-1.0.0.tgz", "/b", "/b/-/b-2.0.0.tgz")));
+    }
+
+    @Test
+    public void scopedPackagesCountAgainstTheConnectionsToTheirOwnRegistry() throws Exception {
+        NpmHandler npmHandler = new NpmHandler(null, null, "http://registry.npmjs.org/", new File("target"), null);
+        PrefetchHandler handler = new PrefetchHandler(npmHandler, scopedRouting(), Executors.newCachedThreadPool(), 2, 1024, new Metrics());
+
+        assertThat(handler.hostFor("/@ourco%2fthing"), is("npm.ourco.com:8080"));
+        assertThat(handler.hostFor("/@ourco/thing/-/thing-1.0.0.tgz"), is("npm.ourco.com:8080"));
+        assertThat(handler.hostFor("/commander"), is("mirror.example.com"));
+
+        PrefetchHandler withoutRouting = new PrefetchHandler(npmHandler, Executors.newCachedThreadPool(), 2, new Metrics());
+        assertThat(withoutRouting.hostFor("/@ourco%2fthing"), is("registry.npmjs.org"));
+    }
+
+    @Test
+    public void aSlowRegistryDoesNotHoldUpFilesFromOtherRegistries() throws Exception {
+        final CountDownLatch otherRegistryFinished = new CountDownLatch(2);
+        final AtomicBoolean heldUp = new AtomicBoolean();
+        NpmHandler npmHandler = new NpmHandler(null, null, "http://registry.npmjs.org/", new File("target"), null) {
+            @Override
+            public boolean prefetch(String remotePath, boolean abbreviated) throws Exception {
+                if (remotePath.startsWith("/@ourco")) {
+                    // the scoped registry only answers once the other registry's files have been downloaded
+                    if (!otherRegistryFinished.await(5, TimeUnit.SECONDS)) {
+                        heldUp.set(true);
+                    }
+                } else {
+                    otherRegistryFinished.countDown();
+                }
+                return true;
+            }
+        };
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            PrefetchHandler handler = new PrefetchHandler(npmHandler, scopedRouting(), executor, 1, 1024, new Metrics());
+            String body = post(handler, "{\"a\":{\"resolved\":\"http://registry.npmjs.org/@ourco/thing/-/thing-1.0.0.tgz\"}," +
+                    "\"b\":{\"resolved\":\"http://registry.npmjs.org/commander/-/commander-1.0.0.tgz\"}}");
+
+            assertThat(heldUp.get(), is(false));
+            assertThat(body, containsString("4 fetched, 0 already cached, 0 failed"));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void lockfilesBiggerThanTheLimitAreRejected() throws Exception {
+        NpmHandler npmHandler = new NpmHandler(null, null, "http://registry.npmjs.org/", new File("target"), null);
+        PrefetchHandler handler = new PrefetchHandler(npmHandler, null, Executors.newCachedThreadPool(), 2, 10, new Metrics());
+        context.checking(new Expectations() {{
+            oneOf(response).setCode(413);
+        }});
+        String body = post(handler, "{\"resolved\":\"http://registry.npmjs.org/commander/-/commander-1.0.0.tgz\"}");
+        assertThat(body, containsString("bigger than 10 bytes"));
+    }
+
+    private String post(PrefetchHandler handler, final String lockfile) throws Exception {
+        final ByteArrayOutputStream body = new ByteArrayOutputStream();
+        context.checking(new Expectations() {{
+            allowing(request).getMethod(); will(returnValue("POST"));
+            allowing(request).getInputStream(); will(returnValue(new ByteArrayInputStream(lockfile.getBytes("UTF-8"))));
+            allowing(response).setDescription(with(any(String.class)));
+            allowing(response).setValue(with(any(String.class)), with(any(String.class)));
+            allowing(response).getOutputStream(); will(returnValue(body));
+        }});
+        handler.handle(request, response);
+        return body.toString("UTF-8");
+    }
+
+    private static RoutingUpstreamClient scopedRouting() {
+        List<RoutingUpstreamClient.Upstream> mirrors = Arrays.asList(
+                new RoutingUpstreamClient.Upstream("https://mirror.example.com/npm/", null));
+        Map<String, RoutingUpstreamClient.Upstream> scopes = Collections.singletonMap("@ourco", new RoutingUpstreamClient.Upstream("http://npm.ourco.com:8080", null));
+        return new RoutingUpstreamClient("http://registry.npmjs.org/", mirrors, scopes, Executors.newCachedThreadPool(), 0, 0, new Metrics());
+    }
+}
@@ -1,5 +1,9 @@
 package com.danielflower.internalnpmserver.controllers;
 
+import com.danielflower.internalnpmserver.metrics.Counter;
+import com.danielflower.internalnpmserver.services.CacheFiles;
+import com.danielflower.internalnpmserver.services.CacheIndex;
+import com.danielflower.internalnpmserver.services.FileSystemStats;
 import junit.framework.Assert;
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.output.WriterOutputStream;
@@ -17,9 +21,11 @@ import org.simpleframework.http.Response;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.OutputStreamWriter;
+import java.nio.channels.Channels;
 import java.util.Date;
 import java.util.UUID;
 import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
 
 import static org.hamcrest.CoreMatchers.equalTo;
 import static org.hamcrest.CoreMatchers.is;
@@ -35,7 +41,6 @@ public class StaticHandlerImplTest {
 	private final Path path = context.mock(Path.class);
 	private final ByteArrayOutputStream responseBytes = new ByteArrayOutputStream();
 	private final WriterOutputStream outputStream = new WriterOutputStream(new OutputStreamWriter(responseBytes));
-	private final WriterOutputStream outputStream2 = new WriterOutputStream(new OutputStreamWriter(new ByteArrayOutputStream()));
 
 	@Test
     public void cannotHandlePathsThatDoNotExist() throws Exception {
@@ -66,17 +71,19 @@ public class StaticHandlerImplTest {
 
 	@Test
 	public void writesTheRequestedFileToTheResponseStreamWithRelevantHeadersAndOneYearLongCacheTime() throws Exception {
-		File sampleFile = new File("src/main/resources/webroot/foundation.html");
+		final File sampleFile = new File("src/main/resources/webroot/foundation.html");
 		assertThat("An expected file does not exist so this test is invalid: " + sampleFile.getCanonicalPath(),
 				sampleFile.exists(), is(true));
 
 		context.checking(new Expectations() {{
 			allowing(request).getPath(); will(returnValue(path));
 			allowing(path).getPath(); will(returnValue("/foundation.html"));
-			allowing(response).getOutputStream(); will(returnValue(outputStream));
+			allowing(response).getByteChannel(); will(returnValue(Channels.newChannel(responseBytes)));
 			allowing(request).getValue("If-None-Match"); will(returnValue(""));
+			allowing(request).getValue("Accept-Encoding"); will(returnValue(null));
 
 			oneOf(response).setValue("Content-Type", "text/html");
+			oneOf(response).setValue("Content-Length", String.valueOf(sampleFile.length()));
 			oneOf(response).setDate(with("Date"), with(any(long.class)));
 			oneOf(response).setDate(with("Last-Modified"), with(any(long.class)));
 			oneOf(response).setValue(with("ETag"), with(any(String.class)));
@@ -101,10 +108,13 @@ public class StaticHandlerImplTest {
 		context.checking(new Expectations() {{
 			allowing(request).getPath(); will(returnValue(path));
 			allowing(path).getPath(); will(onConsecutiveCalls(returnValue("/robots.txt"), returnValue("/favicon.ico")));
-			allowing(response).getOutputStream(); will(onConsecutiveCalls(returnValue(outputStream), returnValue(outputStream2)));
+			allowing(response).getByteChannel(); will(onConsecutiveCalls(
+					returnValue(Channels.newChannel(new ByteArrayOutputStream())), returnValue(Channels.newChannel(new ByteArrayOutputStream()))));
 			allowing(request).getValue("If-None-Match"); will(returnValue(""));
+			allowing(request).getValue("Accept-Encoding"); will(returnValue(null));
 
 			exactly(2).of(response).setValue(with("Content-Type"), with(any(String.class)));
+			exactly(2).of(response).setValue(with("Content-Length"), with(any(String.class)));
 			exactly(2).of(response).setDate(with("Date"), with(any(long.class)));
 			exactly(2).of(response).setDate(with("Last-Modified"), with(any(long.class)));
 			exactly(2).of(response).setValue(with("ETag"), with(any(String.class)));
@@ -127,6 +137,7 @@ public class StaticHandlerImplTest {
 			allowing(path).getPath(); will(returnValue("/blah.json"));
 			allowing(response).getOutputStream(); will(returnValue(outputStream));
 			oneOf(request).getValue("If-None-Match"); will(returnValue(String.valueOf(someFile.lastModified())));
+			allowing(request).getValue("Accept-Encoding"); will(returnValue("gzip"));
 
 			oneOf(response).setCode(304);
 			oneOf(response).setDescription("304 Not Modified");
@@ -148,4 +159,154 @@ public class StaticHandlerImplTest {
 
 	}
 
+	@Test
+	public void offlinePackagesAreRewrittenOnceAndTheRewrittenCopyIsServedUntilThePackageChanges() throws Exception {
+		File webRoot = new File("target/testArea/" + UUID.randomUUID());
+		StaticHandlerImpl staticHandler = new StaticHandlerImpl(webRoot, 9100, "localhost", true, "http://registry.npmjs.org");
+		File someFile = new File(webRoot, "blah.json");
+		File offlineFile = CacheFiles.offlineFile(someFile);
+		final ByteArrayOutputStream firstResponse = new ByteArrayOutputStream();
+		final ByteArrayOutputStream secondResponse = new ByteArrayOutputStream();
+
+		context.checking(new Expectations() {{
+			allowing(response).getByteChannel(); will(onConsecutiveCalls(
+					returnValue(Channels.newChannel(firstResponse)), returnValue(Channels.newChannel(secondResponse))));
+			allowing(response).setValue(with(any(String.class)), with(any(String.class)));
+			allowing(response).setDate(with(any(String.class)), with(any(long.class)));
+		}});
+
+		FileUtils.writeStringToFile(someFile, "{\"tarball\": \"http://registry.npmjs.org/blah/-/blah-1.0.0.tgz\"}");
+		staticHandler.streamFileToResponse("/blah.json", null, false, response);
+		assertThat(firstResponse.toString("UTF-8"), is("{\"tarball\": \"http://localhost:9100/blah/-/blah-1.0.0.tgz\"}"));
+		assertThat(FileUtils.readFileToString(offlineFile), is(firstResponse.toString("UTF-8")));
+		assertThat(offlineFile.lastModified(), is(someFile.lastModified()));
+
+		FileUtils.writeStringToFile(someFile, "{\"tarball\": \"http://registry.npmjs.org/blah/-/blah-2.0.0.tgz\"}");
+		assertThat(someFile.setLastModified(someFile.lastModified() + 2000), is(true));
+		staticHandler.streamFileToResponse("/blah.json", null, false, response);
+		assertThat(secondResponse.toString("UTF-8"), is("{\"tarball\": \"http://localhost:9100/blah/-/blah-2.0.0.tgz\"}"));
+		assertThat(offlineFile.lastModified(), is(someFile.lastModified()));
+		assertThat("temp files should be cleaned up", webRoot.list().length, is(2));
+	}
+
+	@Test
+	public void theOfflineCopyOfEachVersionIsOnlyLookedForOnTheFileSystemOnce() throws Exception {
+		File webRoot = new File("target/testArea/" + UUID.randomUUID());
+		File someFile = new File(webRoot, "blah.json");
+		FileUtils.writeStringToFile(someFile, "{\"tarball\": \"http://registry.npmjs.org/blah/-/blah-1.0.0.tgz\"}");
+		StaticHandlerImpl staticHandler = new StaticHandlerImpl(webRoot, 9100, "localhost", true, "http://registry.npmjs.org", new CacheIndex(webRoot));
+		File offlineFile = CacheFiles.offlineFile(someFile);
+		final ByteArrayOutputStream firstResponse = new ByteArrayOutputStream();
+		final ByteArrayOutputStream secondResponse = new ByteArrayOutputStream();
+
+		context.checking(new Expectations() {{
+			allowing(response).getByteChannel(); will(onConsecutiveCalls(
+					returnValue(Channels.newChannel(firstResponse)), returnValue(Channels.newChannel(secondResponse))));
+			allowing(response).setValue(with(any(String.class)), with(any(String.class)));
+			allowing(response).setDate(with(any(String.class)), with(any(long.class)));
+		}});
+
+		staticHandler.streamFileToResponse("/blah.json", null, false, response);
+		assertThat(firstResponse.toString("UTF-8"), is("{\"tarball\": \"http://localhost:9100/blah/-/blah-1.0.0.tgz\"}"));
+
+		// if the copy's last modified time were looked up again, this would be seen as out of date and made again
+		FileUtils.writeStringToFile(offlineFile, "the copy");
+		assertThat(offlineFile.setLastModified(someFile.lastModified() - 2000), is(true));
+		staticHandler.streamFileToResponse("/blah.json", null, false, response);
+		assertThat(secondResponse.toString("UTF-8"), is("the copy"));
+	}
+
+	@Test
+	public void gzippedFilesAreSentAsTheyAreToClientsThatAcceptGzipAndDecompressedForOthers() throws Exception {
+		File webRoot = new File("target/testArea/" + UUID.randomUUID());
+		StaticHandlerImpl staticHandler = new StaticHandlerImpl(webRoot, 9100, "localhost", false, "");
+		ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+		GZIPOutputStream gzip = new GZIPOutputStream(compressed);
+		gzip.write("{\"name\": \"blah\"}".getBytes("UTF-8"));
+		gzip.close();
+		FileUtils.writeByteArrayToFile(new File(webRoot, "blah.json"), compressed.toByteArray());
+		final ByteArrayOutputStream gzipResponse = new ByteArrayOutputStream();
+		final ByteArrayOutputStream plainResponse = new ByteArrayOutputStream();
+
+		context.checking(new Expectations() {{
+			allowing(response).getByteChannel(); will(returnValue(Channels.newChannel(gzipResponse)));
+			allowing(response).getOutputStream(); will(returnValue(plainResponse));
+			allowing(response).setDate(with(any(String.class)), with(any(long.class)));
+			oneOf(response).setValue("Content-Encoding", "gzip");
+			exactly(2).of(response).setValue("Vary", "Accept, Accept-Encoding");
+			allowing(response).setValue(with(any(String.class)), with(any(String.class)));
+		}});
+
+		staticHandler.streamFileToResponse("/blah.json", null, true, response);
+		assertThat(gzipResponse.toByteArray(), is(equalTo(compressed.toByteArray())));
+
+		staticHandler.streamFileToResponse("/blah.json", null, false, response);
+		assertThat(plainResponse.toString("UTF-8"), is("{\"name\": \"blah\"}"));
+	}
+
+	@Test
+	public void tarballsAreAlwaysSentAsTheyAreEvenThoughTheyAreGzipFiles() throws Exception {
+		File webRoot = new File("target/testArea/" + UUID.randomUUID());
+		StaticHandlerImpl staticHandler = new StaticHandlerImpl(webRoot, 9100, "localhost", false, "");
+		ByteArrayOutputStream tarball = new ByteArrayOutputStream();
+		GZIPOutputStream gzip = new GZIPOutputStream(tarball);
+		gzip.write("package/package.json".getBytes("UTF-8"));
+		gzip.close();
+		FileUtils.writeByteArrayToFile(new File(webRoot, "blah-1.0.0.tgz"), tarball.toByteArray());
+		final ByteArrayOutputStream sent = new ByteArrayOutputStream();
+
+		context.checking(new Expectations() {{
+			allowing(response).getByteChannel(); will(returnValue(Channels.newChannel(sent)));
+			allowing(response).setDate(with(any(String.class)), with(any(long.class)));
+			never(response).setValue(with("Content-Encoding"), with(any(String.class)));
+			allowing(response).setValue(with(any(String.class)), with(any(String.class)));
+		}});
+
+		staticHandler.streamFileToResponse("/blah-1.0.0.tgz", null, false, response);
+		assertThat(sent.toByteArray(), is(equalTo(tarball.toByteArray())));
+	}
+
+	@Test
+	public void theBytesOfFilesSentStraightFromTheFileAreCounted() throws Exception {
+		File webRoot = new File("target/testArea/" + UUID.randomUUID());
+		FileUtils.writeStringToFile(new File(webRoot, "blah-1.0.0.tgz"), "A tarball");
+		Counter bytesSent = new Counter();
+		StaticHandlerImpl staticHandler = new StaticHandlerImpl(webRoot, 9100, "localhost", false, "", new FileSystemStats(webRoot), bytesSent);
+
+		context.checking(new Expectations() {{
+			allowing(response).getByteChannel(); will(returnValue(Channels.newChannel(new ByteArrayOutputStream())));
+			allowing(response).setDate(with(any(String.class)), with(any(long.class)));
+			allowing(response).setValue(with(any(String.class)), with(any(String.class)));
+		}});
+
+		staticHandler.streamFileToResponse("/blah-1.0.0.tgz", null, true, response);
+		assertThat(bytesSent.get(), is((long) "A tarball".length()));
+	}
+
+	@Test
+	public void filesThatDoNotExistOrAreNotAllowedAreNotStreamedAndTheResponseIsNotTouched() throws Exception {
+		File webRoot = new File("target/testArea/" + UUID.randomUUID());
+		FileUtils.writeStringToFile(new File(webRoot, "blah-1.0.0.tgz"), "A tarball");
+		StaticHandlerImpl staticHandler = new StaticHandlerImpl(new File(webRoot, "sub"), 9100, "localhost", false, "");
+
+		assertThat(staticHandler.streamFileIfExists("/missing-1.0.0.tgz", null, true, response), is(false));
+		assertThat(staticHandler.streamFileIfExists("/../blah-1.0.0.tgz", null, true, response), is(false));
+	}
+
+	@Test
+	public void filesDeletedFromUnderTheCacheIndexAreForgottenAndNotStreamed() throws Exception {
+		File webRoot = new File("target/testArea/" + UUID.randomUUID());
+		File tarball = new File(webRoot, "blah/-/blah-1.0.0.tgz");
+		FileUtils.writeStringToFile(tarball, "A tarball");
+		CacheIndex index = new CacheIndex(webRoot);
+		StaticHandlerImpl staticHandler = new StaticHandlerImpl(webRoot, 9100, "localhost", false, "", index);
+		assertThat(staticHandler.canHandle("/blah/-/blah-1.0.0.tgz"), is(true));
+
+		assertThat(tarball.delete(), is(true));
+		assertThat("the index still remembers it", staticHandler.canHandle("/blah/-/blah-1.0.0.tgz"), is(true));
+		assertThat(staticHandler.streamFileIfExists("/blah/-/blah-1.0.0.tgz", null, true, response), is(false));
+		assertThat(staticHandler.canHandle("/blah/-/blah-1.0.0.tgz"), is(false));
+		assertThat(index.getFileCount(), is(0));
+	}
+
 }
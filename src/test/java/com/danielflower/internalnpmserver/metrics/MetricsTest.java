@@ -0,0 +1,98 @@
+package com.danielflower.internalnpmserver.metrics;
+
+import org.junit.Test;
+
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.junit.Assert.assertThat;
+
+public class MetricsTest {
+
+    private final Metrics metrics = new Metrics();
+
+    @Test
+    public void theSameNameAndLabelsGiveTheSameMetric() {
+        Counter counter = metrics.counter("requests_total", "Requests", "route", "npm");
+        assertThat(metrics.counter("requests_total", "Requests", "route", "npm"), is(sameInstance(counter)));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void aNameCanOnlyBeUsedForOneTypeOfMetric() {
+        metrics.counter("requests", "Requests");
+        metrics.histogram("requests", "Requests");
+    }
+
+    @Test
+    public void countersAddUpWhatEveryThreadCounted() throws Exception {
+        final Counter counter = metrics.counter("requests_total", "Requests");
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        List<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
+        for (int t = 0; t < 8; t++) {
+            tasks.add(Executors.callable(new Runnable() {
+                public void run() {
+                    for (int i = 0; i < 10000; i++) {
+                        counter.increment();
+                    }
+                }
+            }));
+        }
+        for (Future<Object> result : executor.invokeAll(tasks)) {
+            result.get();
+        }
+        executor.shutdown();
+        assertThat(counter.get(), is(80000L));
+    }
+
+    @Test
+    public void histogramsEstimatePercentilesFromTheirBuckets() {
+        Histogram histogram = metrics.histogram("latency_seconds", "Latency");
+        for (int i = 0; i < 98; i++) {
+            histogram.record(3, TimeUnit.MILLISECONDS);
+        }
+        histogram.record(200, TimeUnit.MILLISECONDS);
+        histogram.record(2, TimeUnit.MINUTES);
+
+        assertThat(histogram.getCount(), is(100L));
+        assertThat(histogram.getPercentileNanos(50), is(TimeUnit.MILLISECONDS.toNanos(5)));
+        assertThat(histogram.getPercentileNanos(99), is(TimeUnit.MILLISECONDS.toNanos(250)));
+        assertThat(histogram.getPercentileNanos(100), is(Long.MAX_VALUE));
+        assertThat(new Histogram().getPercentileNanos(99), is(0L));
+    }
+
+    @Test
+    public void metricsAreWrittenInThePrometheusTextFormat() throws Exception {
+        metrics.counter("requests_total", "Requests handled", "route", "npm", "code", "200").add(3);
+        metrics.histogram("latency_seconds", "Time taken", "route", "say \"hi\"").record(1, TimeUnit.MILLISECONDS);
+        metrics.gauge("in_flight", "Downloads in progress", new Gauge() {
+            public double getValue() {
+                return 2;
+            }
+        });
+        metrics.counterFunction("dropped_total", "Entries dropped", new Gauge() {
+            public double getValue() {
+                return 5;
+            }
+        });
+
+        StringWriter out = new StringWriter();
+        metrics.writeTo(out);
+        String text = out.toString();
+
+        assertThat(text, containsString("# HELP requests_total Requests handled\n# TYPE requests_total counter\n"
+                + "requests_total{route=\"npm\",code=\"200\"} 3\n"));
+        assertThat(text, containsString("# TYPE latency_seconds histogram\n"));
+        assertThat(text, containsString("latency_seconds_bucket{route=\"say \\\"hi\\\"\",le=\"0.0005\"} 0\n"));
+        assertThat(text, containsString("latency_seconds_bucket{route=\"say \\\"hi\\\"\",le=\"0.001\"} 1\n"));
+        assertThat(text, containsString("latency_seconds_bucket{route=\"say \\\"hi\\\"\",le=\"+Inf\"} 1\n"));
+        assertThat(text, containsString("latency_seconds_sum{route=\"say \\\"hi\\\"\"} 0.001\n"));
+        assertThat(text, containsString("latency_seconds_count{route=\"say \\\"hi\\\"\"} 1\n"));
+        assertThat(text, containsString("# TYPE in_flight gauge\nin_flight 2.0\n"));
+        assertThat(text, containsString("# TYPE dropped_total counter\ndropped_total 5.0\n"));
+    }
+}
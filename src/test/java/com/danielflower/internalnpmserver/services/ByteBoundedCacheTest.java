@@ -0,0 +1,101 @@
+package com.danielflower.internalnpmserver.services;
+
+import org.junit.Test;
+
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+public class ByteBoundedCacheTest {
+
+    private final ByteBoundedCache<String, String> cache = new ByteBoundedCache<String, String>(100, 64);
+
+    @Test
+    public void valuesAreAddedWhileThereIsRoom() {
+        assertThat(put("a", 40), is(true));
+        assertThat(put("b", 40), is(true));
+        assertThat(cache.get("a"), is("a"));
+        assertThat(cache.get("b"), is("b"));
+        assertThat(cache.getSizeInBytes(), is(80L));
+        assertThat(cache.getEntryCount(), is(2));
+    }
+
+    @Test
+    public void valuesBiggerThanTheWholeCacheAreNeverAdded() {
+        assertThat(put("huge", 101), is(false));
+        assertThat(cache.get("huge"), is(nullValue()));
+    }
+
+    @Test
+    public void aValueThatIsUsedOnceCannotPushOutValuesThatAreUsedOften() {
+        put("a", 40);
+        put("b", 40);
+        for (int i = 0; i < 5; i++) {
+            cache.get("a");
+            cache.get("b");
+        }
+
+        cache.get("one-off");
+        assertThat(put("one-off", 60), is(false));
+        assertThat(cache.get("a"), is("a"));
+        assertThat(cache.get("b"), is("b"));
+    }
+
+    @Test
+    public void aValueThatBecomesPopularPushesOutTheLeastRecentlyUsedValues() {
+        put("a", 40);
+        put("b", 40);
+        cache.get("b");
+        for (int i = 0; i < 5; i++) {
+            cache.get("popular");
+        }
+
+        assertThat(put("popular", 30), is(true));
+        assertThat(cache.peek("a"), is(nullValue()));
+        assertThat(cache.peek("b"), is("b"));
+        assertThat(cache.getSizeInBytes(), is(70L));
+    }
+
+    @Test
+    public void peekingAtAValueDoesNotSaveItFromBeingPushedOut() {
+        put("a", 40);
+        put("b", 40);
+        cache.get("b");
+        cache.peek("a");
+        for (int i = 0; i < 5; i++) {
+            cache.get("popular");
+        }
+
+        assertThat(put("popular", 30), is(true));
+        assertThat(cache.peek("a"), is(nullValue()));
+        assertThat(cache.peek("b"), is("b"));
+    }
+
+    @Test
+    public void invalidatedValuesAreRemoved() {
+        put("a", 40);
+        cache.invalidate("a");
+        assertThat(cache.get("a"), is(nullValue()));
+        assertThat(cache.getSizeInBytes(), is(0L));
+    }
+
+    @Test
+    public void valuesLoadedBeforeAnInvalidationAreNotAdded() {
+        long invalidationCount = cache.getInvalidationCount();
+        cache.invalidate("a");
+        assertThat(cache.put("a", "stale", 10, invalidationCount), is(false));
+        assertThat(cache.get("a"), is(nullValue()));
+    }
+
+    @Test
+    public void replacingAValueUpdatesTheSize() {
+        put("a", 40);
+        assertThat(cache.put("a", "new a", 20, cache.getInvalidationCount()), is(true));
+        assertThat(cache.get("a"), is("new a"));
+        assertThat(cache.getSizeInBytes(), is(20L));
+    }
+
+    private boolean put(String key, long size) {
+        return cache.put(key, key, size, cache.getInvalidationCount());
+    }
+}
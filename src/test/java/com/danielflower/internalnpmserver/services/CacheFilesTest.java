@@ -0,0 +1,41 @@
+package com.danielflower.internalnpmserver.services;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.UUID;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+public class CacheFilesTest {
+
+    private final File folder = new File("target/cachefilestest/" + UUID.randomUUID());
+
+    @Test
+    public void publishingReplacesTheCachedFileWithThePartialFile() throws Exception {
+        File cached = new File(folder, "thing.json");
+        File partial = CacheFiles.partialFile(cached);
+        FileUtils.writeStringToFile(cached, "old");
+        FileUtils.writeStringToFile(partial, "new");
+
+        CacheFiles.publish(partial, cached);
+
+        assertThat(FileUtils.readFileToString(cached), is("new"));
+        assertThat(partial.exists(), is(false));
+    }
+
+    @Test
+    public void serverFilesInTheCacheAreRecognisedAsInternal() {
+        File cached = new File(folder, "thing.json");
+        assertThat(CacheFiles.isInternalFile(CacheFiles.partialFile(cached).getPath()), is(true));
+        assertThat(CacheFiles.isInternalFile(CacheFiles.validatorsFile(cached).getPath()), is(true));
+        assertThat(CacheFiles.isInternalFile(CacheFiles.offlineFile(cached).getPath()), is(true));
+        assertThat(CacheFiles.isInternalFile(CacheFiles.lockFile(cached).getPath()), is(true));
+        assertThat(CacheFiles.isInternalFile(CacheFiles.failoverFile(cached).getPath()), is(true));
+        assertThat(CacheFiles.isInternalFile(CacheFiles.validatorsFile(CacheFiles.failoverFile(cached)).getPath()), is(true));
+        assertThat(CacheFiles.isInternalFile(CacheFiles.abbreviatedPath("/thing.json")), is(true));
+        assertThat(CacheFiles.isInternalFile(cached.getPath()), is(false));
+    }
+}
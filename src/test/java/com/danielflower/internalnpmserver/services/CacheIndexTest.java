@@ -0,0 +1,127 @@
+package com.danielflower.internalnpmserver.services;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+public class CacheIndexTest {
+
+    private final File folder = new File("target/cacheindextest/" + UUID.randomUUID());
+    private final File packument = new File(folder, "commander.json");
+    private final File tarball = new File(folder, "commander/-/commander-0.6.1.tgz");
+    private final ExecutorService executor = Executors.newFixedThreadPool(2);
+    private final CacheIndex index = new CacheIndex(folder);
+
+    @Before
+    public void createCache() throws Exception {
+        FileUtils.writeStringToFile(packument, "{}");
+        FileUtils.writeStringToFile(CacheFiles.validatorsFile(packument), "ETag=1");
+        FileUtils.writeStringToFile(tarball, "A tarball");
+        assertThat(packument.setLastModified(1000000), is(true));
+        assertThat(tarball.setLastModified(2000000), is(true));
+    }
+
+    @After
+    public void stopExecutor() {
+        executor.shutdown();
+    }
+
+    @Test
+    public void theIndexIsBuiltFromTheCacheFolderWithoutTheServersOwnFiles() throws Exception {
+        index.build(executor);
+
+        assertThat(index.isComplete(), is(true));
+        assertThat(index.getFileCount(), is(2));
+        assertThat(index.lastModified("/commander.json"), is(1000000L));
+        assertThat(index.lastModified("/commander/-/commander-0.6.1.tgz"), is(2000000L));
+        assertThat(index.length("/commander/-/commander-0.6.1.tgz"), is(9L));
+    }
+
+    @Test
+    public void lookupsAreAnsweredFromMemoryOnceAFileIsIndexed() throws Exception {
+        index.build(executor);
+        FileUtils.forceDelete(tarball);
+
+        assertThat(index.lastModified("/commander/-/commander-0.6.1.tgz"), is(2000000L));
+    }
+
+    @Test
+    public void filesNotInTheIndexAreLookedUpOnTheFileSystem() throws Exception {
+        assertThat(index.lastModified("/commander.json"), is(1000000L));
+        assertThat(index.lastModified("/not-cached.json"), is(0L));
+        assertThat(index.lastModified("/commander"), is(0L));
+        assertThat(index.getFileCount(), is(1));
+    }
+
+    @Test
+    public void downloadsUpdateTheIndex() throws Exception {
+        index.build(executor);
+        FileUtils.writeStringToFile(packument, "{\"name\":\"commander\"}");
+        assertThat(packument.setLastModified(3000000), is(true));
+
+        index.downloaded(packument);
+        assertThat(index.lastModified("/commander.json"), is(3000000L));
+        assertThat(index.length("/commander.json"), is(20L));
+        assertThat(index.getTotalBytes(), is(29L));
+    }
+
+    @Test
+    public void downloadsToOtherFoldersAreIgnoredEvenIfTheirNameStartsWithTheCacheFolderName() throws Exception {
+        File sibling = new File(folder.getPath() + "-other", "commander.json");
+        FileUtils.writeStringToFile(sibling, "{}");
+        // where the sibling's file would be taken to be if only the start of its path were compared
+        FileUtils.writeStringToFile(new File(folder, "-other/commander.json"), "{}");
+
+        index.downloaded(sibling);
+        assertThat(index.getEntries().containsKey("/-other/commander.json"), is(false));
+    }
+
+    @Test
+    public void deletedFilesAreRemovedWhenUpdated() throws Exception {
+        index.build(executor);
+        FileUtils.forceDelete(tarball);
+
+        index.update("/commander/-/commander-0.6.1.tgz");
+        assertThat(index.lastModified("/commander/-/commander-0.6.1.tgz"), is(0L));
+        assertThat(index.getFileCount(), is(1));
+        assertThat(index.getTotalBytes(), is(2L));
+    }
+
+    @Test
+    public void usesAreRecordedAndKeptWhenAFileIsDownloadedAgain() throws Exception {
+        index.build(executor);
+        index.recordAccess("/commander.json");
+        index.recordAccess("/commander.json");
+        index.downloaded(packument);
+
+        CacheIndex.Entry entry = index.getEntries().get("/commander.json");
+        assertThat(entry.accessCount, is(3));
+        assertThat(entry.lastAccessed > 1000000L, is(true));
+    }
+
+    @Test
+    public void snapshotsCanBeLoadedInsteadOfBuildingTheIndexButOnlyOnce() throws Exception {
+        index.build(executor);
+        File snapshot = CacheFiles.indexSnapshotFile(folder);
+        index.saveSnapshot(snapshot);
+        FileUtils.forceDelete(tarball);
+
+        CacheIndex restarted = new CacheIndex(folder);
+        assertThat(restarted.loadSnapshot(snapshot), is(true));
+        assertThat(restarted.isComplete(), is(true));
+        assertThat(restarted.lastModified("/commander/-/commander-0.6.1.tgz"), is(2000000L));
+        assertThat(restarted.getTotalBytes(), is(11L));
+        assertThat(snapshot.exists(), is(false));
+
+        assertThat(new CacheIndex(folder).loadSnapshot(snapshot), is(false));
+    }
+}
@@ -0,0 +1,174 @@
+package com.danielflower.internalnpmserver.services;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+public class CacheSweeperTest {
+
+    private static final long HOUR = 60 * 60 * 1000L;
+
+    private final File folder = new File("target/cachesweepertest/" + UUID.randomUUID());
+    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+    private final CacheIndex index = new CacheIndex(folder);
+    private final long now = System.currentTimeMillis();
+
+    @After
+    public void stopExecutor() {
+        executor.shutdown();
+    }
+
+    @Test
+    public void nothingIsRemovedUntilTheCacheIsBiggerThanTheHighWatermark() throws Exception {
+        cache("/a.json", 10 * HOUR);
+        cache("/b.json", 9 * HOUR);
+        index.build(executor);
+
+        assertThat(new CacheSweeper(index, 20, 10, 0).sweep(), is(0));
+        assertThat(new CacheSweeper(index, 19, 10, 0).sweep(), is(1));
+    }
+
+    @Test
+    public void nothingIsRemovedUntilTheIndexIsComplete() throws Exception {
+        cache("/a.json", 10 * HOUR);
+        index.lastModified("/a.json");
+
+        assertThat(new CacheSweeper(index, 0, 0, 0).sweep(), is(0));
+    }
+
+    @Test
+    public void theLeastRecentlyUsedFilesAreRemovedUntilTheCacheIsUnderTheLowWatermark() throws Exception {
+        File oldest = cache("/oldest.json", 10 * HOUR);
+        FileUtils.writeStringToFile(CacheFiles.validatorsFile(oldest), "ETag=1");
+        File older = cache("/older.json", 9 * HOUR);
+        File newer = cache("/newer.json", 8 * HOUR);
+        index.build(executor);
+
+        assertThat(new CacheSweeper(index, 25, 15, 0).sweep(), is(2));
+
+        assertThat(oldest.exists(), is(false));
+        assertThat(CacheFiles.validatorsFile(oldest).exists(), is(false));
+        assertThat(older.exists(), is(false));
+        assertThat(newer.exists(), is(true));
+        assertThat(index.getFileCount(), is(1));
+        assertThat(index.getTotalBytes(), is(10L));
+    }
+
+    @Test
+    public void listenersAreToldAboutEachFileThatIsRemoved() throws Exception {
+        File oldest = cache("/oldest.json", 10 * HOUR);
+        cache("/newer.json", 8 * HOUR);
+        index.build(executor);
+        final List<File> removed = new ArrayList<File>();
+        CacheSweeper sweeper = new CacheSweeper(index, 15, 10, 0);
+        sweeper.addListener(new DownloadListener() {
+            public void downloaded(File destination) {
+                assertThat("told after it is deleted", destination.exists(), is(false));
+                removed.add(destination);
+            }
+        });
+
+        assertThat(sweeper.sweep(), is(1));
+        assertThat(removed, is(Collections.singletonList(oldest)));
+    }
+
+    @Test
+    public void filesThatAreUsedOftenOutlastFilesThatWereUsedMoreRecently() throws Exception {
+        File popular = cache("/popular.json", 10 * HOUR);
+        File recent = cache("/recent.json", 9 * HOUR);
+        index.build(executor);
+        index.getEntries().get("/popular.json").accessCount = 2;
+
+        new CacheSweeper(index, 15, 10, 0).sweep();
+
+        assertThat(popular.exists(), is(true));
+        assertThat(recent.exists(), is(false));
+    }
+
+    @Test
+    public void theNewestTarballsOfPackagesWhosePackumentsAreUsedArePinned() throws Exception {
+        cache("/pkg.json", 0);
+        File[] versions = new File[CacheSweeper.PINNED_VERSIONS + 1];
+        for (int i = 0; i < versions.length; i++) {
+            versions[i] = cache("/pkg/-/pkg-1.0." + i + ".tgz", (20 - i) * HOUR);
+        }
+        File unrelated = cache("/other/-/other-1.0.0.tgz", 15 * HOUR);
+        index.build(executor);
+
+        new CacheSweeper(index, 0, 0, HOUR).sweep();
+
+        assertThat(versions[0].exists(), is(false));
+        for (int i = 1; i < versions.length; i++) {
+            assertThat(versions[i].exists(), is(true));
+        }
+        assertThat(unrelated.exists(), is(false));
+    }
+
+    @Test
+    public void filesUsedMoreRecentlyThanTheMinimumIdleTimeAreNotRemoved() throws Exception {
+        File recent = cache("/recent.json", HOUR / 2);
+        File old = cache("/old.json", 2 * HOUR);
+        index.build(executor);
+
+        assertThat(new CacheSweeper(index, 0, 0, HOUR).sweep(), is(1));
+        assertThat(recent.exists(), is(true));
+        assertThat(old.exists(), is(false));
+    }
+
+    @Test
+    public void filesThatAreDownloadedAgainWhileBeingRemovedAreKept() throws Exception {
+        final File downloaded = cache("/downloaded.json", 10 * HOUR);
+        index.build(executor);
+        KeyedLock<File> fileLocks = new KeyedLock<File>();
+        final CacheSweeper sweeper = new CacheSweeper(index, 0, 0, 0, fileLocks);
+
+        // a download holds the lock until it has published the file and told the index
+        fileLocks.lock(downloaded);
+        Future<Integer> sweep = executor.submit(new Callable<Integer>() {
+            public Integer call() {
+                return sweeper.sweep();
+            }
+        });
+        Thread.sleep(100);
+        assertThat(sweep.isDone(), is(false));
+        cache("/downloaded.json", 0);
+        index.downloaded(downloaded);
+        fileLocks.unlock(downloaded);
+
+        assertThat(sweep.get(10, TimeUnit.SECONDS), is(0));
+        assertThat(downloaded.exists(), is(true));
+        assertThat(index.getFileCount(), is(1));
+    }
+
+    @Test
+    public void filesBelongToThePackageOfTheirPackument() {
+        assertThat(CacheSweeper.packageOf("/commander.json"), is("/commander"));
+        assertThat(CacheSweeper.packageOf(CacheFiles.abbreviatedPath("/commander.json")), is("/commander"));
+        assertThat(CacheSweeper.packageOf("/@types/node/-/node-1.0.0.tgz"), is("/@types/node"));
+        assertThat(CacheSweeper.packageOf("/robots.txt"), is((String) null));
+    }
+
+    /**
+     * Caches a 10 byte file that was downloaded, and so last used, the given time ago.
+     */
+    private File cache(String path, long age) throws Exception {
+        File file = new File(folder, path);
+        FileUtils.writeStringToFile(file, "0123456789");
+        assertThat(file.setLastModified(now - age), is(true));
+        return file;
+    }
+}
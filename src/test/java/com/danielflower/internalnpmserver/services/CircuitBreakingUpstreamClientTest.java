@@ -0,0 +1,233 @@
+package com.danielflower.internalnpmserver.services;
+
+import com.danielflower.internalnpmserver.metrics.Metrics;
+import org.apache.commons.io.IOUtils;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.util.Collections;
+import java.util.Map;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+public class CircuitBreakingUpstreamClientTest {
+
+    private final FakeRegistry registry = new FakeRegistry();
+    private final Metrics metrics = new Metrics();
+    private final CircuitBreakingUpstreamClient client = new CircuitBreakingUpstreamClient(registry, 4, 4, 50, 10000, 50, metrics, "registry");
+
+    @Test
+    public void requestsAreNotSentOnceEnoughOfTheRecentOnesFailed() throws Exception {
+        succeed(200);
+        succeed(404);
+        failWith(503);
+        assertThat(client.getState(), is(CircuitBreakingUpstreamClient.State.CLOSED));
+        failWith(-1);
+
+        assertThat(client.getState(), is(CircuitBreakingUpstreamClient.State.OPEN));
+        assertRejected();
+        assertThat(registry.requests, is(4));
+        assertThat(metrics.counter("upstream_circuit_opened_total", "", "upstream", "registry").get(), is(1L));
+        assertThat(metrics.counter("upstream_circuit_rejected_total", "", "upstream", "registry").get(), is(1L));
+    }
+
+    @Test
+    public void requestsSlowerThanTheSlowCallTimeCountAsFailures() throws Exception {
+        CircuitBreakingUpstreamClient client = new CircuitBreakingUpstreamClient(registry, 4, 4, 50, 20, 50, metrics, "slow");
+        registry.delayMillis = 40;
+        for (int i = 0; i < 2; i++) {
+            UpstreamResponse response = client.get(new URL("http://registry.npmjs.org/commander"), headers());
+            IOUtils.toByteArray(response.getBody());
+            response.close();
+        }
+        assertThat(client.getState(), is(CircuitBreakingUpstreamClient.State.CLOSED));
+
+        registry.delayMillis = 0;
+        for (int i = 0; i < 2; i++) {
+            UpstreamResponse response = client.get(new URL("http://registry.npmjs.org/commander"), headers());
+            IOUtils.toByteArray(response.getBody());
+            response.close();
+        }
+        assertThat(client.getState(), is(CircuitBreakingUpstreamClient.State.OPEN));
+    }
+
+    @Test
+    public void bodiesThatFailPartWayThroughCountAsFailures() throws Exception {
+        succeed(200);
+        succeed(200);
+        failWhileReadingTheBody();
+        assertThat(client.getState(), is(CircuitBreakingUpstreamClient.State.CLOSED));
+        failWhileReadingTheBody();
+
+        assertThat(client.getState(), is(CircuitBreakingUpstreamClient.State.OPEN));
+        assertRejected();
+    }
+
+    @Test
+    public void whileHalfOpenOnlyOneTrialRequestIsSentAtATime() throws Exception {
+        open();
+        Thread.sleep(60);
+        assertThat(client.getState(), is(CircuitBreakingUpstreamClient.State.HALF_OPEN));
+
+        registry.status = 200;
+        UpstreamResponse trial = client.get(new URL("http://registry.npmjs.org/commander"), headers());
+        assertThat(registry.requests, is(5));
+        for (int i = 0; i < 3; i++) {
+            assertRejected();
+        }
+        assertThat(registry.requests, is(5));
+        assertThat(client.getState(), is(CircuitBreakingUpstreamClient.State.HALF_OPEN));
+        trial.close();
+    }
+
+    @Test
+    public void afterAWhileOneProbeIsSentAndTheCircuitClosesIfItWorks() throws Exception {
+        open();
+        Thread.sleep(60);
+
+        registry.status = 200;
+        UpstreamResponse probe = client.get(new URL("http://registry.npmjs.org/commander"), headers());
+        assertRejected();
+        IOUtils.toByteArray(probe.getBody());
+        probe.close();
+
+        assertThat(client.getState(), is(CircuitBreakingUpstreamClient.State.CLOSED));
+        // the failures from before the circuit opened are forgotten, so it takes a full window to open again
+        int requests = registry.requests;
+        failWith(500);
+        failWith(500);
+        failWith(500);
+        assertThat(client.getState(), is(CircuitBreakingUpstreamClient.State.CLOSED));
+        succeed(200);
+        assertThat(registry.requests, is(requests + 4));
+    }
+
+    @Test
+    public void theCircuitOpensAgainIfTheProbeFails() throws Exception {
+        open();
+        Thread.sleep(60);
+
+        registry.bodyFails = true;
+        UpstreamResponse probe = client.get(new URL("http://registry.npmjs.org/commander"), headers());
+        try {
+            IOUtils.toByteArray(probe.getBody());
+            fail("Should have thrown");
+        } catch (IOException e) {
+            // expected
+        }
+        probe.close();
+
+        assertThat(client.getState(), is(CircuitBreakingUpstreamClient.State.OPEN));
+        assertRejected();
+    }
+
+    private void open() throws Exception {
+        for (int i = 0; i < 4; i++) {
+            failWith(500);
+        }
+        assertThat(client.getState(), is(CircuitBreakingUpstreamClient.State.OPEN));
+    }
+
+    private void succeed(int status) throws Exception {
+        registry.status = status;
+        registry.bodyFails = false;
+        UpstreamResponse response = client.get(new URL("http://registry.npmjs.org/commander"), headers());
+        IOUtils.toByteArray(response.getBody());
+        response.close();
+    }
+
+    /**
+     * @param status The status to respond with, or -1 to throw instead
+     */
+    private void failWith(int status) throws Exception {
+        registry.status = status;
+        try {
+            client.get(new URL("http://registry.npmjs.org/commander"), headers()).close();
+        } catch (IOException e) {
+            assertThat(status, is(-1));
+        }
+    }
+
+    private void failWhileReadingTheBody() throws Exception {
+        registry.status = 200;
+        registry.bodyFails = true;
+        UpstreamResponse response = client.get(new URL("http://registry.npmjs.org/commander"), headers());
+        try {
+            IOUtils.toByteArray(response.getBody());
+            fail("Should have thrown");
+        } catch (IOException e) {
+            // expected
+        } finally {
+            response.close();
+        }
+    }
+
+    private void assertRejected() throws Exception {
+        int requests = registry.requests;
+        try {
+            client.get(new URL("http://registry.npmjs.org/commander"), headers());
+            fail("Should have been rejected");
+        } catch (IOException e) {
+            assertThat(registry.requests, is(requests));
+        }
+    }
+
+    private static Map<String, String> headers() {
+        return Collections.emptyMap();
+    }
+
+    private static class FakeRegistry implements UpstreamClient {
+        int status = 200;
+        boolean bodyFails;
+        long delayMillis;
+        int requests;
+
+        public UpstreamResponse get(URL url, Map<String, String> requestHeaders) throws IOException {
+            requests++;
+            if (status == -1) {
+                throw new IOException("Simulated connection failure");
+            }
+            if (delayMillis > 0) {
+                try {
+                    Thread.sleep(delayMillis);
+                } catch (InterruptedException e) {
+                    throw new IOException("Interrupted");
+                }
+            }
+            final int status = this.status;
+            final boolean bodyFails = this.bodyFails;
+            return new UpstreamResponse() {
+                public int getStatus() {
+                    return status;
+                }
+
+                public String getHeader(String name) {
+                    return null;
+                }
+
+                public long getContentLength() {
+                    return 2;
+                }
+
+                public InputStream getBody() throws IOException {
+                    if (bodyFails) {
+                        return new InputStream() {
+                            public int read() throws IOException {
+                                throw new IOException("Simulated read timeout");
+                            }
+                        };
+                    }
+                    return new ByteArrayInputStream("{}".getBytes("UTF-8"));
+                }
+
+                public void close() {
+                }
+            };
+        }
+    }
+}
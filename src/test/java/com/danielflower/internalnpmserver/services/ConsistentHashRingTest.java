@@ -0,0 +1,58 @@
+package com.danielflower.internalnpmserver.services;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThan;
+import static org.junit.Assert.assertThat;
+
+public class ConsistentHashRingTest {
+
+    private static final int KEYS = 10000;
+
+    private final ConsistentHashRing threeNodes = new ConsistentHashRing(Arrays.asList("http://a:9100", "http://b:9100", "http://c:9100"));
+
+    @Test
+    public void everyRingWithTheSameNodesAgreesOnTheOwners() {
+        ConsistentHashRing sameNodesInAnotherOrder = new ConsistentHashRing(Arrays.asList("http://c:9100", "http://a:9100", "http://b:9100"));
+        for (int i = 0; i < KEYS; i++) {
+            assertThat(sameNodesInAnotherOrder.ownerOf("/package-" + i), is(threeNodes.ownerOf("/package-" + i)));
+        }
+    }
+
+    @Test
+    public void keysAreSharedOutRoughlyEvenly() {
+        Map<String, Integer> counts = new HashMap<String, Integer>();
+        for (int i = 0; i < KEYS; i++) {
+            String owner = threeNodes.ownerOf("/package-" + i);
+            counts.put(owner, counts.containsKey(owner) ? counts.get(owner) + 1 : 1);
+        }
+        assertThat(counts.size(), is(3));
+        for (int count : counts.values()) {
+            assertThat(count, greaterThan(KEYS / 4));
+            assertThat(count, lessThan(KEYS / 2));
+        }
+    }
+
+    @Test
+    public void addingANodeOnlyMovesTheKeysItTakesOver() {
+        ConsistentHashRing fourNodes = new ConsistentHashRing(Arrays.asList("http://a:9100", "http://b:9100", "http://c:9100", "http://d:9100"));
+        int moved = 0;
+        for (int i = 0; i < KEYS; i++) {
+            String before = threeNodes.ownerOf("/package-" + i);
+            String after = fourNodes.ownerOf("/package-" + i);
+            if (!before.equals(after)) {
+                assertThat(after, is("http://d:9100"));
+                moved++;
+            }
+        }
+        // about a quarter, rather than the three quarters that would move if owners were chosen with hash % nodes
+        assertThat(moved, greaterThan(KEYS / 6));
+        assertThat(moved, lessThan(KEYS / 3));
+    }
+}
@@ -0,0 +1,45 @@
+package com.danielflower.internalnpmserver.services;
+
+import org.junit.Test;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.util.zip.GZIPOutputStream;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+public class GzipTest {
+
+    @Test
+    public void gzippedContentIsRecognisedFromItsFirstTwoBytes() throws Exception {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        GZIPOutputStream gzip = new GZIPOutputStream(compressed);
+        gzip.write("{}".getBytes("UTF-8"));
+        gzip.close();
+
+        assertThat(Gzip.isGzipped(compressed.toByteArray()), is(true));
+        assertThat(Gzip.isGzipped("{}".getBytes("UTF-8")), is(false));
+        assertThat(Gzip.isGzipped(new byte[0]), is(false));
+    }
+
+    @Test
+    public void checkingAStreamLeavesItWhereItWas() throws Exception {
+        InputStream in = new BufferedInputStream(new ByteArrayInputStream("{}".getBytes("UTF-8")));
+        assertThat(Gzip.isGzipped(in), is(false));
+        assertThat(in.read(), is((int) '{'));
+    }
+
+    @Test
+    public void acceptEncodingHeadersAreUnderstood() {
+        assertThat(Gzip.isAccepted("gzip"), is(true));
+        assertThat(Gzip.isAccepted("deflate, GZIP;q=0.5"), is(true));
+        assertThat(Gzip.isAccepted("*"), is(true));
+        assertThat(Gzip.isAccepted("gzip;q=0"), is(false));
+        assertThat(Gzip.isAccepted("deflate"), is(false));
+        assertThat(Gzip.isAccepted(""), is(false));
+        assertThat(Gzip.isAccepted(null), is(false));
+    }
+}
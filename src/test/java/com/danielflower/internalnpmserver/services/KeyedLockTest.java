@@ -0,0 +1,110 @@
+package com.danielflower.internalnpmserver.services;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+public class KeyedLockTest {
+
+    private final KeyedLock<String> locks = new KeyedLock<String>();
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+
+    @Test
+    public void locksAreForgottenAsSoonAsTheyAreUnlocked() {
+        locks.lock("a");
+        locks.lock("b");
+        assertThat(locks.size(), is(2));
+
+        locks.unlock("a");
+        locks.unlock("b");
+        assertThat(locks.size(), is(0));
+    }
+
+    @Test
+    public void locksAreReentrant() {
+        locks.lock("a");
+        locks.lock("a");
+        locks.unlock("a");
+        assertThat(locks.size(), is(1));
+        locks.unlock("a");
+        assertThat(locks.size(), is(0));
+    }
+
+    @Test
+    public void differentKeysDoNotWaitForEachOther() throws Exception {
+        locks.lock("a");
+        try {
+            assertThat(lockAndUnlockInAnotherThread("b").get(5, TimeUnit.SECONDS), is(true));
+            assertThat(locks.getContendedCount(), is(0L));
+        } finally {
+            locks.unlock("a");
+        }
+    }
+
+    @Test
+    public void theSameKeyWaitsForTheHolderAndTheWaitIsCounted() throws Exception {
+        locks.lock("a");
+        Future<Boolean> waiter;
+        try {
+            waiter = lockAndUnlockInAnotherThread("a");
+            Thread.sleep(50);
+            assertThat(waiter.isDone(), is(false));
+        } finally {
+            locks.unlock("a");
+        }
+        assertThat(waiter.get(5, TimeUnit.SECONDS), is(true));
+        assertThat(locks.getContendedCount(), is(1L));
+        assertThat(locks.getWaitNanos() > 0, is(true));
+        assertThat(locks.size(), is(0));
+    }
+
+    @Test(expected = IllegalMonitorStateException.class)
+    public void unlockingAKeyThatIsNotHeldIsAnError() {
+        locks.unlock("a");
+    }
+
+    @Test
+    public void manyThreadsUsingFewKeysAreMutuallyExcluded() throws Exception {
+        final int[] counts = new int[4];
+        List<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
+        for (int t = 0; t < 8; t++) {
+            tasks.add(Executors.callable(new Runnable() {
+                public void run() {
+                    for (int i = 0; i < 10000; i++) {
+                        int key = i % counts.length;
+                        locks.lock("key" + key);
+                        try {
+                            counts[key]++;
+                        } finally {
+                            locks.unlock("key" + key);
+                        }
+                    }
+                }
+            }));
+        }
+        for (Future<Object> result : executor.invokeAll(tasks)) {
+            result.get();
+        }
+        executor.shutdown();
+
+        for (int count : counts) {
+            assertThat(count, is(20000));
+        }
+        assertThat(locks.size(), is(0));
+    }
+
+    private Future<Boolean> lockAndUnlockInAnotherThread(final String key) {
+        return executor.submit(new Callable<Boolean>() {
+            public Boolean call() {
+                locks.lock(key);
+                locks.unlock(key);
+                return true;
+            }
+        });
+    }
+}
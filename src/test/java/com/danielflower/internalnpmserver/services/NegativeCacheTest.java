@@ -0,0 +1,60 @@
+package com.danielflower.internalnpmserver.services;
+
+import org.junit.Test;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+public class NegativeCacheTest {
+
+    private final NegativeCache cache = new NegativeCache(2, 1000);
+
+    @Test
+    public void pathsAreRememberedUntilTheyExpire() {
+        cache.notFound("/missing.json", 5000);
+
+        assertThat(cache.isNotFound("/missing.json", 5999), is(true));
+        assertThat(cache.isNotFound("/other.json", 5999), is(false));
+        assertThat(cache.isNotFound("/missing.json", 6000), is(false));
+        assertThat(cache.size(), is(0));
+    }
+
+    @Test
+    public void theOldestPathIsForgottenWhenTheCacheIsFull() {
+        cache.notFound("/a.json", 1000);
+        cache.notFound("/b.json", 1001);
+        cache.notFound("/a.json", 1002);
+        cache.notFound("/c.json", 1003);
+
+        assertThat(cache.size(), is(2));
+        assertThat(cache.isNotFound("/a.json", 1500), is(true));
+        assertThat(cache.isNotFound("/b.json", 1500), is(false));
+        assertThat(cache.isNotFound("/c.json", 1500), is(true));
+    }
+
+    @Test
+    public void expiredPathsAreRemovedBeforeTheOldestOnesWhenTheCacheIsFull() {
+        NegativeCache cache = new NegativeCache(20, 1000);
+        cache.notFound("/expired.json", 0);
+        for (int i = 1; i < 20; i++) {
+            cache.notFound("/" + i + ".json", 1000 + i);
+        }
+        cache.notFound("/new.json", 1500);
+
+        // a tenth of the cache is made free, so the next few paths can be added without trimming it again
+        assertThat(cache.size(), is(18));
+        assertThat(cache.isNotFound("/1.json", 1600), is(false));
+        assertThat(cache.isNotFound("/2.json", 1600), is(false));
+        assertThat(cache.isNotFound("/3.json", 1600), is(true));
+        assertThat(cache.isNotFound("/new.json", 1600), is(true));
+    }
+
+    @Test
+    public void nothingIsRememberedWhenTheTimeToLiveIsZero() {
+        NegativeCache off = new NegativeCache(100, 0);
+        off.notFound("/missing.json", 1000);
+
+        assertThat(off.isNotFound("/missing.json", 1000), is(false));
+        assertThat(off.size(), is(0));
+    }
+}
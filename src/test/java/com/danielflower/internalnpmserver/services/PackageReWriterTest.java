@@ -0,0 +1,54 @@
+package com.danielflower.internalnpmserver.services;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+
+public class PackageReWriterTest {
+
+    private final PackageReWriter rewriter = new PackageReWriter("http://registry.npmjs.org/", "http://localhost:9100/npm/");
+
+    @Test
+    public void nonJSONFilesAreWrittenUnmolested() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertThat(rewriter.rewrite(new File("target/not-a-json-file.zip"), out), is(sameInstance((OutputStream) out)));
+    }
+
+    @Test
+    public void jsonFilesHaveReferencesToExternalNPMServerReplaced() throws IOException {
+        File jsonFile = new File("src/test/resources/packageWithExternalRepos.json");
+        ByteArrayOutputStream written = new ByteArrayOutputStream();
+
+        OutputStream out = rewriter.rewrite(new File("target/colors.json"), written);
+        out.write(FileUtils.readFileToByteArray(jsonFile));
+        out.close();
+
+        String result = written.toString("UTF-8");
+        assertThat(result, not(containsString("registry.npmjs.org")));
+        assertThat(result, containsString("\"tarball\": \"http://localhost:9100/npm/colors/-/colors-0.3.0.tgz\""));
+        assertThat(result, containsString("\"tarball\": \"http://localhost:9100/npm/colors/-/colors-0.5.0.tgz\""));
+        assertThat(result.length(), is(lessThan(IOUtils.toString(jsonFile.toURI()).length())));
+    }
+
+    @Test
+    public void theURLsOfEveryRegistryAreReplaced() throws IOException {
+        PackageReWriter mirrors = new PackageReWriter(Arrays.asList("http://registry.npmjs.org/", "https://mirror.example.com/npm/"), "http://localhost:9100/npm/");
+        ByteArrayOutputStream written = new ByteArrayOutputStream();
+
+        OutputStream out = mirrors.rewrite(new File("target/colors.json"), written);
+        out.write("{\"a\":\"https://registry.npmjs.org/a.tgz\",\"b\":\"http://mirror.example.com/npm/b.tgz\"}".getBytes("UTF-8"));
+        out.close();
+
+        assertThat(written.toString("UTF-8"), is("{\"a\":\"http://localhost:9100/npm/a.tgz\",\"b\":\"http://localhost:9100/npm/b.tgz\"}"));
+    }
+
+}
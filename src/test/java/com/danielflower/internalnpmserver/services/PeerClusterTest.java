@@ -0,0 +1,70 @@
+package com.danielflower.internalnpmserver.services;
+
+import org.jmock.Expectations;
+import org.jmock.Mockery;
+import org.jmock.integration.junit4.JMock;
+import org.jmock.integration.junit4.JUnit4Mockery;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.net.URL;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+@RunWith(JMock.class)
+public class PeerClusterTest {
+
+    private final Mockery context = new JUnit4Mockery();
+    private final UpstreamClient registryClient = context.mock(UpstreamClient.class, "registryClient");
+    private final UpstreamClient peerClient = context.mock(UpstreamClient.class, "peerClient");
+    private final PeerCluster cluster = new PeerCluster(Arrays.asList("http://npm1.ourco.com:9100/", "http://npm2.ourco.com:9100"),
+            "http://npm1.ourco.com:9100", registryClient, peerClient);
+
+    @Test
+    public void thePackumentAndTarballsOfAPackageHaveTheSameOwner() {
+        assertThat(PeerCluster.packageOf("/commander"), is("/commander"));
+        assertThat(PeerCluster.packageOf("/commander/-/commander-0.6.1.tgz"), is("/commander"));
+        assertThat(PeerCluster.packageOf("/@OurCo%2FThing?write=true"), is("/@ourco/thing"));
+        assertThat(PeerCluster.packageOf("/@ourco/thing/-/thing-1.0.0.tgz"), is("/@ourco/thing"));
+    }
+
+    @Test
+    public void filesOwnedByThisServerHaveNoOwner() {
+        for (int i = 0; i < 100; i++) {
+            String owner = cluster.ownerOf("/package-" + i);
+            String ownerOfTarball = cluster.ownerOf("/package-" + i + "/-/package-" + i + "-1.0.0.tgz");
+            assertThat(ownerOfTarball, is(owner));
+            if (owner != null) {
+                assertThat(owner, is("http://npm2.ourco.com:9100"));
+            }
+        }
+        PeerCluster alone = new PeerCluster(Collections.singletonList("http://npm1.ourco.com:9100"), "http://npm1.ourco.com:9100", registryClient, peerClient);
+        assertThat(alone.ownerOf("/commander"), is(nullValue()));
+    }
+
+    @Test
+    public void requestsToOtherServersUseThePeerClientAndEverythingElseUsesTheRegistryClient() throws Exception {
+        final URL peerURL = new URL("http://npm2.ourco.com:9100/npm/commander");
+        final URL registryURL = new URL("http://registry.npmjs.org/commander");
+        final Map<String, String> headers = Collections.singletonMap("Accept-Encoding", "gzip");
+        final Map<String, String> peerHeaders = new HashMap<String, String>(headers);
+        peerHeaders.put(PeerCluster.PEER_HEADER, "http://npm1.ourco.com:9100");
+        context.checking(new Expectations() {{
+            oneOf(peerClient).get(peerURL, peerHeaders);
+            oneOf(registryClient).get(registryURL, headers);
+        }});
+        cluster.get(peerURL, headers);
+        cluster.get(registryURL, headers);
+    }
+
+    @Test
+    public void theEndPointsOfTheServersAreKnownSoTheirURLsCanBeRewritten() {
+        assertThat(cluster.getEndPoints("/npm"), is(Arrays.asList("http://npm1.ourco.com:9100/npm/", "http://npm2.ourco.com:9100/npm/")));
+    }
+}
@@ -59,4 +59,42 @@ public class ReDownloadOldJSONFilesPolicyTest {
 		assertThat(policy.shouldDownload(pathToJSON), is(false));
 	}
 
+	@Test
+	public void jsonFilesAreNeverRefreshedInTheBackgroundByDefault() {
+		context.checking(new Expectations() {{
+			allowing(staticHandler).canHandle(pathToJSON);will(returnValue(true));
+			allowing(staticHandler).dateCreated(pathToJSON);will(returnValue(hoursAgo(25)));
+		}});
+		assertThat(policy.shouldRefreshInBackground(pathToJSON), is(false));
+	}
+
+	@Test
+	public void inStaleWhileRevalidateModeOldJSONFilesAreRefreshedInTheBackgroundUntilTheyAreHardStale() {
+		ReDownloadOldJSONFilesPolicy swrPolicy = new ReDownloadOldJSONFilesPolicy(staticHandler, 48 * 60 * 60 * 1000);
+		final String freshPath = "/fresh.json", stalePath = "/stale.json", hardStalePath = "/hard-stale.json";
+		context.checking(new Expectations() {{
+			allowing(staticHandler).canHandle(with(any(String.class)));will(returnValue(true));
+			allowing(staticHandler).dateCreated(freshPath);will(returnValue(hoursAgo(23)));
+			allowing(staticHandler).dateCreated(stalePath);will(returnValue(hoursAgo(25)));
+			allowing(staticHandler).dateCreated(hardStalePath);will(returnValue(hoursAgo(49)));
+		}});
+		assertThat(swrPolicy.shouldDownload(freshPath), is(false));
+		assertThat(swrPolicy.shouldRefreshInBackground(freshPath), is(false));
+
+		assertThat(swrPolicy.shouldDownload(stalePath), is(false));
+		assertThat(swrPolicy.shouldRefreshInBackground(stalePath), is(true));
+
+		assertThat(swrPolicy.shouldDownload(hardStalePath), is(true));
+	}
+
+	@Test
+	public void nonJSONFilesAreNeverRefreshedInTheBackground() {
+		ReDownloadOldJSONFilesPolicy swrPolicy = new ReDownloadOldJSONFilesPolicy(staticHandler, 48 * 60 * 60 * 1000);
+		assertThat(swrPolicy.shouldRefreshInBackground(pathToNonJSON), is(false));
+	}
+
+	private static Date hoursAgo(int hours) {
+		return new Date(System.currentTimeMillis() - hours * 60L * 60L * 1000L);
+	}
+
 }
@@ -0,0 +1,160 @@
+package com.danielflower.internalnpmserver.services;
+
+import com.danielflower.internalnpmserver.metrics.Metrics;
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+public class RoutingUpstreamClientTest {
+
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+    private final Metrics metrics = new Metrics();
+    private final FakeRegistry primary = new FakeRegistry(200, 0);
+    private final FakeRegistry mirror = new FakeRegistry(200, 0);
+    private final FakeRegistry internal = new FakeRegistry(200, 0);
+
+    @After
+    public void stopExecutor() {
+        executor.shutdownNow();
+    }
+
+    private RoutingUpstreamClient client(int hedgePercentile) {
+        List<RoutingUpstreamClient.Upstream> mirrors = Arrays.asList(
+                new RoutingUpstreamClient.Upstream("http://registry.npmjs.org/", primary),
+                new RoutingUpstreamClient.Upstream("https://mirror.example.com/npm/", mirror));
+        Map<String, RoutingUpstreamClient.Upstream> scopes = Collections.singletonMap("@OurCo", new RoutingUpstreamClient.Upstream("http://npm.ourco.com", internal));
+        return new RoutingUpstreamClient("http://registry.npmjs.org/", mirrors, scopes, executor, hedgePercentile, 20, metrics);
+    }
+
+    @Test
+    public void scopedPackagesAreOnlyAskedForFromTheirOwnRegistry() throws Exception {
+        RoutingUpstreamClient client = client(95);
+        client.get(new URL("http://registry.npmjs.org/@ourco%2fthing"), headers()).close();
+        client.get(new URL("http://registry.npmjs.org/@ourco/thing/-/thing-1.0.0.tgz"), headers()).close();
+
+        assertThat(internal.urls, is(Arrays.asList("http://npm.ourco.com/@ourco%2fthing", "http://npm.ourco.com/@ourco/thing/-/thing-1.0.0.tgz")));
+        assertThat(primary.urls.isEmpty(), is(true));
+        assertThat(mirror.urls.isEmpty(), is(true));
+    }
+
+    @Test
+    public void theFirstMirrorIsUsedWhenItAnswersQuickly() throws Exception {
+        UpstreamResponse response = client(95).get(new URL("http://registry.npmjs.org/commander"), headers());
+
+        assertThat(response.getHeader("From"), is("http://registry.npmjs.org/commander"));
+        assertThat(mirror.urls.isEmpty(), is(true));
+    }
+
+    @Test
+    public void whenTheFirstMirrorIsSlowTheNextIsAskedTooAndTheFirstAnswerIsUsed() throws Exception {
+        primary.delayMillis = 1000;
+        UpstreamResponse response = client(95).get(new URL("http://registry.npmjs.org/commander"), headers());
+
+        assertThat(response.getHeader("From"), is("https://mirror.example.com/npm/commander"));
+        assertThat(metrics.counter("upstream_hedged_requests_total", "").get(), is(1L));
+        assertThat(metrics.counter("upstream_hedge_wins_total", "").get(), is(1L));
+
+        Thread.sleep(1200);
+        assertThat("the slow response is closed when it arrives", primary.closed.get(), is(1));
+    }
+
+    @Test
+    public void mirrorsThatFailAreSkippedWithoutWaiting() throws Exception {
+        primary.status = 503;
+        UpstreamResponse response = client(0).get(new URL("http://registry.npmjs.org/commander"), headers());
+
+        assertThat(response.getHeader("From"), is("https://mirror.example.com/npm/commander"));
+        assertThat(primary.closed.get(), is(1));
+        assertThat(metrics.counter("upstream_hedged_requests_total", "").get(), is(0L));
+    }
+
+    @Test(expected = IOException.class)
+    public void whenEveryMirrorFailsTheLastFailureIsThrown() throws Exception {
+        primary.status = 503;
+        mirror.status = -1;
+        client(95).get(new URL("http://registry.npmjs.org/commander"), headers());
+    }
+
+    @Test
+    public void theHostOfEachRequestIsTheRegistryItIsRoutedTo() throws Exception {
+        RoutingUpstreamClient client = client(95);
+        assertThat(client.hostFor(new URL("http://registry.npmjs.org/@OurCo%2fthing")), is("npm.ourco.com"));
+        assertThat(client.hostFor(new URL("http://registry.npmjs.org/@ourco/thing/-/thing-1.0.0.tgz")), is("npm.ourco.com"));
+        assertThat(client.hostFor(new URL("http://registry.npmjs.org/commander")), is("registry.npmjs.org"));
+        assertThat(client.hostFor(new URL("http://npm2.ourco.com:9100/npm/commander")), is("npm2.ourco.com:9100"));
+    }
+
+    @Test
+    public void scopesAreFoundInEncodedAndUnencodedPaths() {
+        assertThat(RoutingUpstreamClient.scopeOf("/@OurCo%2Fthing"), is("@ourco"));
+        assertThat(RoutingUpstreamClient.scopeOf("/@ourco/thing/-/thing-1.0.0.tgz"), is("@ourco"));
+        assertThat(RoutingUpstreamClient.scopeOf("/commander"), is(nullValue()));
+        assertThat(RoutingUpstreamClient.scopeOf("/@ourco"), is(nullValue()));
+    }
+
+    private static Map<String, String> headers() {
+        return Collections.emptyMap();
+    }
+
+    private static class FakeRegistry implements UpstreamClient {
+        volatile int status;
+        volatile long delayMillis;
+        final List<String> urls = Collections.synchronizedList(new ArrayList<String>());
+        final AtomicInteger closed = new AtomicInteger();
+
+        FakeRegistry(int status, long delayMillis) {
+            this.status = status;
+            this.delayMillis = delayMillis;
+        }
+
+        public UpstreamResponse get(final URL url, Map<String, String> requestHeaders) throws IOException {
+            urls.add(url.toString());
+            try {
+                Thread.sleep(delayMillis);
+            } catch (InterruptedException e) {
+                throw new IOException("Interrupted");
+            }
+            if (status == -1) {
+                throw new IOException("Simulated connection failure");
+            }
+            final int status = this.status;
+            return new UpstreamResponse() {
+                public int getStatus() {
+                    return status;
+                }
+
+                public String getHeader(String name) {
+                    return "From".equals(name) ? url.toString() : null;
+                }
+
+                public long getContentLength() {
+                    return 2;
+                }
+
+                public InputStream getBody() throws IOException {
+                    return new ByteArrayInputStream("{}".getBytes("UTF-8"));
+                }
+
+                public void close() {
+                    closed.incrementAndGet();
+                }
+            };
+        }
+    }
+}
@@ -0,0 +1,157 @@
+package com.danielflower.internalnpmserver.services;
+
+import com.danielflower.internalnpmserver.metrics.Metrics;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+public class SharedFolderFileDownloaderTest {
+
+    private static final long LEASE_MILLIS = 300;
+
+    private final File destination = new File("target/sharedfoldertest/" + UUID.randomUUID() + "/thing/-/thing-1.0.0.tgz");
+    private final URL source = url("http://registry.npmjs.org/thing/-/thing-1.0.0.tgz");
+    private final ScheduledExecutorService renewer = Executors.newSingleThreadScheduledExecutor();
+    private final ExecutorService threads = Executors.newCachedThreadPool();
+    private final SlowDownloader underlying = new SlowDownloader();
+    private final Metrics metrics = new Metrics();
+    private final SharedFolderFileDownloader first = new SharedFolderFileDownloader(underlying, "first", LEASE_MILLIS, 10, renewer, metrics);
+    private final SharedFolderFileDownloader second = new SharedFolderFileDownloader(underlying, "second", LEASE_MILLIS, 10, renewer, metrics);
+
+    @After
+    public void stop() {
+        renewer.shutdownNow();
+        threads.shutdownNow();
+    }
+
+    @Test
+    public void onlyOneServerDownloadsAFileAndTheOthersWaitForIt() throws Exception {
+        Future<Boolean> firstFetch = fetchInBackground(first);
+        underlying.started.await(10, TimeUnit.SECONDS);
+        Future<Boolean> secondFetch = fetchInBackground(second);
+
+        // the download takes longer than the lease, so this also checks the lease is renewed while it runs
+        Thread.sleep(LEASE_MILLIS * 2);
+        assertThat(secondFetch.isDone(), is(false));
+        underlying.release.countDown();
+
+        assertThat(firstFetch.get(10, TimeUnit.SECONDS), is(true));
+        assertThat(secondFetch.get(10, TimeUnit.SECONDS), is(true));
+        assertThat(underlying.calls.get(), is(1));
+        assertThat(FileUtils.readFileToString(destination), is("the tarball"));
+        assertThat(CacheFiles.lockFile(destination).exists(), is(false));
+        assertThat(metrics.counter("npm_shared_lock_contended_total", "", "outcome", "waited").get(), is(1L));
+        assertThat(metrics.counter("npm_shared_lock_expired_total", "").get(), is(0L));
+    }
+
+    @Test
+    public void theCachedCopyIsUsedWhileAnotherServerRefreshesIt() throws Exception {
+        FileUtils.writeStringToFile(destination, "the old tarball");
+        FileUtils.writeStringToFile(CacheFiles.lockFile(destination), "first");
+
+        assertThat(second.fetch(source, destination), is(false));
+        assertThat(underlying.calls.get(), is(0));
+        assertThat(metrics.counter("npm_shared_lock_contended_total", "", "outcome", "stale").get(), is(1L));
+    }
+
+    @Test
+    public void theLocksOfServersThatStoppedWhileDownloadingAreDeletedOnceTheirLeaseExpires() throws Exception {
+        File lockFile = CacheFiles.lockFile(destination);
+        File partialFile = CacheFiles.partialFile(destination);
+        FileUtils.writeStringToFile(lockFile, "first");
+        FileUtils.writeStringToFile(partialFile, "half a tarb");
+        lockFile.setLastModified(System.currentTimeMillis() - LEASE_MILLIS * 2);
+
+        try {
+            second.fetch(source, destination);
+            fail("Should have thrown");
+        } catch (IOException e) {
+            // readers of the partial file must not be sent half a file
+        }
+        assertThat(lockFile.exists(), is(false));
+        assertThat(partialFile.exists(), is(false));
+        assertThat(metrics.counter("npm_shared_lock_expired_total", "").get(), is(1L));
+
+        underlying.release.countDown();
+        assertThat(second.fetch(source, destination), is(true));
+        assertThat(FileUtils.readFileToString(destination), is("the tarball"));
+    }
+
+    @Test
+    public void serversThatWaitTooLongForAnotherServerDownloadTheFileToAFileOfTheirOwn() throws Exception {
+        final File lockFile = CacheFiles.lockFile(destination);
+        File partialFile = CacheFiles.partialFile(destination);
+        FileUtils.writeStringToFile(lockFile, "first");
+        FileUtils.writeStringToFile(partialFile, "half a tarb");
+        // the other server is still running, but its download has hung
+        renewer.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                lockFile.setLastModified(System.currentTimeMillis());
+            }
+        }, 0, LEASE_MILLIS / 3, TimeUnit.MILLISECONDS);
+        underlying.release.countDown();
+
+        long start = System.currentTimeMillis();
+        assertThat(second.fetch(source, destination), is(true));
+
+        assertThat(System.currentTimeMillis() - start >= LEASE_MILLIS * SharedFolderFileDownloader.MAX_WAIT_LEASES, is(true));
+        assertThat(FileUtils.readFileToString(destination), is("the tarball"));
+        assertThat(FileUtils.readFileToString(partialFile), is("half a tarb"));
+        assertThat(lockFile.exists(), is(true));
+        assertThat(destination.getParentFile().list().length, is(3));
+        assertThat(metrics.counter("npm_shared_lock_failovers_total", "").get(), is(1L));
+    }
+
+    private Future<Boolean> fetchInBackground(final SharedFolderFileDownloader downloader) {
+        return threads.submit(new Callable<Boolean>() {
+            public Boolean call() throws Exception {
+                return downloader.fetch(source, destination);
+            }
+        });
+    }
+
+    private static URL url(String url) {
+        try {
+            return new URL(url);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static class SlowDownloader implements FileDownloader {
+        final AtomicInteger calls = new AtomicInteger();
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+
+        public boolean fetch(URL source, File destination) throws IOException {
+            calls.incrementAndGet();
+            started.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                throw new IOException("Interrupted");
+            }
+            File partialFile = CacheFiles.partialFile(destination);
+            FileUtils.writeStringToFile(partialFile, "the tarball");
+            CacheFiles.publish(partialFile, destination);
+            return true;
+        }
+    }
+}
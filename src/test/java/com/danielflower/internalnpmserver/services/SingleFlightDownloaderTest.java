@@ -0,0 +1,231 @@
+package com.danielflower.internalnpmserver.services;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.Test;
+
+import java.io.*;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+public class SingleFlightDownloaderTest {
+
+    private final File destination = new File("target/singleflighttest/" + UUID.randomUUID() + "/thing-1.0.0.tgz");
+    private final List<Runnable> pending = new ArrayList<Runnable>();
+    private final Executor queueingExecutor = new Executor() {
+        public void execute(Runnable command) {
+            pending.add(command);
+        }
+    };
+    private final BlockingDownloader underlying = new BlockingDownloader();
+    private final SingleFlightDownloader downloads = new SingleFlightDownloader(underlying, queueingExecutor);
+
+    @Test
+    public void concurrentRequestsForTheSameFileShareOneDownload() throws Exception {
+        URL source = new URL("http://registry.npmjs.org/thing/-/thing-1.0.0.tgz");
+        InFlightDownload first = downloads.fetch(source, destination);
+        InFlightDownload second = downloads.fetch(source, destination);
+
+        assertThat(second, sameInstance(first));
+        assertThat(pending.size(), is(1));
+        assertThat(downloads.getInFlightCount(), is(1));
+
+        underlying.release();
+        pending.get(0).run();
+        first.awaitCompletion();
+        assertThat(underlying.calls.get(), is(1));
+        assertThat(downloads.getInFlightCount(), is(0));
+    }
+
+    @Test
+    public void listenersAreToldAboutFinishedDownloads() throws Exception {
+        final List<File> downloaded = new ArrayList<File>();
+        downloads.addListener(new DownloadListener() {
+            public void downloaded(File destination) {
+                downloaded.add(destination);
+            }
+        });
+        InFlightDownload download = downloads.fetch(new URL("http://registry.npmjs.org/thing/-/thing-1.0.0.tgz"), destination);
+        assertThat(downloaded.size(), is(0));
+
+        underlying.release();
+        pending.get(0).run();
+        download.awaitCompletion();
+        assertThat(downloaded.size(), is(1));
+        assertThat(downloaded.get(0), is(destination));
+    }
+
+    @Test
+    public void aNewDownloadCanStartOnceThePreviousOneHasFinished() throws Exception {
+        URL source = new URL("http://registry.npmjs.org/thing/-/thing-1.0.0.tgz");
+        InFlightDownload first = downloads.fetch(source, destination);
+        underlying.release();
+        pending.get(0).run();
+
+        InFlightDownload second = downloads.fetch(source, destination);
+        assertThat(second == first, is(false));
+        assertThat(pending.size(), is(2));
+    }
+
+    @Test
+    public void backgroundRefreshesAreNotStartedWhenTheFileIsAlreadyBeingDownloaded() throws Exception {
+        URL source = new URL("http://registry.npmjs.org/thing");
+        assertThat(downloads.refreshInBackground(source, destination), is(true));
+        assertThat(downloads.refreshInBackground(source, destination), is(false));
+        assertThat(pending.size(), is(1));
+    }
+
+    @Test
+    public void backgroundRefreshesThatTheExecutorRejectsAreSkipped() throws Exception {
+        SingleFlightDownloader busy = new SingleFlightDownloader(underlying, queueingExecutor, new Executor() {
+            public void execute(Runnable command) {
+                throw new RejectedExecutionException("Too busy");
+            }
+        });
+        URL source = new URL("http://registry.npmjs.org/thing");
+        assertThat(busy.refreshInBackground(source, destination), is(false));
+        assertThat(busy.getInFlightCount(), is(0));
+    }
+
+    @Test
+    public void readersReceiveBytesBeforeTheDownloadHasFinished() throws Exception {
+        URL source = new URL("http://registry.npmjs.org/thing/-/thing-1.0.0.tgz");
+        final InFlightDownload download = downloads.fetch(source, destination);
+        Thread downloadThread = new Thread(pending.get(0));
+        downloadThread.start();
+
+        InputStream in = download.openStream();
+        byte[] firstHalf = new byte[BlockingDownloader.FIRST_HALF.length()];
+        new DataInputStream(in).readFully(firstHalf);
+        assertThat(new String(firstHalf, "UTF-8"), is(BlockingDownloader.FIRST_HALF));
+        assertThat(download.isComplete(), is(false));
+
+        underlying.release();
+        assertThat(IOUtils.toString(in, "UTF-8"), is(BlockingDownloader.SECOND_HALF));
+        in.close();
+        downloadThread.join();
+    }
+
+    @Test
+    public void readersAreWokenAsSoonAsTheDownloaderSaysMoreBytesWereWritten() throws Exception {
+        final InFlightDownload download = new InFlightDownload(destination, 60000);
+        FileUtils.writeStringToFile(CacheFiles.partialFile(destination), BlockingDownloader.FIRST_HALF);
+        final InputStream in = download.openStream();
+        assertThat(in.read(new byte[100]), is(BlockingDownloader.FIRST_HALF.length()));
+
+        final long[] waitedMillis = new long[1];
+        Thread reader = new Thread(new Runnable() {
+            public void run() {
+                long start = System.currentTimeMillis();
+                try {
+                    in.read(new byte[100]);
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+                waitedMillis[0] = System.currentTimeMillis() - start;
+            }
+        });
+        reader.start();
+        Thread.sleep(50);
+        FileUtils.writeStringToFile(CacheFiles.partialFile(destination), BlockingDownloader.FIRST_HALF + BlockingDownloader.SECOND_HALF);
+        download.progressed();
+        reader.join(10000);
+
+        assertThat(reader.isAlive(), is(false));
+        assertThat("woken long before the poll interval", waitedMillis[0] < 5000, is(true));
+        in.close();
+    }
+
+    @Test
+    public void readersOfAnotherServersPartialFileAreNotSentPartOfTheFileIfItIsDownloadedByThisOne() throws Exception {
+        InFlightDownload download = new InFlightDownload(destination, 10, true);
+        FileUtils.writeStringToFile(CacheFiles.partialFile(destination), BlockingDownloader.FIRST_HALF);
+        InputStream in = download.openStream();
+
+        FileUtils.writeStringToFile(destination, BlockingDownloader.FIRST_HALF + BlockingDownloader.SECOND_HALF);
+        download.finish(null);
+        try {
+            IOUtils.toString(in, "UTF-8");
+            fail("Should have thrown");
+        } catch (IOException e) {
+            // the other server had only written the first half
+        } finally {
+            in.close();
+        }
+    }
+
+    @Test
+    public void failuresAreReportedToEveryoneWaiting() throws Exception {
+        URL source = new URL("http://registry.npmjs.org/thing/-/thing-1.0.0.tgz");
+        InFlightDownload download = downloads.fetch(source, destination);
+        underlying.failWith(new IOException("Simulated upstream failure"));
+        pending.get(0).run();
+
+        try {
+            download.awaitCompletion();
+            fail("Should have thrown");
+        } catch (IOException e) {
+            assertThat(e.getMessage(), is("Simulated upstream failure"));
+        }
+        try {
+            download.openStream();
+            fail("Should have thrown");
+        } catch (IOException e) {
+            assertThat(e.getMessage(), is("Simulated upstream failure"));
+        }
+    }
+
+    private static class BlockingDownloader implements FileDownloader {
+        static final String FIRST_HALF = "The first half, ";
+        static final String SECOND_HALF = "and the second half.";
+
+        final AtomicInteger calls = new AtomicInteger();
+        private final CountDownLatch released = new CountDownLatch(1);
+        private IOException failure;
+
+        void release() {
+            released.countDown();
+        }
+
+        void failWith(IOException failure) {
+            this.failure = failure;
+        }
+
+        @Override
+        public boolean fetch(URL source, File destination) throws IOException {
+            calls.incrementAndGet();
+            if (failure != null) {
+                throw failure;
+            }
+            FileUtils.forceMkdir(destination.getParentFile());
+            File partialFile = CacheFiles.partialFile(destination);
+            OutputStream out = new FileOutputStream(partialFile);
+            try {
+                out.write(FIRST_HALF.getBytes("UTF-8"));
+                out.flush();
+                if (!released.await(10, TimeUnit.SECONDS)) {
+                    throw new IOException("Test never released the download");
+                }
+                out.write(SECOND_HALF.getBytes("UTF-8"));
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException();
+            } finally {
+                out.close();
+            }
+            CacheFiles.publish(partialFile, destination);
+            return true;
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package com.danielflower.internalnpmserver.services;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+public class StreamingReplacerTest {
+
+    private final StreamingReplacer replacer = new StreamingReplacer(replacements(
+            "http://registry.npmjs.org", "http://localhost:9100/npm",
+            "https://registry.npmjs.org", "http://localhost:9100/npm"));
+
+    @Test
+    public void textWithoutAnyPatternsIsUnchanged() throws IOException {
+        assertThat(replaceWhole(replacer, "{\"name\": \"colors\", \"url\": \"http://github.com/x\"}"),
+                is("{\"name\": \"colors\", \"url\": \"http://github.com/x\"}"));
+    }
+
+    @Test
+    public void everyOccurrenceOfEachPatternIsReplaced() throws IOException {
+        assertThat(replaceWhole(replacer, "a http://registry.npmjs.org/x b https://registry.npmjs.org/y c http://registry.npmjs.org/z"),
+                is("a http://localhost:9100/npm/x b http://localhost:9100/npm/y c http://localhost:9100/npm/z"));
+    }
+
+    @Test
+    public void matchesThatAreSplitAcrossWritesAreReplaced() throws IOException {
+        String input = "{\"tarball\": \"https://registry.npmjs.org/colors/-/colors-0.3.0.tgz\"}";
+        for (int chunkSize = 1; chunkSize <= input.length(); chunkSize++) {
+            assertThat("chunk size " + chunkSize, replaceInChunks(replacer, input, chunkSize),
+                    is("{\"tarball\": \"http://localhost:9100/npm/colors/-/colors-0.3.0.tgz\"}"));
+        }
+    }
+
+    @Test
+    public void falseStartsAreWrittenOutUnchanged() throws IOException {
+        assertThat(replaceInChunks(replacer, "httphttp://registry.npmjs.orhttps://registry.npmjs.org", 1),
+                is("httphttp://registry.npmjs.orhttp://localhost:9100/npm"));
+    }
+
+    @Test
+    public void partialMatchesAtTheEndAreWrittenOnClose() throws IOException {
+        assertThat(replaceWhole(replacer, "the end is http://registry.npm"), is("the end is http://registry.npm"));
+    }
+
+    @Test
+    public void whenPatternsOverlapTheOneThatEndsFirstIsReplaced() throws IOException {
+        StreamingReplacer overlapping = new StreamingReplacer(replacements("abcd", "1", "bc", "2", "cd", "3"));
+        assertThat(replaceInChunks(overlapping, "xabcdx abx bcx cdx", 1), is("xa2dx abx 2x 3x"));
+    }
+
+    @Test
+    public void multiByteCharactersAreMatched() throws IOException {
+        StreamingReplacer unicode = new StreamingReplacer(replacements("café", "tea"));
+        assertThat(replaceInChunks(unicode, "un café s'il vous plaît", 1), is("un tea s'il vous plaît"));
+    }
+
+    private static String replaceWhole(StreamingReplacer replacer, String input) throws IOException {
+        return replaceInChunks(replacer, input, Integer.MAX_VALUE);
+    }
+
+    private static String replaceInChunks(StreamingReplacer replacer, String input, int chunkSize) throws IOException {
+        byte[] bytes = input.getBytes("UTF-8");
+        ByteArrayOutputStream result = new ByteArrayOutputStream();
+        OutputStream out = replacer.wrap(result);
+        for (int i = 0; i < bytes.length; i += chunkSize) {
+            out.write(bytes, i, Math.min(chunkSize, bytes.length - i));
+        }
+        out.close();
+        return result.toString("UTF-8");
+    }
+
+    private static Map<String, String> replacements(String... findAndReplace) {
+        Map<String, String> replacements = new LinkedHashMap<String, String>();
+        for (int i = 0; i < findAndReplace.length; i += 2) {
+            replacements.put(findAndReplace[i], findAndReplace[i + 1]);
+        }
+        return replacements;
+    }
+}
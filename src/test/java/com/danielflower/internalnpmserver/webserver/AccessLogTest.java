@@ -0,0 +1,77 @@
+package com.danielflower.internalnpmserver.webserver;
+
+import org.junit.Test;
+
+import java.io.StringWriter;
+import java.net.InetSocketAddress;
+import java.util.concurrent.*;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+public class AccessLogTest {
+
+    private static final InetSocketAddress CLIENT = new InetSocketAddress("127.0.0.1", 50000);
+
+    private final StringWriter out = new StringWriter();
+
+    @Test
+    public void eachRequestIsWrittenAsALineOfJson() throws Exception {
+        AccessLog accessLog = new AccessLog(out, 16, false);
+        accessLog.start();
+        accessLog.record(0, "GET", "/npm/commander", CLIENT, 200, "1234", "hit", 1500);
+        accessLog.record(1000, "GET", "/npm/\"quoted\"", null, 404, null, null, 20);
+        accessLog.close();
+
+        assertThat(out.toString(), is(
+                "{\"time\":\"1970-01-01T00:00:00.000Z\",\"client\":\"127.0.0.1\",\"method\":\"GET\",\"target\":\"/npm/commander\",\"status\":200,\"bytes\":1234,\"cache\":\"hit\",\"duration_ns\":1500}\n"
+                        + "{\"time\":\"1970-01-01T00:00:01.000Z\",\"method\":\"GET\",\"target\":\"/npm/\\\"quoted\\\"\",\"status\":404,\"duration_ns\":20}\n"));
+    }
+
+    @Test
+    public void entriesAreDroppedWhenTheBufferIsFull() throws Exception {
+        AccessLog accessLog = new AccessLog(out, 2, false);
+        assertThat(record(accessLog), is(true));
+        assertThat(record(accessLog), is(true));
+        assertThat(record(accessLog), is(false));
+        assertThat(accessLog.getDroppedCount(), is(1L));
+
+        accessLog.start();
+        accessLog.close();
+        assertThat(out.toString().split("\n").length, is(2));
+    }
+
+    @Test
+    public void requestsWaitForSpaceWhenTheBufferIsFullIfBlockingIsOn() throws Exception {
+        final AccessLog accessLog = new AccessLog(out, 2, true);
+        record(accessLog);
+        record(accessLog);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        Future<Boolean> third = executor.submit(new Callable<Boolean>() {
+            public Boolean call() {
+                return record(accessLog);
+            }
+        });
+        Thread.sleep(50);
+        assertThat(third.isDone(), is(false));
+
+        accessLog.start();
+        assertThat(third.get(5, TimeUnit.SECONDS), is(true));
+        accessLog.close();
+        executor.shutdown();
+        assertThat(out.toString().split("\n").length, is(3));
+        assertThat(accessLog.getDroppedCount(), is(0L));
+    }
+
+    @Test
+    public void entriesRecordedAfterClosingAreDropped() throws Exception {
+        AccessLog accessLog = new AccessLog(out, 2, true);
+        accessLog.start();
+        accessLog.close();
+        assertThat(record(accessLog), is(false));
+    }
+
+    private static boolean record(AccessLog accessLog) {
+        return accessLog.record(0, "GET", "/", CLIENT, 200, "0", null, 1);
+    }
+}
@@ -12,6 +12,10 @@ import org.simpleframework.http.Response;
 import org.simpleframework.http.core.Container;
 
 import java.io.IOException;
+import java.io.StringWriter;
+
+import static org.hamcrest.Matchers.containsString;
+import static org.junit.Assert.assertThat;
 
 @RunWith(JMock.class)
 public class LoggingWebContainerTest {
@@ -35,4 +39,24 @@ public class LoggingWebContainerTest {
         }});
         loggingWebContainer.handle(request, response);
     }
+
+    @Test
+    public void requestsAreWrittenToTheAccessLogIfThereIsOne() throws Exception {
+        StringWriter out = new StringWriter();
+        AccessLog accessLog = new AccessLog(out, 16, false);
+        accessLog.start();
+        context.checking(new Expectations() {{
+            oneOf(underlying).handle(request, response);
+            allowing(request).getMethod(); will(returnValue("GET"));
+            allowing(request).getClientAddress(); will(returnValue(null));
+            allowing(response).getCode(); will(returnValue(200));
+            allowing(response).getValue("Content-Length"); will(returnValue("42"));
+            allowing(response).getValue("X-Cache"); will(returnValue("stale"));
+        }});
+
+        new LoggingWebContainer(underlying, accessLog).handle(request, response);
+        accessLog.close();
+
+        assertThat(out.toString(), containsString("\"target\":\"/some/requested/path\",\"status\":200,\"bytes\":42,\"cache\":\"stale\""));
+    }
 }
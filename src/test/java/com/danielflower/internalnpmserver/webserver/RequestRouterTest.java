@@ -1,5 +1,6 @@
 package com.danielflower.internalnpmserver.webserver;
 
+import com.danielflower.internalnpmserver.metrics.Metrics;
 import org.jmock.Expectations;
 import org.jmock.Mockery;
 import org.jmock.integration.junit4.JMock;
@@ -11,6 +12,9 @@ import org.simpleframework.http.Path;
 import org.simpleframework.http.Request;
 import org.simpleframework.http.Response;
 
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
 @RunWith(JMock.class)
 public class RequestRouterTest {
 
@@ -31,6 +35,8 @@ public class RequestRouterTest {
             will(returnValue(requestedPath));
             allowing(request).getTarget();
             will(returnValue(requestedPath));
+            allowing(response).getCode();
+            will(returnValue(200));
         }});
     }
 
@@ -85,4 +91,20 @@ public class RequestRouterTest {
         RequestRouter container = new RequestRouter(new RequestHandler[]{supported});
         container.handle(request, response);
     }
+
+    @Test
+    public void theTimeTakenAndTheResponseCodeAreRecordedForTheRouteThatHandledTheRequest() throws Exception {
+        context.checking(new Expectations() {{
+            allowing(supported).canHandle(requestedPath); will(returnValue(true));
+            oneOf(supported).handle(request, response);
+        }});
+        Metrics metrics = new Metrics();
+
+        RequestRouter container = new RequestRouter(new RequestHandler[]{supported}, metrics);
+        container.handle(request, response);
+
+        String route = supported.getClass().getSimpleName();
+        assertThat(metrics.histogram("http_request_duration_seconds", "", "route", route).getCount(), is(1L));
+        assertThat(metrics.counter("http_responses_total", "", "route", route, "code", "200").get(), is(1L));
+    }
 }
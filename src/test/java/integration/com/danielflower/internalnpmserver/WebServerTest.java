@@ -9,6 +9,7 @@ import java.io.IOException;
 import java.net.ConnectException;
 import java.net.HttpURLConnection;
 import java.net.URL;
+import java.util.Properties;
 
 import static org.hamcrest.Matchers.is;
 import static org.junit.Assert.assertThat;
@@ -20,7 +21,11 @@ public class WebServerTest {
 
     @Test
     public void serverCanBeStartedAndStoppedMultipleTimes() throws Exception {
-        Config config = new Config(port, new File("target/npmcache"), "http://registry.npmjs.org/", "localhost", null, false);
+        File accessLog = File.createTempFile("access", ".log", new File("target"));
+        accessLog.deleteOnExit();
+        Properties settings = new Properties();
+        settings.setProperty("accessLogFile", accessLog.getPath());
+        Config config = new Config(port, new File("target/npmcache"), "http://registry.npmjs.org/", "localhost", null, false, settings);
         WebServer app = WebServer.createWebServer(config);
 
         assertRequestsCannotBeMade();
@@ -0,0 +1,72 @@
+package integration.com.danielflower.internalnpmserver.load;
+
+import com.danielflower.internalnpmserver.Config;
+import com.danielflower.internalnpmserver.webserver.WebServer;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.net.Proxy;
+import java.util.Properties;
+import java.util.UUID;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+public class ClusterHarnessTest {
+
+    private final File cacheFolder = new File("target/clusterharnesstest/" + UUID.randomUUID());
+    private final StubRegistry registry = new StubRegistry(50, 0, 0, 16 * 1024);
+    private WebServer first;
+    private WebServer second;
+    private LoadHarness firstHarness;
+    private LoadHarness secondHarness;
+
+    @Before
+    public void start() throws Exception {
+        registry.start();
+        int firstPort = LoadHarness.freePort();
+        int secondPort = LoadHarness.freePort();
+        String nodes = "http://localhost:" + firstPort + ",http://localhost:" + secondPort;
+        first = startServer(firstPort, nodes);
+        second = startServer(secondPort, nodes);
+        firstHarness = new LoadHarness(registry, firstPort, 20, 4, 4);
+        secondHarness = new LoadHarness(registry, secondPort, 20, 4, 4);
+    }
+
+    private WebServer startServer(int port, String nodes) throws Exception {
+        Properties settings = new Properties();
+        settings.setProperty("clusterNodes", nodes);
+        WebServer server = WebServer.createWebServer(new Config(port, new File(cacheFolder, String.valueOf(port)), registry.getURL(), "localhost", Proxy.NO_PROXY, false, settings));
+        server.start();
+        return server;
+    }
+
+    @After
+    public void stop() throws Exception {
+        first.stop();
+        second.stop();
+        registry.stop();
+        FileUtils.deleteDirectory(cacheFolder);
+    }
+
+    @Test
+    public void eachFileIsOnlyDownloadedFromTheRegistryByTheServerThatOwnsIt() throws Exception {
+        LoadHarness.Report fromFirst = firstHarness.run("first");
+        assertThat(fromFirst.failures, is(0));
+        assertThat(fromFirst.upstreamPackuments, is(20));
+        assertThat(fromFirst.upstreamTarballs, is(20));
+        assertThat(fromFirst.mostUpstreamRequestsForOneFile, is(1));
+
+        // the second server owns some of the packages and has them already, and gets the rest from the first
+        LoadHarness.Report fromSecond = secondHarness.run("second");
+        assertThat(fromSecond.failures, is(0));
+        assertThat(fromSecond.upstreamPackuments, is(0));
+        assertThat(fromSecond.upstreamTarballs, is(0));
+
+        // the header is only for requests between the servers
+        assertThat(registry.getPeerRequests(), is(0));
+    }
+}
@@ -0,0 +1,252 @@
+package integration.com.danielflower.internalnpmserver.load;
+
+import com.danielflower.internalnpmserver.Config;
+import com.danielflower.internalnpmserver.controllers.NpmHandler;
+import com.danielflower.internalnpmserver.webserver.WebServer;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.output.NullOutputStream;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.Proxy;
+import java.net.ServerSocket;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs many <code>npm install</code>s at once against a server whose registry is a {@link StubRegistry}.
+ * Every install wants the same packages, as builds of one project would, and asks for the abbreviated packument
+ * and then the tarball of each package in its own random order, several at a time like npm does. The installs
+ * are run twice: first with an empty cache, then with everything cached.
+ * <p>
+ * Run it with, for example:
+ * <pre>
+ * mvn test-compile exec:java -Dexec.classpathScope=test
+ *   -Dexec.mainClass=integration.com.danielflower.internalnpmserver.load.LoadHarness
+ *   -Dexec.args="installs=50 latencyMillis=200 bandwidthKBps=1024 hotCacheMegabytes=0"
+ * </pre>
+ * Settings that the harness does not know about are passed to the server, as if they were in its config file.
+ */
+public class LoadHarness {
+
+    private final StubRegistry registry;
+    private final int port;
+    private final int packages;
+    private final int installs;
+    private final int socketsPerInstall;
+
+    /**
+     * @param port              The port the server under test is listening on
+     * @param packages          How many packages each install wants
+     * @param installs          How many installs run at once
+     * @param socketsPerInstall How many requests each install makes at once
+     */
+    public LoadHarness(StubRegistry registry, int port, int packages, int installs, int socketsPerInstall) {
+        this.registry = registry;
+        this.port = port;
+        this.packages = packages;
+        this.installs = installs;
+        this.socketsPerInstall = socketsPerInstall;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Properties settings = new Properties();
+        for (String arg : args) {
+            int equals = arg.indexOf('=');
+            settings.setProperty(arg.substring(0, equals), arg.substring(equals + 1));
+        }
+        int packages = intArg(settings, "packages", 500);
+        int installs = intArg(settings, "installs", 20);
+        int sockets = intArg(settings, "sockets", 16);
+        StubRegistry registry = new StubRegistry(intArg(settings, "latencyMillis", 100),
+                intArg(settings, "bandwidthKBps", 0) * 1024L, Double.parseDouble(settings.getProperty("errorRate", "0")),
+                intArg(settings, "tarballKB", 32) * 1024);
+
+        File cacheFolder = new File("target/loadharness/" + UUID.randomUUID());
+        registry.start();
+        try {
+            int port = freePort();
+            WebServer server = WebServer.createWebServer(new Config(port, cacheFolder, registry.getURL(), "localhost", Proxy.NO_PROXY, false, settings));
+            server.start();
+            try {
+                LoadHarness harness = new LoadHarness(registry, port, packages, installs, sockets);
+                System.out.println(Report.HEADINGS);
+                System.out.println(harness.run("cold"));
+                System.out.println(harness.run("warm"));
+            } finally {
+                server.stop();
+            }
+        } finally {
+            registry.stop();
+            FileUtils.deleteDirectory(cacheFolder);
+        }
+    }
+
+    private static int intArg(Properties settings, String name, int defaultValue) {
+        String value = (String) settings.remove(name);
+        return value == null ? defaultValue : Integer.parseInt(value.trim());
+    }
+
+    public static int freePort() throws IOException {
+        ServerSocket socket = new ServerSocket(0);
+        try {
+            return socket.getLocalPort();
+        } finally {
+            socket.close();
+        }
+    }
+
+    /**
+     * Runs all the installs at once, and returns once they have all finished.
+     */
+    public Report run(String phase) throws InterruptedException {
+        final long[] latencies = new long[packages * installs * 2];
+        final AtomicInteger completed = new AtomicInteger();
+        final AtomicInteger failures = new AtomicInteger();
+        final AtomicLong bytes = new AtomicLong();
+        int packumentsBefore = registry.getPackumentRequests();
+        int tarballsBefore = registry.getTarballRequests();
+        int errorsBefore = registry.getErrors();
+
+        ExecutorService executor = Executors.newFixedThreadPool(installs * socketsPerInstall);
+        final CountDownLatch start = new CountDownLatch(1);
+        for (int i = 0; i < installs; i++) {
+            final List<String> lockfile = lockfile(new Random(i));
+            final AtomicInteger next = new AtomicInteger();
+            for (int j = 0; j < socketsPerInstall; j++) {
+                executor.execute(new Runnable() {
+                    public void run() {
+                        try {
+                            start.await();
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                        int index;
+                        while ((index = next.getAndIncrement()) < lockfile.size()) {
+                            String name = lockfile.get(index);
+                            fetch("/" + name, NpmHandler.ABBREVIATED_METADATA, latencies, completed, failures, bytes);
+                            fetch("/" + name + "/-/" + name + "-1.0.0.tgz", "*/*", latencies, completed, failures, bytes);
+                        }
+                    }
+                });
+            }
+        }
+
+        long startNanos = System.nanoTime();
+        start.countDown();
+        executor.shutdown();
+        executor.awaitTermination(1, TimeUnit.DAYS);
+        long elapsedNanos = System.nanoTime() - startNanos;
+
+        long[] sorted = Arrays.copyOf(latencies, completed.get());
+        Arrays.sort(sorted);
+        return new Report(phase, sorted, failures.get(), bytes.get(), elapsedNanos,
+                registry.getPackumentRequests() - packumentsBefore, registry.getTarballRequests() - tarballsBefore,
+                registry.getErrors() - errorsBefore, registry.getMostRequestsForOneFile());
+    }
+
+    private List<String> lockfile(Random random) {
+        List<String> names = new ArrayList<String>(packages);
+        for (int i = 0; i < packages; i++) {
+            names.add("package-" + i);
+        }
+        Collections.shuffle(names, random);
+        return names;
+    }
+
+    private void fetch(String path, String accept, long[] latencies, AtomicInteger completed, AtomicInteger failures, AtomicLong bytes) {
+        long start = System.nanoTime();
+        try {
+            HttpURLConnection connection = (HttpURLConnection) new URL("http://127.0.0.1:" + port + NpmHandler.PREFIX + path).openConnection();
+            connection.setRequestProperty("Accept", accept);
+            connection.setRequestProperty("Accept-Encoding", "gzip");
+            connection.setReadTimeout(60000);
+            int code = connection.getResponseCode();
+            InputStream in = code < 400 ? connection.getInputStream() : connection.getErrorStream();
+            if (in != null) {
+                try {
+                    bytes.addAndGet(IOUtils.copyLarge(in, new NullOutputStream()));
+                } finally {
+                    in.close();
+                }
+            }
+            if (code != 200) {
+                failures.incrementAndGet();
+            }
+        } catch (IOException e) {
+            failures.incrementAndGet();
+        }
+        latencies[completed.getAndIncrement()] = System.nanoTime() - start;
+    }
+
+    public static class Report {
+        static final String HEADINGS = String.format("%-6s %9s %8s %9s %8s %8s %8s %8s %8s %9s %9s %9s %9s",
+                "phase", "requests", "failures", "req/s", "MB/s", "p50 ms", "p99 ms", "p999 ms", "max ms",
+                "up json", "up tgz", "up errors", "up dupes");
+        public final String phase;
+        public final int requests;
+        public final int failures;
+        public final long bytes;
+        public final long elapsedNanos;
+        public final int upstreamPackuments;
+        public final int upstreamTarballs;
+        public final int upstreamErrors;
+        /**
+         * Since the registry started. More than one means a file was downloaded again, or by two requests at once.
+         */
+        public final int mostUpstreamRequestsForOneFile;
+        private final long[] sortedLatencies;
+
+        Report(String phase, long[] sortedLatencies, int failures, long bytes, long elapsedNanos, int upstreamPackuments,
+               int upstreamTarballs, int upstreamErrors, int mostUpstreamRequestsForOneFile) {
+            this.phase = phase;
+            this.sortedLatencies = sortedLatencies;
+            this.requests = sortedLatencies.length;
+            this.failures = failures;
+            this.bytes = bytes;
+            this.elapsedNanos = elapsedNanos;
+            this.upstreamPackuments = upstreamPackuments;
+            this.upstreamTarballs = upstreamTarballs;
+            this.upstreamErrors = upstreamErrors;
+            this.mostUpstreamRequestsForOneFile = mostUpstreamRequestsForOneFile;
+        }
+
+        /**
+         * @param fraction For example 0.99 for the 99th percentile
+         */
+        public long percentileNanos(double fraction) {
+            if (requests == 0) {
+                return 0;
+            }
+            int index = (int) Math.ceil(fraction * requests) - 1;
+            return sortedLatencies[Math.max(0, Math.min(requests - 1, index))];
+        }
+
+        public double requestsPerSecond() {
+            return requests * 1e9 / elapsedNanos;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%-6s %9d %8d %9.0f %8.1f %8.1f %8.1f %8.1f %8.1f %9d %9d %9d %9d",
+                    phase, requests, failures, requestsPerSecond(), bytes * 1e9 / elapsedNanos / (1024 * 1024),
+                    percentileNanos(0.5) / 1e6, percentileNanos(0.99) / 1e6, percentileNanos(0.999) / 1e6,
+                    percentileNanos(1) / 1e6, upstreamPackuments, upstreamTarballs, upstreamErrors, Math.max(0, mostUpstreamRequestsForOneFile - 1));
+        }
+    }
+}
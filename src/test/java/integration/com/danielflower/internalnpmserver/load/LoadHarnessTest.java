@@ -0,0 +1,88 @@
+package integration.com.danielflower.internalnpmserver.load;
+
+import com.danielflower.internalnpmserver.Config;
+import com.danielflower.internalnpmserver.controllers.PrefetchHandler;
+import com.danielflower.internalnpmserver.webserver.WebServer;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.Proxy;
+import java.net.URL;
+import java.util.Properties;
+import java.util.UUID;
+
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+public class LoadHarnessTest {
+
+    private final File cacheFolder = new File("target/loadharnesstest/" + UUID.randomUUID());
+    private final StubRegistry registry = new StubRegistry(50, 0, 0, 16 * 1024);
+    private WebServer server;
+    private LoadHarness harness;
+    private int port;
+
+    @Before
+    public void start() throws Exception {
+        registry.start();
+        port = LoadHarness.freePort();
+        Properties settings = new Properties();
+        server = WebServer.createWebServer(new Config(port, cacheFolder, registry.getURL(), "localhost", Proxy.NO_PROXY, false, settings));
+        server.start();
+        harness = new LoadHarness(registry, port, 20, 8, 4);
+    }
+
+    @After
+    public void stop() throws Exception {
+        server.stop();
+        registry.stop();
+        FileUtils.deleteDirectory(cacheFolder);
+    }
+
+    @Test
+    public void installsThatStartTogetherDownloadEachFileOnceAndLaterInstallsUseTheCache() throws Exception {
+        LoadHarness.Report cold = harness.run("cold");
+        assertThat(cold.requests, is(320));
+        assertThat(cold.failures, is(0));
+        assertThat(cold.upstreamPackuments, is(20));
+        assertThat(cold.upstreamTarballs, is(20));
+        assertThat(cold.mostUpstreamRequestsForOneFile, is(1));
+
+        LoadHarness.Report warm = harness.run("warm");
+        assertThat(warm.failures, is(0));
+        assertThat(warm.upstreamPackuments, is(0));
+        assertThat(warm.upstreamTarballs, is(0));
+    }
+
+    @Test
+    public void installsOfAPrefetchedLockfileAreServedFromTheCache() throws Exception {
+        StringBuilder lockfile = new StringBuilder("{\"lockfileVersion\": 3, \"packages\": {");
+        for (int i = 0; i < 20; i++) {
+            lockfile.append(i == 0 ? "" : ",").append("\"node_modules/package-").append(i).append("\": {\"resolved\": \"")
+                    .append(registry.getURL()).append("package-").append(i).append("/-/package-").append(i).append("-1.0.0.tgz\"}");
+        }
+        lockfile.append("}}");
+
+        HttpURLConnection connection = (HttpURLConnection) new URL("http://127.0.0.1:" + port + PrefetchHandler.PATH).openConnection();
+        connection.setDoOutput(true);
+        OutputStream out = connection.getOutputStream();
+        out.write(lockfile.toString().getBytes("UTF-8"));
+        out.close();
+        assertThat(connection.getResponseCode(), is(200));
+        String report = IOUtils.toString(connection.getInputStream(), "UTF-8");
+        assertThat(report, containsString("40 fetched, 0 already cached, 0 failed"));
+        assertThat(registry.getMostRequestsForOneFile(), is(1));
+
+        LoadHarness.Report install = harness.run("prefetched");
+        assertThat(install.failures, is(0));
+        assertThat(install.upstreamPackuments, is(0));
+        assertThat(install.upstreamTarballs, is(0));
+    }
+}
@@ -0,0 +1,178 @@
+package integration.com.danielflower.internalnpmserver.load;
+
+import com.danielflower.internalnpmserver.services.PeerCluster;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An NPM registry that runs in the same process and makes up its packages. Every package it is asked for
+ * exists, with one version whose tarball is random bytes. Responses can be made slow, throttled, or to fail
+ * with a 503, and the requests it receives are counted so that tests can see how many reached it.
+ */
+public class StubRegistry {
+    private static final int CHUNK_BYTES = 8192;
+
+    private final long latencyMillis;
+    private final long bytesPerSecond;
+    private final double errorRate;
+    private final int tarballBytes;
+    private final Random random = new Random(1);
+    private final AtomicInteger packumentRequests = new AtomicInteger();
+    private final AtomicInteger tarballRequests = new AtomicInteger();
+    private final AtomicInteger errors = new AtomicInteger();
+    private final AtomicInteger peerRequests = new AtomicInteger();
+    private final ConcurrentMap<String, AtomicInteger> requestsByPath = new ConcurrentHashMap<String, AtomicInteger>();
+    private HttpServer server;
+    private ExecutorService executor;
+
+    /**
+     * @param latencyMillis  How long to wait before sending the response headers
+     * @param bytesPerSecond How fast response bodies are sent, or 0 to send them as fast as possible
+     * @param errorRate      The fraction of requests, from 0 to 1, that are answered with a 503
+     * @param tarballBytes   The size of every tarball
+     */
+    public StubRegistry(long latencyMillis, long bytesPerSecond, double errorRate, int tarballBytes) {
+        this.latencyMillis = latencyMillis;
+        this.bytesPerSecond = bytesPerSecond;
+        this.errorRate = errorRate;
+        this.tarballBytes = tarballBytes;
+    }
+
+    public void start() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                try {
+                    respond(exchange);
+                } finally {
+                    exchange.close();
+                }
+            }
+        });
+        executor = Executors.newCachedThreadPool();
+        server.setExecutor(executor);
+        server.start();
+    }
+
+    public void stop() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    /**
+     * @return The URL of the registry, ending with a slash
+     */
+    public String getURL() {
+        return "http://127.0.0.1:" + server.getAddress().getPort() + "/";
+    }
+
+    public int getPackumentRequests() {
+        return packumentRequests.get();
+    }
+
+    public int getTarballRequests() {
+        return tarballRequests.get();
+    }
+
+    public int getErrors() {
+        return errors.get();
+    }
+
+    /**
+     * @return How many requests had the header that servers in a cluster send to each other
+     */
+    public int getPeerRequests() {
+        return peerRequests.get();
+    }
+
+    /**
+     * @return The most times any one file has been asked for
+     */
+    public int getMostRequestsForOneFile() {
+        int most = 0;
+        for (AtomicInteger count : requestsByPath.values()) {
+            most = Math.max(most, count.get());
+        }
+        return most;
+    }
+
+    private void respond(HttpExchange exchange) throws IOException {
+        String path = exchange.getRequestURI().getPath();
+        boolean tarball = path.endsWith(".tgz");
+        (tarball ? tarballRequests : packumentRequests).incrementAndGet();
+        AtomicInteger count = requestsByPath.get(path);
+        if (count == null) {
+            AtomicInteger existing = requestsByPath.putIfAbsent(path, count = new AtomicInteger());
+            count = existing == null ? count : existing;
+        }
+        count.incrementAndGet();
+        if (exchange.getRequestHeaders().containsKey(PeerCluster.PEER_HEADER)) {
+            peerRequests.incrementAndGet();
+        }
+
+        sleep(latencyMillis);
+        if (shouldFail()) {
+            errors.incrementAndGet();
+            exchange.sendResponseHeaders(503, -1);
+            return;
+        }
+
+        byte[] body;
+        if (tarball) {
+            body = new byte[tarballBytes];
+            synchronized (random) {
+                random.nextBytes(body);
+            }
+            exchange.getResponseHeaders().set("Content-Type", "application/octet-stream");
+        } else {
+            body = packument(path.substring(1));
+            exchange.getResponseHeaders().set("Content-Type", "application/json");
+        }
+        exchange.sendResponseHeaders(200, body.length);
+        OutputStream out = exchange.getResponseBody();
+        for (int offset = 0; offset < body.length; offset += CHUNK_BYTES) {
+            int length = Math.min(CHUNK_BYTES, body.length - offset);
+            out.write(body, offset, length);
+            if (bytesPerSecond > 0) {
+                sleep(length * 1000L / bytesPerSecond);
+            }
+        }
+        out.close();
+    }
+
+    private boolean shouldFail() {
+        synchronized (random) {
+            return random.nextDouble() < errorRate;
+        }
+    }
+
+    private byte[] packument(String name) throws UnsupportedEncodingException {
+        String tarball = getURL() + name + "/-/" + name + "-1.0.0.tgz";
+        String json = "{\"name\":\"" + name + "\",\"dist-tags\":{\"latest\":\"1.0.0\"},\"versions\":{\"1.0.0\":{"
+                + "\"name\":\"" + name + "\",\"version\":\"1.0.0\",\"dist\":{\"tarball\":\"" + tarball + "\"}}}}";
+        return json.getBytes("UTF-8");
+    }
+
+    private static void sleep(long millis) {
+        if (millis <= 0) {
+            return;
+        }
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
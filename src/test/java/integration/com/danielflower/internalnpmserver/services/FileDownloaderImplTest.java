@@ -1,20 +1,98 @@
 package integration.com.danielflower.internalnpmserver.services;
 
+import com.danielflower.internalnpmserver.services.CacheFiles;
+import com.danielflower.internalnpmserver.services.ContentRewriter;
 import com.danielflower.internalnpmserver.services.FileDownloaderImpl;
+import com.danielflower.internalnpmserver.services.Gzip;
+import com.danielflower.internalnpmserver.services.GzipContentRewriter;
+import com.danielflower.internalnpmserver.services.HttpURLConnectionUpstreamClient;
 import com.danielflower.internalnpmserver.webserver.ResourceNotFoundException;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
 import org.junit.Test;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
 import java.net.Proxy;
 import java.net.URL;
 import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
 
+import static org.hamcrest.Matchers.greaterThan;
 import static org.hamcrest.Matchers.is;
 import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
 
 public class FileDownloaderImplTest {
 
     private final FileDownloaderImpl downloader = new FileDownloaderImpl(Proxy.NO_PROXY);
+    private HttpServer registry;
+    private final AtomicInteger fullResponses = new AtomicInteger();
+    private final AtomicInteger notModifiedResponses = new AtomicInteger();
+
+    @Before
+    public void startFakeRegistry() throws IOException {
+        registry = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        registry.createContext("/conditional", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                if ("\"v1\"".equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+                    notModifiedResponses.incrementAndGet();
+                    exchange.sendResponseHeaders(304, -1);
+                } else {
+                    fullResponses.incrementAndGet();
+                    byte[] body = "{\"name\":\"conditional\"}".getBytes("UTF-8");
+                    exchange.getResponseHeaders().set("ETag", "\"v1\"");
+                    exchange.sendResponseHeaders(200, body.length);
+                    OutputStream out = exchange.getResponseBody();
+                    out.write(body);
+                    out.close();
+                }
+                exchange.close();
+            }
+        });
+        registry.createContext("/truncated", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                exchange.sendResponseHeaders(200, 1000);
+                OutputStream out = exchange.getResponseBody();
+                out.write("{\"name\":".getBytes("UTF-8"));
+                out.flush();
+                exchange.close();
+            }
+        });
+        registry.createContext("/gzipped", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+                GZIPOutputStream gzip = new GZIPOutputStream(compressed);
+                gzip.write("{\"name\":\"gzipped\"}".getBytes("UTF-8"));
+                gzip.close();
+                if ("gzip".equals(exchange.getRequestHeaders().getFirst("Accept-Encoding"))) {
+                    exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+                }
+                exchange.sendResponseHeaders(200, compressed.size());
+                OutputStream out = exchange.getResponseBody();
+                compressed.writeTo(out);
+                out.close();
+                exchange.close();
+            }
+        });
+        registry.start();
+    }
+
+    @After
+    public void stopFakeRegistry() {
+        registry.stop(0);
+    }
 
     @Test
     public void downloadsFromAURLToAFile() throws Exception {
@@ -33,4 +111,59 @@ public class FileDownloaderImplTest {
         downloader.fetch(url, destination);
     }
 
+    @Test
+    public void reDownloadsSendTheStoredETagAndLeaveTheFileAloneIfItHasNotChanged() throws Exception {
+        URL url = new URL("http://localhost:" + registry.getAddress().getPort() + "/conditional");
+        File destination = new File("target/npmcachetest/" + UUID.randomUUID() + "/conditional.json");
+
+        assertThat(downloader.fetch(url, destination), is(true));
+        assertThat(CacheFiles.validatorsFile(destination).isFile(), is(true));
+        assertThat(destination.setLastModified(System.currentTimeMillis() - 60000), is(true));
+        long before = destination.lastModified();
+
+        assertThat(downloader.fetch(url, destination), is(false));
+        assertThat(fullResponses.get(), is(1));
+        assertThat(notModifiedResponses.get(), is(1));
+        assertThat(FileUtils.readFileToString(destination), is("{\"name\":\"conditional\"}"));
+        assertThat(destination.lastModified(), greaterThan(before));
+    }
+
+    @Test
+    public void gzippedResponsesAreDecompressed() throws Exception {
+        URL url = new URL("http://localhost:" + registry.getAddress().getPort() + "/gzipped");
+        File destination = new File("target/npmcachetest/" + UUID.randomUUID() + "/gzipped.json");
+
+        downloader.fetch(url, destination);
+        assertThat(FileUtils.readFileToString(destination), is("{\"name\":\"gzipped\"}"));
+    }
+
+    @Test
+    public void packumentsCanBeStoredGzipped() throws Exception {
+        FileDownloaderImpl compressingDownloader = new FileDownloaderImpl(new HttpURLConnectionUpstreamClient(Proxy.NO_PROXY),
+                new GzipContentRewriter(ContentRewriter.NONE));
+        URL url = new URL("http://localhost:" + registry.getAddress().getPort() + "/gzipped");
+        File destination = new File("target/npmcachetest/" + UUID.randomUUID() + "/gzipped.json");
+
+        compressingDownloader.fetch(url, destination);
+        byte[] stored = FileUtils.readFileToByteArray(destination);
+        assertThat(Gzip.isGzipped(stored), is(true));
+        assertThat(IOUtils.toString(new GZIPInputStream(new ByteArrayInputStream(stored)), "UTF-8"), is("{\"name\":\"gzipped\"}"));
+    }
+
+    @Test
+    public void aFailedDownloadLeavesThePreviouslyCachedVersionInPlace() throws Exception {
+        URL url = new URL("http://localhost:" + registry.getAddress().getPort() + "/truncated");
+        File destination = new File("target/npmcachetest/" + UUID.randomUUID() + "/truncated.json");
+        FileUtils.writeStringToFile(destination, "previous version");
+
+        try {
+            downloader.fetch(url, destination);
+            fail("Should have thrown");
+        } catch (IOException e) {
+            // expected
+        }
+        assertThat(FileUtils.readFileToString(destination), is("previous version"));
+        assertThat(CacheFiles.partialFile(destination).exists(), is(false));
+    }
+
 }
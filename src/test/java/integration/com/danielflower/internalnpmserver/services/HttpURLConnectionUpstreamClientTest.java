@@ -0,0 +1,99 @@
+package integration.com.danielflower.internalnpmserver.services;
+
+import com.danielflower.internalnpmserver.services.HttpURLConnectionUpstreamClient;
+import com.danielflower.internalnpmserver.services.UpstreamResponse;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+public class HttpURLConnectionUpstreamClientTest {
+
+    private static final Map<String, String> NO_HEADERS = new HashMap<String, String>();
+
+    private HttpServer registry;
+    private final Set<Integer> clientPorts = Collections.newSetFromMap(new ConcurrentHashMap<Integer, Boolean>());
+
+    @Before
+    public void startFakeRegistry() throws IOException {
+        registry = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        registry.createContext("/fast", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                clientPorts.add(exchange.getRemoteAddress().getPort());
+                byte[] body = "fast".getBytes("UTF-8");
+                exchange.sendResponseHeaders(200, body.length);
+                OutputStream out = exchange.getResponseBody();
+                out.write(body);
+                out.close();
+            }
+        });
+        registry.createContext("/slow", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                exchange.sendResponseHeaders(200, 0);
+                OutputStream out = exchange.getResponseBody();
+                try {
+                    for (int i = 0; i < 20; i++) {
+                        out.write('x');
+                        out.flush();
+                        Thread.sleep(100);
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } catch (IOException e) {
+                    // the client gave up
+                }
+                exchange.close();
+            }
+        });
+        registry.start();
+    }
+
+    @After
+    public void stopFakeRegistry() {
+        registry.stop(0);
+    }
+
+    @Test
+    public void connectionsAreReusedForSequentialRequests() throws Exception {
+        HttpURLConnectionUpstreamClient client = new HttpURLConnectionUpstreamClient(Proxy.NO_PROXY);
+        for (int i = 0; i < 5; i++) {
+            UpstreamResponse response = client.get(url("/fast"), NO_HEADERS);
+            assertThat(IOUtils.toString(response.getBody(), "UTF-8"), is("fast"));
+            response.close();
+        }
+        assertThat(clientPorts.size(), is(1));
+    }
+
+    @Test(expected = SocketTimeoutException.class)
+    public void downloadsThatTakeLongerThanTheTotalTimeoutAreAborted() throws Exception {
+        HttpURLConnectionUpstreamClient client = new HttpURLConnectionUpstreamClient(Proxy.NO_PROXY, 1000, 1000, 500);
+        UpstreamResponse response = client.get(url("/slow"), NO_HEADERS);
+        try {
+            IOUtils.toByteArray(response.getBody());
+        } finally {
+            response.close();
+        }
+    }
+
+    private URL url(String path) throws IOException {
+        return new URL("http://localhost:" + registry.getAddress().getPort() + path);
+    }
+}